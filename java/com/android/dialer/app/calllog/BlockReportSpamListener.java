@@ -19,7 +19,6 @@ package com.android.dialer.app.calllog;
 import android.content.Context;
 import android.support.annotation.NonNull;
 import android.support.v4.app.FragmentManager;
-import android.support.v7.widget.RecyclerView;
 import android.view.View;
 import com.android.dialer.blocking.FilteredNumberAsyncQueryHandler;
 import com.android.dialer.blockreportspam.BlockReportSpamDialogs;
@@ -41,7 +40,8 @@ public class BlockReportSpamListener implements CallLogListItemViewHolder.OnClic
   private final Context context;
   private final View rootView;
   private final FragmentManager fragmentManager;
-  private final RecyclerView.Adapter adapter;
+  /** Rebinds the call log after a number is blocked, unblocked or reported. */
+  private final Runnable onStatusChanged;
   private final FilteredNumberAsyncQueryHandler filteredNumberAsyncQueryHandler;
   private final Spam spam;
   private final SpamSettings spamSettings;
@@ -51,12 +51,12 @@ public class BlockReportSpamListener implements CallLogListItemViewHolder.OnClic
       Context context,
       View rootView,
       FragmentManager fragmentManager,
-      RecyclerView.Adapter adapter,
+      Runnable onStatusChanged,
       FilteredNumberAsyncQueryHandler filteredNumberAsyncQueryHandler) {
     this.context = context;
     this.rootView = rootView;
     this.fragmentManager = fragmentManager;
-    this.adapter = adapter;
+    this.onStatusChanged = onStatusChanged;
     this.filteredNumberAsyncQueryHandler = filteredNumberAsyncQueryHandler;
     spam = SpamComponent.get(context).spam();
     spamSettings = SpamComponent.get(context).spamSettings();
@@ -91,7 +91,7 @@ public class BlockReportSpamListener implements CallLogListItemViewHolder.OnClic
                   uri -> {
                     Logger.get(context)
                         .logImpression(DialerImpression.Type.USER_ACTION_BLOCKED_NUMBER);
-                    adapter.notifyDataSetChanged();
+                    onStatusChanged.run();
                   },
                   number,
                   countryIso);
@@ -132,7 +132,7 @@ public class BlockReportSpamListener implements CallLogListItemViewHolder.OnClic
                   uri -> {
                     Logger.get(context)
                         .logImpression(DialerImpression.Type.USER_ACTION_BLOCKED_NUMBER);
-                    adapter.notifyDataSetChanged();
+                    onStatusChanged.run();
                   },
                   number,
                   countryIso);
@@ -170,7 +170,7 @@ public class BlockReportSpamListener implements CallLogListItemViewHolder.OnClic
                   (rows, values) -> {
                     Logger.get(context)
                         .logImpression(DialerImpression.Type.USER_ACTION_UNBLOCKED_NUMBER);
-                    adapter.notifyDataSetChanged();
+                    onStatusChanged.run();
                   },
                   blockId);
             },
@@ -199,7 +199,7 @@ public class BlockReportSpamListener implements CallLogListItemViewHolder.OnClic
                     ReportingLocation.Type.CALL_LOG_HISTORY,
                     contactSourceType);
               }
-              adapter.notifyDataSetChanged();
+              onStatusChanged.run();
             },
             null)
         .show(fragmentManager, BlockReportSpamDialogs.NOT_SPAM_DIALOG_TAG);
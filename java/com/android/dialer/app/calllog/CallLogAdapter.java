@@ -56,6 +56,8 @@ import com.android.contacts.common.ContactsUtils;
 import com.android.dialer.app.R;
 import com.android.dialer.app.calllog.CallLogFragment.CallLogFragmentListener;
 import com.android.dialer.app.calllog.CallLogGroupBuilder.GroupCreator;
+import com.android.dialer.app.calllog.CallLogRowPrefetcher.PreparedRow;
+import com.android.dialer.app.calllog.CallLogRowPrefetcher.RowRequest;
 import com.android.dialer.app.calllog.calllogcache.CallLogCache;
 import com.android.dialer.app.contactinfo.ContactInfoCache;
 import com.android.dialer.app.voicemail.VoicemailPlaybackPresenter;
@@ -124,6 +126,9 @@ public class CallLogAdapter extends GroupingListAdapter
   public static final String ENABLE_CALL_LOG_MULTI_SELECT = "enable_call_log_multiselect";
   public static final boolean ENABLE_CALL_LOG_MULTI_SELECT_FLAG = true;
 
+  private static final String REMOTE_LOOKUP_ROW_COUNT_KEY = "number_of_call_to_do_remote_lookup";
+  private static final long DEFAULT_REMOTE_LOOKUP_ROW_COUNT = 5L;
+
   @VisibleForTesting static final String FILTER_EMERGENCY_CALLS_FLAG = "filter_emergency_calls";
 
   protected final Activity activity;
@@ -143,6 +148,7 @@ public class CallLogAdapter extends GroupingListAdapter
   private final CallLogGroupBuilder callLogGroupBuilder;
 
   private final AsyncTaskExecutor asyncTaskExecutor = AsyncTaskExecutors.createAsyncTaskExecutor();
+  private final CallLogRowPrefetcher rowPrefetcher;
   private ContactInfoCache contactInfoCache;
   // Tracks the position of the currently expanded list item.
   private int currentlyExpandedPosition = RecyclerView.NO_POSITION;
@@ -417,7 +423,7 @@ public class CallLogAdapter extends GroupingListAdapter
 
   @Nullable
   public RecyclerView.OnScrollListener getOnScrollListener() {
-    return null;
+    return rowPrefetcher;
   }
 
   private void checkMarkCallLogEntry(CallLogListItemViewHolder viewHolder) {
@@ -514,6 +520,9 @@ public class CallLogAdapter extends GroupingListAdapter
 
   private boolean isSpamEnabled;
 
+  /** Number of rows at the top of the list whose contacts are also looked up remotely. */
+  private volatile long remoteLookupRowCount = DEFAULT_REMOTE_LOOKUP_ROW_COUNT;
+
   public CallLogAdapter(
       Activity activity,
       ViewGroup alertContainer,
@@ -554,13 +563,20 @@ public class CallLogAdapter extends GroupingListAdapter
         new CallLogListItemHelper(phoneCallDetailsHelper, resources, this.callLogCache);
     callLogGroupBuilder = new CallLogGroupBuilder(activity.getApplicationContext(), this);
     this.filteredNumberAsyncQueryHandler = Assert.isNotNull(filteredNumberAsyncQueryHandler);
+    rowPrefetcher =
+        new CallLogRowPrefetcher(
+            this.activity,
+            this::createRowRequest,
+            this.filteredNumberAsyncQueryHandler,
+            this.callLogCache,
+            this.contactInfoCache);
 
     blockReportSpamListener =
         new BlockReportSpamListener(
             this.activity,
             this.activity.findViewById(R.id.call_log_fragment_root),
             ((AppCompatActivity) this.activity).getSupportFragmentManager(),
-            this,
+            this::onBlockedOrSpamStatusChanged,
             this.filteredNumberAsyncQueryHandler);
     setHasStableIds(true);
 
@@ -669,6 +685,16 @@ public class CallLogAdapter extends GroupingListAdapter
 
   public void clearFilteredNumbersCache() {
     filteredNumberAsyncQueryHandler.clearCache();
+    rowPrefetcher.clear();
+  }
+
+  /**
+   * Rebinds the rows after a number was blocked, unblocked or reported, discarding the rows
+   * prepared with its previous status.
+   */
+  private void onBlockedOrSpamStatusChanged() {
+    rowPrefetcher.clear();
+    notifyDataSetChanged();
   }
 
   public void onResume() {
@@ -677,6 +703,12 @@ public class CallLogAdapter extends GroupingListAdapter
       contactInfoCache.start();
     }
     isSpamEnabled = SpamComponent.get(activity).spamSettings().isSpamEnabled();
+    remoteLookupRowCount =
+        ConfigProviderComponent.get(activity)
+            .getConfigProvider()
+            .getLong(REMOTE_LOOKUP_ROW_COUNT_KEY, DEFAULT_REMOTE_LOOKUP_ROW_COUNT);
+    // Spam settings and blocked numbers may have changed while paused.
+    rowPrefetcher.clear();
     getDuo().registerListener(this);
     notifyDataSetChanged();
   }
@@ -881,6 +913,16 @@ public class CallLogAdapter extends GroupingListAdapter
         new AsyncTask<Void, Void, Boolean>() {
           @Override
           protected Boolean doInBackground(Void... params) {
+            PreparedRow preparedRow = rowPrefetcher.getPreparedRow(rowId, viewHolder.number);
+            if (preparedRow != null) {
+              viewHolder.blockId = preparedRow.blockId;
+              details.isBlocked = viewHolder.blockId != null;
+              viewHolder.isSpamFeatureEnabled = preparedRow.isSpamFeatureEnabled;
+              viewHolder.isSpam = preparedRow.isSpam;
+              details.isSpam = viewHolder.isSpam;
+              return !isCancelled() && loadData(viewHolder, rowId, details, preparedRow);
+            }
+
             viewHolder.blockId =
                 filteredNumberAsyncQueryHandler.getBlockedIdSynchronous(
                     viewHolder.number, viewHolder.countryIso);
@@ -899,7 +941,7 @@ public class CallLogAdapter extends GroupingListAdapter
                           .checkSpamStatusSynchronous(viewHolder.number, viewHolder.countryIso);
               details.isSpam = viewHolder.isSpam;
             }
-            return !isCancelled() && loadData(viewHolder, rowId, details);
+            return !isCancelled() && loadData(viewHolder, rowId, details, null);
           }
 
           @Override
@@ -937,6 +979,47 @@ public class CallLogAdapter extends GroupingListAdapter
     return capabilities.isCallComposerCapable();
   }
 
+  /**
+   * Reads what {@link CallLogRowPrefetcher} needs to prepare the row at {@code position} from the
+   * cursor, which is why this must run on the main thread.
+   */
+  @MainThread
+  @Nullable
+  private RowRequest createRowRequest(int position) {
+    Assert.isMainThread();
+    if (getItemViewType(position) != VIEW_TYPE_CALLLOG) {
+      return null;
+    }
+    Cursor cursor = (Cursor) getItem(position);
+    if (cursor == null) {
+      return null;
+    }
+    long rowId = cursor.getLong(CallLogQuery.ID);
+    String number = cursor.getString(CallLogQuery.NUMBER);
+    if (isHiddenRow(number, rowId)) {
+      return null;
+    }
+    PhoneCallDetails details =
+        new PhoneCallDetails(
+            number,
+            cursor.getInt(CallLogQuery.NUMBER_PRESENTATION),
+            cursor.getString(CallLogQuery.POST_DIAL_DIGITS));
+    details.callTypes = getCallTypes(cursor, getGroupSize(position));
+    return new RowRequest(
+        rowId,
+        number,
+        details.postDialDigits,
+        cursor.getString(CallLogQuery.COUNTRY_ISO),
+        details.numberPresentation,
+        TelecomUtil.composePhoneAccountHandle(
+            cursor.getString(CallLogQuery.ACCOUNT_COMPONENT_NAME),
+            cursor.getString(CallLogQuery.ACCOUNT_ID)),
+        ContactInfoHelper.getContactInfo(cursor),
+        details.hasIncomingCalls(),
+        isSpamEnabled,
+        position < remoteLookupRowCount);
+  }
+
   /**
    * Initialize PhoneCallDetails by reading all data from cursor. This method must be run on main
    * thread since cursor is not thread safe.
@@ -1029,9 +1112,15 @@ public class CallLogAdapter extends GroupingListAdapter
   /**
    * Load data for call log. Any expensive operation should be put here to avoid blocking main
    * thread. Do NOT put any cursor operation here since it's not thread safe.
+   *
+   * @param preparedRow the row prepared by {@link CallLogRowPrefetcher}, if any
    */
   @WorkerThread
-  private boolean loadData(CallLogListItemViewHolder views, long rowId, PhoneCallDetails details) {
+  private boolean loadData(
+      CallLogListItemViewHolder views,
+      long rowId,
+      PhoneCallDetails details,
+      @Nullable PreparedRow preparedRow) {
     Assert.isWorkerThread();
     if (rowId != views.rowId) {
       LogUtil.i(
@@ -1043,7 +1132,10 @@ public class CallLogAdapter extends GroupingListAdapter
     final PhoneAccountHandle accountHandle =
         TelecomUtil.composePhoneAccountHandle(details.accountComponentName, details.accountId);
 
-    final boolean isVoicemailNumber = callLogCache.isVoicemailNumber(accountHandle, details.number);
+    final boolean isVoicemailNumber =
+        preparedRow != null
+            ? preparedRow.isVoicemailNumber
+            : callLogCache.isVoicemailNumber(accountHandle, details.number);
 
     // Note: Binding of the action buttons is done as required in configureActionViews when the
     // user expands the actions ViewStub.
@@ -1059,10 +1151,7 @@ public class CallLogAdapter extends GroupingListAdapter
               details.number + details.postDialDigits,
               details.countryIso,
               details.cachedContactInfo,
-              position
-                  < ConfigProviderComponent.get(activity)
-                      .getConfigProvider()
-                      .getLong("number_of_call_to_do_remote_lookup", 5L));
+              position < remoteLookupRowCount);
       logCp2Metrics(details, info);
     }
     CharSequence formattedNumber =
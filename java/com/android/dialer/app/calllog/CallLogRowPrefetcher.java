@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.app.calllog;
+
+import android.content.Context;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.RecyclerView.OnScrollListener;
+import android.telecom.PhoneAccountHandle;
+import android.util.LruCache;
+import com.android.dialer.app.calllog.calllogcache.CallLogCache;
+import com.android.dialer.app.contactinfo.ContactInfoCache;
+import com.android.dialer.blocking.FilteredNumberAsyncQueryHandler;
+import com.android.dialer.common.Assert;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.common.concurrent.DialerExecutorComponent;
+import com.android.dialer.phonenumbercache.ContactInfo;
+import com.android.dialer.phonenumberutil.PhoneNumberHelper;
+import com.android.dialer.spam.SpamComponent;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prepares the parts of call log rows which need disk or IPC access (blocked and spam status,
+ * voicemail number check and contact lookup) before the rows are bound.
+ *
+ * <p>As the list scrolls, the visible rows and the {@link #PREFETCH_DISTANCE} rows following them
+ * in the direction of the scroll are read from the cursor on the main thread, and prepared on the
+ * background executor. {@link CallLogAdapter} then applies the {@link PreparedRow} when binding the
+ * row instead of querying again.
+ */
+final class CallLogRowPrefetcher extends OnScrollListener {
+
+  /** Number of rows ahead of the visible ones which are prepared. */
+  private static final int PREFETCH_DISTANCE = 10;
+
+  private static final int MAX_PREPARED_ROWS = 100;
+
+  /** Reads a row from the call log cursor. */
+  interface RowRequestFactory {
+
+    /**
+     * Returns the request to prepare the row at {@code position}, or null if the row isn't a call
+     * log entry or is hidden.
+     */
+    @MainThread
+    @Nullable
+    RowRequest createRowRequest(int position);
+  }
+
+  private final Context appContext;
+  private final RowRequestFactory rowRequestFactory;
+  private final FilteredNumberAsyncQueryHandler filteredNumberAsyncQueryHandler;
+  private final CallLogCache callLogCache;
+  private final ContactInfoCache contactInfoCache;
+  private final ListeningExecutorService backgroundExecutor;
+  private final ListeningExecutorService uiExecutor;
+
+  /** Prepared rows, keyed by row ID. Accessed from the main thread and the background executor. */
+  private final LruCache<Long, PreparedRow> preparedRows = new LruCache<>(MAX_PREPARED_ROWS);
+
+  /** Rows being prepared. Only accessed from the main thread. */
+  private final Set<Long> inFlightRowIds = new HashSet<>();
+
+  private final AtomicInteger hitCount = new AtomicInteger();
+  private final AtomicInteger missCount = new AtomicInteger();
+
+  CallLogRowPrefetcher(
+      Context context,
+      RowRequestFactory rowRequestFactory,
+      FilteredNumberAsyncQueryHandler filteredNumberAsyncQueryHandler,
+      CallLogCache callLogCache,
+      ContactInfoCache contactInfoCache) {
+    this.appContext = context.getApplicationContext();
+    this.rowRequestFactory = rowRequestFactory;
+    this.filteredNumberAsyncQueryHandler = filteredNumberAsyncQueryHandler;
+    this.callLogCache = callLogCache;
+    this.contactInfoCache = contactInfoCache;
+    this.backgroundExecutor = DialerExecutorComponent.get(context).backgroundExecutor();
+    this.uiExecutor = DialerExecutorComponent.get(context).uiExecutor();
+  }
+
+  /**
+   * Called with {@code dy == 0} after layouts too, which prepares the rows below the visible ones
+   * when the list is first shown or its content changes.
+   */
+  @Override
+  public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+    if (!(recyclerView.getLayoutManager() instanceof LinearLayoutManager)
+        || recyclerView.getAdapter() == null) {
+      return;
+    }
+    LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+    int firstVisiblePosition = layoutManager.findFirstVisibleItemPosition();
+    int lastVisiblePosition = layoutManager.findLastVisibleItemPosition();
+    if (firstVisiblePosition == RecyclerView.NO_POSITION) {
+      return;
+    }
+
+    int start;
+    int end;
+    if (dy < 0) {
+      start = Math.max(0, firstVisiblePosition - PREFETCH_DISTANCE);
+      end = lastVisiblePosition;
+    } else {
+      start = firstVisiblePosition;
+      end = lastVisiblePosition + PREFETCH_DISTANCE;
+    }
+    RecyclerView.Adapter adapter = recyclerView.getAdapter();
+    end = Math.min(end, adapter.getItemCount() - 1);
+    for (int position = start; position <= end; position++) {
+      // Reading the row ID is cheaper than reading the whole request, so check it first. The
+      // adapter has stable IDs, which are the row IDs.
+      if (!isPreparedOrInFlight(adapter.getItemId(position))) {
+        prefetch(position);
+      }
+    }
+  }
+
+  @Override
+  public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+    if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+      LogUtil.v(
+          "CallLogRowPrefetcher.onScrollStateChanged",
+          "hits: %d, misses: %d, in flight: %d",
+          hitCount.get(),
+          missCount.get(),
+          inFlightRowIds.size());
+    }
+  }
+
+  /**
+   * Returns the prepared row with {@code rowId}, or null if it isn't prepared yet or was prepared
+   * for another number.
+   */
+  @Nullable
+  PreparedRow getPreparedRow(long rowId, @Nullable String number) {
+    PreparedRow preparedRow = preparedRows.get(rowId);
+    if (preparedRow == null || !Objects.equals(preparedRow.number, number)) {
+      missCount.incrementAndGet();
+      return null;
+    }
+    hitCount.incrementAndGet();
+    return preparedRow;
+  }
+
+  /** Discards all prepared rows, for example when blocked numbers or spam settings change. */
+  @MainThread
+  void clear() {
+    Assert.isMainThread();
+    preparedRows.evictAll();
+  }
+
+  @MainThread
+  private boolean isPreparedOrInFlight(long rowId) {
+    return inFlightRowIds.contains(rowId) || preparedRows.get(rowId) != null;
+  }
+
+  @MainThread
+  private void prefetch(int position) {
+    RowRequest rowRequest = rowRequestFactory.createRowRequest(position);
+    if (rowRequest == null || isPreparedOrInFlight(rowRequest.rowId)) {
+      return;
+    }
+    inFlightRowIds.add(rowRequest.rowId);
+    backgroundExecutor
+        .submit(() -> prepare(rowRequest))
+        .addListener(() -> inFlightRowIds.remove(rowRequest.rowId), uiExecutor);
+  }
+
+  @WorkerThread
+  private void prepare(RowRequest rowRequest) {
+    Assert.isWorkerThread();
+    Integer blockId =
+        filteredNumberAsyncQueryHandler.getBlockedIdSynchronous(
+            rowRequest.number, rowRequest.countryIso);
+
+    boolean isSpam = false;
+    if (rowRequest.isSpamEnabled && rowRequest.hasIncomingCalls) {
+      isSpam =
+          SpamComponent.get(appContext)
+              .spam()
+              .checkSpamStatusSynchronous(rowRequest.number, rowRequest.countryIso);
+    }
+
+    boolean isVoicemailNumber =
+        callLogCache.isVoicemailNumber(rowRequest.accountHandle, rowRequest.number);
+    if (PhoneNumberHelper.canPlaceCallsTo(rowRequest.number, rowRequest.numberPresentation)
+        && !isVoicemailNumber) {
+      // Only starts the lookup; the row picks up the result when it is bound.
+      contactInfoCache.getValue(
+          rowRequest.number + rowRequest.postDialDigits,
+          rowRequest.countryIso,
+          rowRequest.cachedContactInfo,
+          rowRequest.remoteLookupIfNotFoundLocally);
+    }
+
+    preparedRows.put(
+        rowRequest.rowId,
+        new PreparedRow(
+            rowRequest.number, blockId, rowRequest.isSpamEnabled, isSpam, isVoicemailNumber));
+  }
+
+  /** What's needed from the call log cursor to prepare a row. */
+  static final class RowRequest {
+    final long rowId;
+    @Nullable final String number;
+    final String postDialDigits;
+    final String countryIso;
+    final int numberPresentation;
+    final PhoneAccountHandle accountHandle;
+    final ContactInfo cachedContactInfo;
+    final boolean hasIncomingCalls;
+    final boolean isSpamEnabled;
+    final boolean remoteLookupIfNotFoundLocally;
+
+    RowRequest(
+        long rowId,
+        @Nullable String number,
+        String postDialDigits,
+        String countryIso,
+        int numberPresentation,
+        PhoneAccountHandle accountHandle,
+        ContactInfo cachedContactInfo,
+        boolean hasIncomingCalls,
+        boolean isSpamEnabled,
+        boolean remoteLookupIfNotFoundLocally) {
+      this.rowId = rowId;
+      this.number = number;
+      this.postDialDigits = postDialDigits;
+      this.countryIso = countryIso;
+      this.numberPresentation = numberPresentation;
+      this.accountHandle = accountHandle;
+      this.cachedContactInfo = cachedContactInfo;
+      this.hasIncomingCalls = hasIncomingCalls;
+      this.isSpamEnabled = isSpamEnabled;
+      this.remoteLookupIfNotFoundLocally = remoteLookupIfNotFoundLocally;
+    }
+  }
+
+  /** The result of preparing a row. Immutable, so that it can be applied on the main thread. */
+  static final class PreparedRow {
+    @Nullable final String number;
+    @Nullable final Integer blockId;
+    final boolean isSpamFeatureEnabled;
+    final boolean isSpam;
+    final boolean isVoicemailNumber;
+
+    PreparedRow(
+        @Nullable String number,
+        @Nullable Integer blockId,
+        boolean isSpamFeatureEnabled,
+        boolean isSpam,
+        boolean isVoicemailNumber) {
+      this.number = number;
+      this.blockId = blockId;
+      this.isSpamFeatureEnabled = isSpamFeatureEnabled;
+      this.isSpam = isSpam;
+      this.isVoicemailNumber = isVoicemailNumber;
+    }
+  }
+}
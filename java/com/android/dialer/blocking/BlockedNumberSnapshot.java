@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.blocking;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.support.v4.os.UserManagerCompat;
+import android.text.TextUtils;
+import com.android.dialer.common.Assert;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.common.concurrent.DialerExecutorComponent;
+import com.android.dialer.database.FilteredNumberContract.FilteredNumberTypes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory copy of the blocked numbers, which answers whether numbers are blocked without querying
+ * the blocked number provider.
+ *
+ * <p>The blocked numbers are loaded once, indexed by their E164 and their original form, the same
+ * columns {@link FilteredNumberAsyncQueryHandler} queries. The copy then follows the changes
+ * notified by the provider: a change to a single row only reloads that row, and other changes only
+ * load the rows which were added and drop the rows which were removed.
+ */
+public final class BlockedNumberSnapshot {
+
+  private static BlockedNumberSnapshot instance;
+
+  private final Context appContext;
+
+  private final ContentObserver observer =
+      new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+          DialerExecutorComponent.get(appContext)
+              .backgroundExecutor()
+              .execute(() -> onBlockedNumbersChanged(uri));
+        }
+      };
+
+  /** Null until loaded, and after {@link #invalidate()}. Replaced rather than modified. */
+  @Nullable private volatile Snapshot snapshot;
+
+  @Nullable private Uri observedUri;
+  private boolean isLoadingAsync;
+
+  private BlockedNumberSnapshot(Context appContext) {
+    this.appContext = appContext;
+  }
+
+  public static synchronized BlockedNumberSnapshot get(Context context) {
+    if (instance == null) {
+      instance = new BlockedNumberSnapshot(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  /** Returns true if the blocked numbers are loaded, so that lookups don't need any I/O. */
+  public boolean isLoaded() {
+    Snapshot currentSnapshot = snapshot;
+    return currentSnapshot != null
+        && currentSnapshot.usesNewFiltering == FilteredNumberCompat.useNewFiltering(appContext);
+  }
+
+  /**
+   * Loads the blocked numbers if they aren't loaded yet.
+   *
+   * @return whether the blocked numbers are loaded; they can't be while the user is locked.
+   */
+  @WorkerThread
+  public boolean loadIfNeeded() {
+    Assert.isWorkerThread();
+    if (isLoaded()) {
+      return true;
+    }
+    return load();
+  }
+
+  /** Loads the blocked numbers on a background thread if they aren't loaded yet. */
+  public void loadAsyncIfNeeded() {
+    if (isLoaded()) {
+      return;
+    }
+    synchronized (this) {
+      if (isLoadingAsync) {
+        return;
+      }
+      isLoadingAsync = true;
+    }
+    DialerExecutorComponent.get(appContext)
+        .backgroundExecutor()
+        .execute(
+            () -> {
+              loadIfNeeded();
+              synchronized (this) {
+                isLoadingAsync = false;
+              }
+            });
+  }
+
+  /** Discards the blocked numbers, which are loaded again when next needed. */
+  public void invalidate() {
+    snapshot = null;
+  }
+
+  /**
+   * Adds the number blocked by inserting the row {@code uri} points to, so that lookups see it
+   * without waiting for the provider to notify the change.
+   *
+   * @param values the values the row was inserted with
+   */
+  public void onNumberBlocked(Uri uri, ContentValues values) {
+    Integer id = parseId(uri);
+    synchronized (this) {
+      Snapshot currentSnapshot = snapshot;
+      if (currentSnapshot == null) {
+        return;
+      }
+      if (id == null) {
+        invalidate();
+        return;
+      }
+      Map<Integer, BlockedNumber> blockedNumbersById =
+          new HashMap<>(currentSnapshot.blockedNumbersById);
+      blockedNumbersById.put(
+          id,
+          new BlockedNumber(
+              id,
+              values.getAsString(FilteredNumberCompat.getE164NumberColumnName(appContext)),
+              values.getAsString(FilteredNumberCompat.getOriginalNumberColumnName(appContext))));
+      snapshot = new Snapshot(currentSnapshot.usesNewFiltering, blockedNumbersById);
+    }
+  }
+
+  /**
+   * Removes the number unblocked by deleting the row {@code uri} points to, so that lookups see it
+   * without waiting for the provider to notify the change.
+   */
+  public void onNumberUnblocked(Uri uri) {
+    Integer id = parseId(uri);
+    synchronized (this) {
+      Snapshot currentSnapshot = snapshot;
+      if (currentSnapshot == null) {
+        return;
+      }
+      if (id == null) {
+        invalidate();
+        return;
+      }
+      Map<Integer, BlockedNumber> blockedNumbersById =
+          new HashMap<>(currentSnapshot.blockedNumbersById);
+      blockedNumbersById.remove(id);
+      snapshot = new Snapshot(currentSnapshot.usesNewFiltering, blockedNumbersById);
+    }
+  }
+
+  /**
+   * Returns the ID of the blocked number matching {@code blockableNumber}, or null if it isn't
+   * blocked. Must only be called if {@link #isLoaded()}.
+   *
+   * @param blockableNumber the number as returned by {@link
+   *     FilteredNumbersUtil#getBlockableNumber(Context, String, String)}
+   * @param isE164Number whether the number could be formatted to E164
+   */
+  @Nullable
+  public Integer getBlockedId(String blockableNumber, boolean isE164Number) {
+    Snapshot currentSnapshot = Assert.isNotNull(snapshot);
+    // Same column choice as FilteredNumberAsyncQueryHandler#getIsBlockedNumberSelection.
+    if (currentSnapshot.usesNewFiltering && !isE164Number) {
+      return currentSnapshot.idsByOriginalNumber.get(blockableNumber);
+    }
+    return currentSnapshot.idsByE164Number.get(blockableNumber);
+  }
+
+  @WorkerThread
+  private boolean load() {
+    if (!FilteredNumberCompat.canAttemptBlockOperations(appContext)
+        || !UserManagerCompat.isUserUnlocked(appContext)) {
+      return false;
+    }
+    boolean usesNewFiltering = FilteredNumberCompat.useNewFiltering(appContext);
+    registerObserver(FilteredNumberCompat.getContentUri(appContext, null));
+    List<BlockedNumber> blockedNumbers = queryBlockedNumbers(null, null);
+    if (blockedNumbers == null) {
+      return false;
+    }
+    Map<Integer, BlockedNumber> blockedNumbersById = new HashMap<>();
+    for (BlockedNumber blockedNumber : blockedNumbers) {
+      blockedNumbersById.put(blockedNumber.id, blockedNumber);
+    }
+    snapshot = new Snapshot(usesNewFiltering, blockedNumbersById);
+    LogUtil.i("BlockedNumberSnapshot.load", "loaded %d blocked numbers", blockedNumbers.size());
+    return true;
+  }
+
+  @WorkerThread
+  private void onBlockedNumbersChanged(Uri uri) {
+    Map<Integer, BlockedNumber> blockedNumbersById;
+    while (true) {
+      Snapshot currentSnapshot = snapshot;
+      if (currentSnapshot == null || !isLoaded()) {
+        // Loaded from scratch when next needed.
+        return;
+      }
+      blockedNumbersById = applyChange(currentSnapshot, uri);
+      if (blockedNumbersById == null) {
+        invalidate();
+        return;
+      }
+      synchronized (this) {
+        // A snapshot replaced in the meantime, for example by onNumberBlocked(), gets the change
+        // applied again so that neither change is lost.
+        if (snapshot == currentSnapshot) {
+          snapshot = new Snapshot(currentSnapshot.usesNewFiltering, blockedNumbersById);
+          break;
+        }
+      }
+    }
+    LogUtil.v(
+        "BlockedNumberSnapshot.onBlockedNumbersChanged",
+        "%d blocked numbers",
+        blockedNumbersById.size());
+  }
+
+  /**
+   * Returns the blocked numbers of {@code currentSnapshot} updated with the change notified for
+   * {@code uri}, or null if they can't be queried.
+   */
+  @WorkerThread
+  @Nullable
+  private Map<Integer, BlockedNumber> applyChange(Snapshot currentSnapshot, Uri uri) {
+    Map<Integer, BlockedNumber> blockedNumbersById =
+        new HashMap<>(currentSnapshot.blockedNumbersById);
+
+    Integer changedId = parseId(uri);
+    if (changedId != null) {
+      List<BlockedNumber> changedRow =
+          queryBlockedNumbers(
+              FilteredNumberCompat.getIdColumnName(appContext) + " = ?",
+              new String[] {String.valueOf(changedId)});
+      if (changedRow == null) {
+        return null;
+      }
+      blockedNumbersById.remove(changedId);
+      for (BlockedNumber blockedNumber : changedRow) {
+        blockedNumbersById.put(blockedNumber.id, blockedNumber);
+      }
+    } else {
+      Set<Integer> currentIds = queryIds();
+      if (currentIds == null) {
+        return null;
+      }
+      blockedNumbersById.keySet().retainAll(currentIds);
+      List<String> addedIds = new ArrayList<>();
+      for (Integer id : currentIds) {
+        if (!blockedNumbersById.containsKey(id)) {
+          addedIds.add(String.valueOf(id));
+        }
+      }
+      if (!addedIds.isEmpty()) {
+        List<BlockedNumber> addedRows =
+            queryBlockedNumbers(
+                FilteredNumberCompat.getIdColumnName(appContext)
+                    + " IN ("
+                    + TextUtils.join(",", addedIds)
+                    + ")",
+                null);
+        if (addedRows == null) {
+          return null;
+        }
+        for (BlockedNumber blockedNumber : addedRows) {
+          blockedNumbersById.put(blockedNumber.id, blockedNumber);
+        }
+      }
+    }
+    return blockedNumbersById;
+  }
+
+  private synchronized void registerObserver(Uri uri) {
+    if (uri.equals(observedUri)) {
+      return;
+    }
+    if (observedUri != null) {
+      appContext.getContentResolver().unregisterContentObserver(observer);
+    }
+    appContext.getContentResolver().registerContentObserver(uri, true, observer);
+    observedUri = uri;
+  }
+
+  /** Returns the ID of the row {@code uri} points to, or null if it's not a single row. */
+  @Nullable
+  private static Integer parseId(@Nullable Uri uri) {
+    if (uri == null
+        || uri.getLastPathSegment() == null
+        || !TextUtils.isDigitsOnly(uri.getLastPathSegment())) {
+      return null;
+    }
+    try {
+      return (int) ContentUris.parseId(uri);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** Returns the blocked numbers matching the selection, or null if they can't be queried. */
+  @WorkerThread
+  @Nullable
+  private List<BlockedNumber> queryBlockedNumbers(
+      @Nullable String selection, @Nullable String[] selectionArgs) {
+    String idColumn = FilteredNumberCompat.getIdColumnName(appContext);
+    String e164NumberColumn = FilteredNumberCompat.getE164NumberColumnName(appContext);
+    String originalNumberColumn = FilteredNumberCompat.getOriginalNumberColumnName(appContext);
+    String typeColumn = FilteredNumberCompat.getTypeColumnName(appContext);
+    try (Cursor cursor =
+        appContext
+            .getContentResolver()
+            .query(
+                FilteredNumberCompat.getContentUri(appContext, null),
+                FilteredNumberCompat.filter(
+                    new String[] {idColumn, e164NumberColumn, originalNumberColumn, typeColumn}),
+                selection,
+                selectionArgs,
+                null)) {
+      if (cursor == null) {
+        LogUtil.w("BlockedNumberSnapshot.queryBlockedNumbers", "null cursor");
+        return null;
+      }
+      int idIndex = cursor.getColumnIndexOrThrow(idColumn);
+      int e164NumberIndex = cursor.getColumnIndexOrThrow(e164NumberColumn);
+      int originalNumberIndex = cursor.getColumnIndexOrThrow(originalNumberColumn);
+      // New filtering doesn't have a concept of type
+      int typeIndex = typeColumn == null ? -1 : cursor.getColumnIndexOrThrow(typeColumn);
+      List<BlockedNumber> blockedNumbers = new ArrayList<>(cursor.getCount());
+      while (cursor.moveToNext()) {
+        if (typeIndex != -1 && cursor.getInt(typeIndex) != FilteredNumberTypes.BLOCKED_NUMBER) {
+          continue;
+        }
+        blockedNumbers.add(
+            new BlockedNumber(
+                cursor.getInt(idIndex),
+                cursor.getString(e164NumberIndex),
+                cursor.getString(originalNumberIndex)));
+      }
+      return blockedNumbers;
+    } catch (SecurityException e) {
+      LogUtil.e("BlockedNumberSnapshot.queryBlockedNumbers", null, e);
+      return null;
+    }
+  }
+
+  /** Returns the IDs of all blocked numbers, or null if they can't be queried. */
+  @WorkerThread
+  @Nullable
+  private Set<Integer> queryIds() {
+    String idColumn = FilteredNumberCompat.getIdColumnName(appContext);
+    String typeColumn = FilteredNumberCompat.getTypeColumnName(appContext);
+    try (Cursor cursor =
+        appContext
+            .getContentResolver()
+            .query(
+                FilteredNumberCompat.getContentUri(appContext, null),
+                new String[] {idColumn},
+                typeColumn == null ? null : typeColumn + " = " + FilteredNumberTypes.BLOCKED_NUMBER,
+                null,
+                null)) {
+      if (cursor == null) {
+        LogUtil.w("BlockedNumberSnapshot.queryIds", "null cursor");
+        return null;
+      }
+      Set<Integer> ids = new HashSet<>();
+      while (cursor.moveToNext()) {
+        ids.add(cursor.getInt(0));
+      }
+      return ids;
+    } catch (SecurityException e) {
+      LogUtil.e("BlockedNumberSnapshot.queryIds", null, e);
+      return null;
+    }
+  }
+
+  /** A row of the blocked number provider. */
+  private static final class BlockedNumber {
+    private final int id;
+    @Nullable private final String e164Number;
+    @Nullable private final String originalNumber;
+
+    BlockedNumber(int id, @Nullable String e164Number, @Nullable String originalNumber) {
+      this.id = id;
+      this.e164Number = e164Number;
+      this.originalNumber = originalNumber;
+    }
+  }
+
+  /** The blocked numbers at some point in time, indexed for lookups. */
+  private static final class Snapshot {
+    private final boolean usesNewFiltering;
+    private final Map<Integer, BlockedNumber> blockedNumbersById;
+    private final Map<String, Integer> idsByE164Number = new HashMap<>();
+    private final Map<String, Integer> idsByOriginalNumber = new HashMap<>();
+
+    Snapshot(boolean usesNewFiltering, Map<Integer, BlockedNumber> blockedNumbersById) {
+      this.usesNewFiltering = usesNewFiltering;
+      this.blockedNumbersById = blockedNumbersById;
+      for (BlockedNumber blockedNumber : blockedNumbersById.values()) {
+        if (!TextUtils.isEmpty(blockedNumber.e164Number)) {
+          idsByE164Number.put(blockedNumber.e164Number, blockedNumber.id);
+        }
+        if (!TextUtils.isEmpty(blockedNumber.originalNumber)) {
+          idsByOriginalNumber.put(blockedNumber.originalNumber, blockedNumber.id);
+        }
+      }
+    }
+  }
+}
@@ -125,6 +125,21 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
       listener.onCheckComplete(null);
       return;
     }
+    BlockedNumberSnapshot blockedNumberSnapshot = BlockedNumberSnapshot.get(context);
+    if (blockedNumberSnapshot.isLoaded()) {
+      String e164Number = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+      String formattedNumber = FilteredNumbersUtil.getBlockableNumber(context, e164Number, number);
+      if (TextUtils.isEmpty(formattedNumber)) {
+        listener.onCheckComplete(INVALID_ID);
+        return;
+      }
+      listener.onCheckComplete(
+          blockedNumberSnapshot.getBlockedId(formattedNumber, e164Number != null));
+      return;
+    }
+    // Answer this check from the provider, and the next ones from the snapshot.
+    blockedNumberSnapshot.loadAsyncIfNeeded();
+
     Integer cachedId = blockedNumberCache.get(number);
     if (cachedId != null) {
       if (listener == null) {
@@ -208,6 +223,17 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
     if (!FilteredNumberCompat.canAttemptBlockOperations(context)) {
       return null;
     }
+    String e164Number = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+    String formattedNumber = FilteredNumbersUtil.getBlockableNumber(context, e164Number, number);
+    if (TextUtils.isEmpty(formattedNumber)) {
+      return null;
+    }
+
+    BlockedNumberSnapshot blockedNumberSnapshot = BlockedNumberSnapshot.get(context);
+    if (blockedNumberSnapshot.loadIfNeeded()) {
+      return blockedNumberSnapshot.getBlockedId(formattedNumber, e164Number != null);
+    }
+
     Integer cachedId = blockedNumberCache.get(number);
     if (cachedId != null) {
       if (cachedId == BLOCKED_NUMBER_CACHE_NULL_ID) {
@@ -216,12 +242,6 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
       return cachedId;
     }
 
-    String e164Number = PhoneNumberUtils.formatNumberToE164(number, countryIso);
-    String formattedNumber = FilteredNumbersUtil.getBlockableNumber(context, e164Number, number);
-    if (TextUtils.isEmpty(formattedNumber)) {
-      return null;
-    }
-
     try (Cursor cursor =
         context
             .getContentResolver()
@@ -258,6 +278,7 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
   @VisibleForTesting
   public void clearCache() {
     blockedNumberCache.clear();
+    BlockedNumberSnapshot.get(context).invalidate();
   }
 
   /*
@@ -306,6 +327,9 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
         new Listener() {
           @Override
           public void onInsertComplete(int token, Object cookie, Uri uri) {
+            if (uri != null) {
+              BlockedNumberSnapshot.get(context).onNumberBlocked(uri, values);
+            }
             if (listener != null) {
               listener.onBlockComplete(uri);
             }
@@ -364,6 +388,9 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
                 new Listener() {
                   @Override
                   public void onDeleteComplete(int token, Object cookie, int result) {
+                    if (result > 0) {
+                      BlockedNumberSnapshot.get(context).onNumberUnblocked(uri);
+                    }
                     if (listener != null) {
                       listener.onUnblockComplete(result, values);
                     }
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.calllog;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.MainThread;
+import android.support.annotation.VisibleForTesting;
+import com.android.dialer.calllog.RefreshAnnotatedCallLogWorker.RefreshResult;
+import com.android.dialer.common.Assert;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.common.concurrent.Annotations.Ui;
+import com.android.dialer.common.concurrent.ThreadUtil;
+import com.android.dialer.inject.ApplicationContext;
+import com.android.dialer.logging.DialerImpression;
+import com.android.dialer.logging.Logger;
+import com.android.dialer.metrics.FutureTimer;
+import com.android.dialer.metrics.Metrics;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Starts the refreshes of the annotated call log requested through {@link
+ * RefreshAnnotatedCallLogReceiver}, coalescing bursts of requests.
+ *
+ * <p>A requested refresh is started after a wait, and requests arriving during the wait are served
+ * by the same refresh. The wait starts at {@link #MIN_WAIT_MILLIS} and doubles with every request
+ * that arrives while a refresh is pending, up to {@link #MAX_WAIT_MILLIS}, so that a long burst
+ * (for example a contact sync) is absorbed by few refreshes while a single change is still
+ * processed quickly. No refresh is postponed more than {@link #MAX_DELAY_MILLIS} after the first
+ * request it serves.
+ *
+ * <p>Requests arriving while a refresh is running are served by at most one trailing refresh,
+ * started after the running one completes.
+ */
+@Singleton
+public final class RefreshAnnotatedCallLogScheduler {
+
+  /**
+   * This is a reasonable time that it might take between related call log writes, that also
+   * shouldn't slow down single-writes too much. For example, when populating the database using the
+   * simulator, using this value results in ~6 refresh cycles (on a release build) to write 120 call
+   * log entries.
+   */
+  @VisibleForTesting static final long MIN_WAIT_MILLIS = 100L;
+
+  @VisibleForTesting static final long MAX_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+  @VisibleForTesting static final long MAX_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+  private final Context appContext;
+  private final RefreshAnnotatedCallLogWorker refreshAnnotatedCallLogWorker;
+  private final FutureTimer futureTimer;
+  private final ListeningExecutorService uiExecutor;
+
+  private final Runnable startRefreshRunnable = this::startRefresh;
+
+  private long waitMillis = MIN_WAIT_MILLIS;
+  private boolean refreshPending;
+  private boolean pendingRefreshChecksDirty;
+  private long firstPendingRequestMillis;
+  private boolean refreshInFlight;
+
+  /** How many refreshes were started, for logging. */
+  private int executedRefreshCount;
+  /** How many requests were served by a refresh which was already pending, for logging. */
+  private int suppressedRefreshCount;
+
+  @Inject
+  RefreshAnnotatedCallLogScheduler(
+      @ApplicationContext Context appContext,
+      RefreshAnnotatedCallLogWorker refreshAnnotatedCallLogWorker,
+      FutureTimer futureTimer,
+      @Ui ListeningExecutorService uiExecutor) {
+    this.appContext = appContext;
+    this.refreshAnnotatedCallLogWorker = refreshAnnotatedCallLogWorker;
+    this.futureTimer = futureTimer;
+    this.uiExecutor = uiExecutor;
+  }
+
+  /**
+   * Requests a refresh of the annotated call log.
+   *
+   * <p>If a refresh is already pending, it serves this request as well; it then skips the dirty
+   * check only if any of its requests asked for that.
+   *
+   * @param checkDirty Whether to check if the annotated call log is "dirty" before proceeding to
+   *     rebuild it.
+   */
+  @MainThread
+  public void requestRefresh(boolean checkDirty) {
+    Assert.isMainThread();
+    if (refreshPending) {
+      suppressedRefreshCount++;
+      pendingRefreshChecksDirty &= checkDirty;
+      // The burst goes on, so wait longer for it to end.
+      waitMillis = Math.min(waitMillis * 2, MAX_WAIT_MILLIS);
+    } else {
+      refreshPending = true;
+      pendingRefreshChecksDirty = checkDirty;
+      firstPendingRequestMillis = SystemClock.uptimeMillis();
+    }
+
+    if (refreshInFlight) {
+      // The pending refresh is scheduled when the refresh in flight completes.
+      return;
+    }
+    schedulePendingRefresh();
+  }
+
+  /**
+   * Cancels the pending refresh, if any. A refresh which has already started can't be cancelled.
+   */
+  @MainThread
+  public void cancel() {
+    Assert.isMainThread();
+    ThreadUtil.getUiThreadHandler().removeCallbacks(startRefreshRunnable);
+    refreshPending = false;
+    if (!refreshInFlight) {
+      waitMillis = MIN_WAIT_MILLIS;
+    }
+  }
+
+  private void schedulePendingRefresh() {
+    ThreadUtil.getUiThreadHandler().removeCallbacks(startRefreshRunnable);
+    long delayMillis =
+        Math.min(
+            waitMillis,
+            firstPendingRequestMillis + MAX_DELAY_MILLIS - SystemClock.uptimeMillis());
+    ThreadUtil.getUiThreadHandler().postDelayed(startRefreshRunnable, Math.max(0, delayMillis));
+  }
+
+  private void startRefresh() {
+    boolean checkDirty = pendingRefreshChecksDirty;
+    refreshPending = false;
+    refreshInFlight = true;
+    executedRefreshCount++;
+    LogUtil.i(
+        "RefreshAnnotatedCallLogScheduler.startRefresh",
+        "checkDirty: %b, executed: %d, suppressed: %d",
+        checkDirty,
+        executedRefreshCount,
+        suppressedRefreshCount);
+
+    ListenableFuture<RefreshResult> future =
+        checkDirty
+            ? refreshAnnotatedCallLogWorker.refreshWithDirtyCheck()
+            : refreshAnnotatedCallLogWorker.refreshWithoutDirtyCheck();
+    Futures.addCallback(
+        future,
+        new FutureCallback<RefreshResult>() {
+          @Override
+          public void onSuccess(RefreshResult refreshResult) {
+            Logger.get(appContext).logImpression(getImpressionType(checkDirty, refreshResult));
+          }
+
+          @Override
+          public void onFailure(Throwable throwable) {
+            ThreadUtil.getUiThreadHandler()
+                .post(
+                    () -> {
+                      throw new RuntimeException(throwable);
+                    });
+          }
+        },
+        MoreExecutors.directExecutor());
+    futureTimer.applyTiming(future, new EventNameFromResultFunction(checkDirty));
+    future.addListener(this::onRefreshFinished, uiExecutor);
+  }
+
+  private void onRefreshFinished() {
+    refreshInFlight = false;
+    if (refreshPending) {
+      // The single trailing refresh for all requests received while the refresh was running.
+      schedulePendingRefresh();
+    } else {
+      waitMillis = MIN_WAIT_MILLIS;
+    }
+  }
+
+  private static class EventNameFromResultFunction implements Function<RefreshResult, String> {
+
+    private final boolean checkDirty;
+
+    private EventNameFromResultFunction(boolean checkDirty) {
+      this.checkDirty = checkDirty;
+    }
+
+    @Override
+    public String apply(RefreshResult refreshResult) {
+      switch (refreshResult) {
+        case NOT_DIRTY:
+          return Metrics.ANNOTATED_CALL_LOG_NOT_DIRTY; // NOT_DIRTY implies forceRefresh is false
+        case REBUILT_BUT_NO_CHANGES_NEEDED:
+          return checkDirty
+              ? Metrics.ANNOTATED_LOG_NO_CHANGES_NEEDED
+              : Metrics.NEW_CALL_LOG_FORCE_REFRESH_NO_CHANGES_NEEDED;
+        case REBUILT_AND_CHANGES_NEEDED:
+          return checkDirty
+              ? Metrics.ANNOTATED_CALL_LOG_CHANGES_NEEDED
+              : Metrics.ANNOTATED_CALL_LOG_FORCE_REFRESH_CHANGES_NEEDED;
+        default:
+          throw new IllegalStateException("Unsupported result: " + refreshResult);
+      }
+    }
+  }
+
+  private static DialerImpression.Type getImpressionType(
+      boolean checkDirty, RefreshResult refreshResult) {
+    switch (refreshResult) {
+      case NOT_DIRTY:
+        return DialerImpression.Type.ANNOTATED_CALL_LOG_NOT_DIRTY;
+      case REBUILT_BUT_NO_CHANGES_NEEDED:
+        return checkDirty
+            ? DialerImpression.Type.ANNOTATED_CALL_LOG_NO_CHANGES_NEEDED
+            : DialerImpression.Type.ANNOTATED_CALL_LOG_FORCE_REFRESH_NO_CHANGES_NEEDED;
+      case REBUILT_AND_CHANGES_NEEDED:
+        return checkDirty
+            ? DialerImpression.Type.ANNOTATED_CALL_LOG_CHANGES_NEEDED
+            : DialerImpression.Type.ANNOTATED_CALL_LOG_FORCE_REFRESH_CHANGES_NEEDED;
+      default:
+        throw new IllegalStateException("Unsupported result: " + refreshResult);
+    }
+  }
+}
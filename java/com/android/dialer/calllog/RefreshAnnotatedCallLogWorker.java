@@ -179,21 +179,14 @@ public class RefreshAnnotatedCallLogWorker {
     String systemEventName = eventNameForFill(systemCallLogDataSource, isBuilt);
     futureTimer.applyTiming(fillFuture, systemEventName);
 
-    // After the system call log data source is filled, call fill sequentially on each remaining
-    // data source. This must be done sequentially because mutations are not threadsafe and are
-    // passed from source to source.
-    for (CallLogDataSource dataSource : dataSources.getDataSourcesExcludingSystemCallLog()) {
-      fillFuture =
-          Futures.transformAsync(
-              fillFuture,
-              unused -> {
-                ListenableFuture<Void> dataSourceFuture = dataSource.fill(mutations);
-                String eventName = eventNameForFill(dataSource, isBuilt);
-                futureTimer.applyTiming(dataSourceFuture, eventName);
-                return dataSourceFuture;
-              },
-              lightweightExecutorService);
-    }
+    // After the system call log data source is filled, fill the remaining data sources in
+    // parallel. Mutations are not threadsafe, so the first data source fills the mutations and each
+    // other data source fills its own copy, which is merged back in data source order afterwards.
+    fillFuture =
+        Futures.transformAsync(
+            fillFuture,
+            unused -> fillRemainingDataSources(mutations, isBuilt),
+            backgroundExecutorService);
 
     futureTimer.applyTiming(fillFuture, eventNameForOverallFill(isBuilt));
 
@@ -250,6 +243,46 @@ public class RefreshAnnotatedCallLogWorker {
         backgroundExecutorService);
   }
 
+  /**
+   * Fills the data sources other than the system call log in parallel.
+   *
+   * <p>The copies for all but the first data source are made before any of them starts filling, and
+   * merging them in order gives the same mutations as filling the data sources one after another,
+   * since each data source only modifies the columns it is responsible for.
+   */
+  private ListenableFuture<Void> fillRemainingDataSources(
+      CallLogMutations mutations, boolean isBuilt) {
+    List<CallLogDataSource> remainingDataSources =
+        dataSources.getDataSourcesExcludingSystemCallLog();
+    if (remainingDataSources.isEmpty()) {
+      return Futures.immediateFuture(null);
+    }
+
+    List<CallLogMutations> copies = new ArrayList<>();
+    for (int i = 1; i < remainingDataSources.size(); i++) {
+      copies.add(mutations.copy());
+    }
+
+    List<ListenableFuture<Void>> dataSourceFutures = new ArrayList<>();
+    for (int i = 0; i < remainingDataSources.size(); i++) {
+      CallLogDataSource dataSource = remainingDataSources.get(i);
+      ListenableFuture<Void> dataSourceFuture =
+          dataSource.fill(i == 0 ? mutations : copies.get(i - 1));
+      futureTimer.applyTiming(dataSourceFuture, eventNameForFill(dataSource, isBuilt));
+      dataSourceFutures.add(dataSourceFuture);
+    }
+
+    return Futures.whenAllSucceed(dataSourceFutures)
+        .call(
+            () -> {
+              for (CallLogMutations copy : copies) {
+                mutations.merge(copy);
+              }
+              return null;
+            },
+            backgroundExecutorService);
+  }
+
   private static String eventNameForFill(CallLogDataSource dataSource, boolean isBuilt) {
     return String.format(
         !isBuilt ? Metrics.INITIAL_FILL_TEMPLATE : Metrics.FILL_TEMPLATE,
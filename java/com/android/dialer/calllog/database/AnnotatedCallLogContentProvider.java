@@ -24,11 +24,15 @@ import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.ArrayMap;
 import com.android.dialer.calllog.database.AnnotatedCallLogConstraints.Operation;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
@@ -36,6 +40,7 @@ import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Map;
 
 /** {@link ContentProvider} for the annotated call log. */
 public class AnnotatedCallLogContentProvider extends ContentProvider {
@@ -187,6 +192,82 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
     return insertedUri;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Note: The rows are inserted in a single transaction through compiled statements, one for
+   * each set of columns, and a single notification for the content URI is generated unless {@link
+   * AnnotatedCallLogContract#SUPPRESS_NOTIFICATION} is set. Every row must specify an _ID, and
+   * replaces the row with the same _ID if there is one, so that inserting rows again after a
+   * partially applied refresh doesn't fail.
+   */
+  @Override
+  public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+    int match = uriMatcher.match(uri);
+    switch (match) {
+      case ANNOTATED_CALL_LOG_TABLE_CODE:
+        break;
+      case ANNOTATED_CALL_LOG_TABLE_ID_CODE:
+      case ANNOTATED_CALL_LOG_TABLE_DISTINCT_NUMBER_CODE:
+        throw new UnsupportedOperationException();
+      default:
+        throw new IllegalArgumentException("Unknown uri: " + uri);
+    }
+    if (values.length == 0) {
+      return 0;
+    }
+
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    Map<String, SQLiteStatement> insertStatements = new ArrayMap<>();
+    int rows = 0;
+    database.beginTransaction();
+    try {
+      for (ContentValues contentValues : values) {
+        AnnotatedCallLogConstraints.check(contentValues, Operation.INSERT);
+        Assert.checkArgument(
+            contentValues.get(AnnotatedCallLog._ID) != null,
+            "You must specify an _ID when inserting");
+
+        String[] columns = contentValues.keySet().toArray(new String[0]);
+        Arrays.sort(columns);
+        String columnList = TextUtils.join(",", columns);
+        SQLiteStatement insertStatement = insertStatements.get(columnList);
+        if (insertStatement == null) {
+          String[] questionMarks = new String[columns.length];
+          Arrays.fill(questionMarks, "?");
+          insertStatement =
+              database.compileStatement(
+                  "INSERT OR REPLACE INTO "
+                      + AnnotatedCallLog.TABLE
+                      + " ("
+                      + columnList
+                      + ") VALUES ("
+                      + TextUtils.join(",", questionMarks)
+                      + ")");
+          insertStatements.put(columnList, insertStatement);
+        }
+
+        insertStatement.clearBindings();
+        for (int i = 0; i < columns.length; i++) {
+          DatabaseUtils.bindObjectToProgram(insertStatement, i + 1, contentValues.get(columns[i]));
+        }
+        // Throws if the row can't be inserted, which rolls back the whole transaction.
+        insertStatement.executeInsert();
+        rows++;
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+      for (SQLiteStatement insertStatement : insertStatements.values()) {
+        insertStatement.close();
+      }
+    }
+    if (rows > 0 && !isNotificationSuppressed(uri)) {
+      notifyChange(AnnotatedCallLog.CONTENT_URI);
+    }
+    return rows;
+  }
+
   @Override
   public int delete(
       @NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
@@ -270,7 +351,8 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
    * {@inheritDoc}
    *
    * <p>Note: When applyBatch is used with the AnnotatedCallLog, only a single notification for the
-   * content URI is generated, not individual notifications for each affected URI.
+   * content URI is generated, not individual notifications for each affected URI. No notification
+   * is generated if all operations set {@link AnnotatedCallLogContract#SUPPRESS_NOTIFICATION}.
    */
   @NonNull
   @Override
@@ -281,6 +363,7 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
       return results;
     }
 
+    boolean shouldNotify = false;
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     try {
       applyingBatch.set(true);
@@ -298,6 +381,7 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
           default:
             throw new IllegalArgumentException("Unknown uri: " + operation.getUri());
         }
+        shouldNotify |= !isNotificationSuppressed(operation.getUri());
         ContentProviderResult result = operation.apply(this, results, i);
         if (operations.get(i).isInsert()) {
           if (result.uri == null) {
@@ -327,10 +411,17 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
       applyingBatch.set(false);
       database.endTransaction();
     }
-    notifyChange(AnnotatedCallLog.CONTENT_URI);
+    if (shouldNotify) {
+      notifyChange(AnnotatedCallLog.CONTENT_URI);
+    }
     return results;
   }
 
+  private static boolean isNotificationSuppressed(Uri uri) {
+    return Boolean.parseBoolean(
+        uri.getQueryParameter(AnnotatedCallLogContract.SUPPRESS_NOTIFICATION));
+  }
+
   private String getSelectionWithId(long id) {
     return AnnotatedCallLog._ID + "=" + id;
   }
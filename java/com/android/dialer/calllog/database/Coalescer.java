@@ -16,9 +16,11 @@
 package com.android.dialer.calllog.database;
 
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.StaleDataException;
 import android.provider.CallLog.Calls;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.WorkerThread;
 import android.telecom.PhoneAccountHandle;
 import android.text.TextUtils;
@@ -35,15 +37,34 @@ import com.android.dialer.metrics.Metrics;
 import com.android.dialer.phonenumberproto.DialerPhoneNumberUtil;
 import com.android.dialer.telecom.TelecomUtil;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.InvalidProtocolBufferException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.inject.Inject;
 
 /** Combines adjacent rows in {@link AnnotatedCallLog}. */
 public class Coalescer {
 
+  /** Number of coalesced rows in the first page, which is enough to fill the first screen. */
+  private static final int FIRST_PAGE_SIZE = 20;
+
+  /** Call logs with fewer rows after the first page than this are not coalesced in parallel. */
+  private static final int MIN_CHUNK_SIZE = 250;
+
+  /** The background executor has five threads; one of them copies the chunks. */
+  private static final int MAX_CHUNK_COUNT = 4;
+
   private final FutureTimer futureTimer;
   private final ListeningExecutorService backgroundExecutorService;
 
@@ -66,55 +87,116 @@ public class Coalescer {
    */
   public ListenableFuture<ImmutableList<CoalescedRow>> coalesce(
       @NonNull Cursor allAnnotatedCallLogRowsSortedByTimestampDesc) {
-    ListenableFuture<ImmutableList<CoalescedRow>> coalescingFuture =
-        backgroundExecutorService.submit(
-            () -> coalesceInternal(Assert.isNotNull(allAnnotatedCallLogRowsSortedByTimestampDesc)));
-    futureTimer.applyTiming(coalescingFuture, Metrics.NEW_CALL_LOG_COALESCE);
-    return coalescingFuture;
+    return coalesceInPages(allAnnotatedCallLogRowsSortedByTimestampDesc).allRows();
   }
 
   /**
-   * Reads the entire {@link AnnotatedCallLog} into memory from the provided cursor and then builds
-   * and returns a list of {@link CoalescedRow coalesced rows}, which is the result of combining
-   * adjacent rows which should be collapsed for display purposes.
+   * Same as {@link #coalesce(Cursor)}, but also provides the first page of {@link CoalescedRow
+   * coalesced rows} as soon as it is ready so that the first screen of the call log can be shown
+   * before the rest of the rows are coalesced.
+   *
+   * <p>After the first page, a long call log is copied into chunks which are coalesced in parallel
+   * and stitched together at the chunk boundaries.
+   */
+  public PagedCoalescedRows coalesceInPages(
+      @NonNull Cursor allAnnotatedCallLogRowsSortedByTimestampDesc) {
+    SettableFuture<ImmutableList<CoalescedRow>> firstPageFuture = SettableFuture.create();
+    ListenableFuture<ImmutableList<CoalescedRow>> allRowsFuture =
+        Futures.submitAsync(
+            () ->
+                coalesceInternal(
+                    Assert.isNotNull(allAnnotatedCallLogRowsSortedByTimestampDesc),
+                    firstPageFuture),
+            backgroundExecutorService);
+    Futures.addCallback(
+        allRowsFuture,
+        new FutureCallback<ImmutableList<CoalescedRow>>() {
+          @Override
+          public void onSuccess(ImmutableList<CoalescedRow> allRows) {}
+
+          @Override
+          public void onFailure(Throwable throwable) {
+            // Has no effect if the first page was coalesced before the failure.
+            firstPageFuture.setException(throwable);
+          }
+        },
+        MoreExecutors.directExecutor());
+    futureTimer.applyTiming(firstPageFuture, Metrics.NEW_CALL_LOG_COALESCE_FIRST_PAGE);
+    futureTimer.applyTiming(allRowsFuture, Metrics.NEW_CALL_LOG_COALESCE);
+    return new PagedCoalescedRows(firstPageFuture, allRowsFuture);
+  }
+
+  /**
+   * Coalesces the first page of {@link CoalescedRow coalesced rows} from the provided cursor and
+   * sets it on {@code firstPageFuture}. The rest of the rows are either coalesced right away or, if
+   * there are enough of them, copied into chunks which are coalesced in parallel.
    *
    * @param allAnnotatedCallLogRowsSortedByTimestampDesc {@link AnnotatedCallLog} rows sorted in
    *     descending order of timestamp.
-   * @return a list of {@link CoalescedRow coalesced rows}, which will be used to display call log
-   *     entries.
+   * @return a future of the list of all {@link CoalescedRow coalesced rows}, which will be used to
+   *     display call log entries.
    */
   @WorkerThread
   @NonNull
-  private ImmutableList<CoalescedRow> coalesceInternal(
-      Cursor allAnnotatedCallLogRowsSortedByTimestampDesc) throws ExpectedCoalescerException {
+  private ListenableFuture<ImmutableList<CoalescedRow>> coalesceInternal(
+      Cursor allAnnotatedCallLogRowsSortedByTimestampDesc,
+      SettableFuture<ImmutableList<CoalescedRow>> firstPageFuture)
+      throws ExpectedCoalescerException {
     Assert.isWorkerThread();
 
-    ImmutableList.Builder<CoalescedRow> coalescedRowListBuilder = new ImmutableList.Builder<>();
-
     try {
-      if (!allAnnotatedCallLogRowsSortedByTimestampDesc.moveToFirst()) {
-        return ImmutableList.of();
+      Cursor cursor = allAnnotatedCallLogRowsSortedByTimestampDesc;
+      if (!cursor.moveToFirst()) {
+        firstPageFuture.set(ImmutableList.of());
+        return Futures.immediateFuture(ImmutableList.of());
       }
 
-      RowCombiner rowCombiner = new RowCombiner(allAnnotatedCallLogRowsSortedByTimestampDesc);
+      NumberCache numberCache = new NumberCache();
+      RowCombiner rowCombiner = new RowCombiner(cursor, numberCache);
       rowCombiner.startNewGroup();
 
-      long coalescedRowId = 0;
-      do {
-        boolean isRowMerged = rowCombiner.mergeRow(allAnnotatedCallLogRowsSortedByTimestampDesc);
-
-        if (isRowMerged) {
-          allAnnotatedCallLogRowsSortedByTimestampDesc.moveToNext();
-        }
+      List<CoalescedRow> firstPage = new ArrayList<>();
+      coalesceRows(rowCombiner, cursor, firstPage, /* groupStarts = */ null, FIRST_PAGE_SIZE);
+      if (cursor.isAfterLast()) {
+        firstPage.add(rowCombiner.combine());
+        ImmutableList<CoalescedRow> allRows = assignIds(firstPage, /* firstId = */ 0);
+        firstPageFuture.set(allRows);
+        return Futures.immediateFuture(allRows);
+      }
+      ImmutableList<CoalescedRow> firstPageWithIds = assignIds(firstPage, /* firstId = */ 0);
+      firstPageFuture.set(firstPageWithIds);
+
+      // The cursor is now at the first row of the group following the first page.
+      int remainingRowCount = cursor.getCount() - cursor.getPosition();
+      int chunkCount = Math.min(MAX_CHUNK_COUNT, remainingRowCount / MIN_CHUNK_SIZE);
+      if (chunkCount < 2) {
+        List<CoalescedRow> remainingRows = new ArrayList<>();
+        coalesceRows(
+            rowCombiner, cursor, remainingRows, /* groupStarts = */ null, Integer.MAX_VALUE);
+        remainingRows.add(rowCombiner.combine());
+        return Futures.immediateFuture(
+            concat(firstPageWithIds, assignIds(remainingRows, firstPageWithIds.size())));
+      }
 
-        if (!isRowMerged || allAnnotatedCallLogRowsSortedByTimestampDesc.isAfterLast()) {
-          coalescedRowListBuilder.add(
-              rowCombiner.combine().toBuilder().setId(coalescedRowId++).build());
-          rowCombiner.startNewGroup();
+      // Chunks are submitted as soon as they are copied, so that they are coalesced while the
+      // following chunks are still being read.
+      int chunkSize = (remainingRowCount + chunkCount - 1) / chunkCount;
+      List<ListenableFuture<Chunk>> chunkFutures = new ArrayList<>(chunkCount);
+      String[] columnNames = cursor.getColumnNames();
+      while (!cursor.isAfterLast()) {
+        MatrixCursor chunkRows = new MatrixCursor(columnNames, chunkSize);
+        for (int i = 0; i < chunkSize && !cursor.isAfterLast(); i++) {
+          chunkRows.addRow(copyRow(cursor));
+          cursor.moveToNext();
         }
-      } while (!allAnnotatedCallLogRowsSortedByTimestampDesc.isAfterLast());
-
-      return coalescedRowListBuilder.build();
+        chunkFutures.add(
+            backgroundExecutorService.submit(() -> coalesceChunk(chunkRows, numberCache)));
+      }
+      return Futures.transform(
+          Futures.allAsList(chunkFutures),
+          chunks ->
+              concat(firstPageWithIds, stitchChunks(chunks, /* firstId = */ firstPage.size())),
+          backgroundExecutorService);
 
     } catch (Exception exception) {
       // Coalescing can fail if cursor "allAnnotatedCallLogRowsSortedByTimestampDesc" is closed by
@@ -154,6 +236,177 @@ public class Coalescer {
     }
   }
 
+  /**
+   * Merges rows starting at the current position of {@code rows} until either {@code
+   * maxCoalescedRows} coalesced rows have been added to {@code coalescedRows} or there are no more
+   * rows.
+   *
+   * <p>In the first case, the cursor is left at the first row of the next group. In the second
+   * case, the last group is left in {@code rowCombiner} so that rows from another cursor can still
+   * be merged into it; call {@link RowCombiner#combine()} to complete it.
+   *
+   * @param groupStarts if not null, the position of the first row of every group started after the
+   *     first one is added to it
+   */
+  private static void coalesceRows(
+      RowCombiner rowCombiner,
+      Cursor rows,
+      List<CoalescedRow> coalescedRows,
+      @Nullable List<Integer> groupStarts,
+      int maxCoalescedRows) {
+    int coalescedRowCount = 0;
+    while (!rows.isAfterLast() && coalescedRowCount < maxCoalescedRows) {
+      if (rowCombiner.mergeRow(rows)) {
+        rows.moveToNext();
+      } else {
+        coalescedRows.add(rowCombiner.combine());
+        coalescedRowCount++;
+        rowCombiner.startNewGroup();
+        if (groupStarts != null) {
+          groupStarts.add(rows.getPosition());
+        }
+      }
+    }
+  }
+
+  /** Coalesces the rows of a chunk as if the chunk was the whole call log. */
+  @WorkerThread
+  private static Chunk coalesceChunk(Cursor rows, NumberCache numberCache) {
+    Assert.isWorkerThread();
+    rows.moveToFirst();
+    Chunk chunk = new Chunk(rows, new RowCombiner(rows, numberCache));
+    chunk.rowCombiner.startNewGroup();
+    chunk.groupStarts.add(0);
+    coalesceRows(
+        chunk.rowCombiner, rows, chunk.coalescedRows, chunk.groupStarts, Integer.MAX_VALUE);
+    return chunk;
+  }
+
+  /**
+   * Joins coalesced chunks into the list of {@link CoalescedRow coalesced rows} that coalescing all
+   * of their rows in order would have produced.
+   *
+   * <p>The last group of a chunk may continue into the next chunk. Its rows are merged with the
+   * leading rows of the next chunk until one can't be merged. If that row started a group when the
+   * next chunk was coalesced on its own, the rest of the next chunk can be used as it is; otherwise
+   * the rest of the next chunk is coalesced again.
+   */
+  @WorkerThread
+  private static ImmutableList<CoalescedRow> stitchChunks(List<Chunk> chunks, long firstId) {
+    Assert.isWorkerThread();
+    List<CoalescedRow> coalescedRows = new ArrayList<>();
+    RowCombiner openGroup = chunks.get(0).rowCombiner;
+    coalescedRows.addAll(chunks.get(0).coalescedRows);
+
+    for (Chunk chunk : chunks.subList(1, chunks.size())) {
+      Cursor rows = chunk.rows;
+      rows.moveToFirst();
+      while (!rows.isAfterLast() && openGroup.mergeRow(rows)) {
+        rows.moveToNext();
+      }
+      if (rows.isAfterLast()) {
+        // The whole chunk belongs to the last group of the previous chunk.
+        continue;
+      }
+      coalescedRows.add(openGroup.combine());
+
+      int groupIndex = Collections.binarySearch(chunk.groupStarts, rows.getPosition());
+      if (groupIndex >= 0) {
+        coalescedRows.addAll(
+            chunk.coalescedRows.subList(groupIndex, chunk.coalescedRows.size()));
+        openGroup = chunk.rowCombiner;
+      } else {
+        openGroup.startNewGroup();
+        coalesceRows(
+            openGroup, rows, coalescedRows, /* groupStarts = */ null, Integer.MAX_VALUE);
+      }
+    }
+    coalescedRows.add(openGroup.combine());
+    return assignIds(coalescedRows, firstId);
+  }
+
+  private static ImmutableList<CoalescedRow> assignIds(
+      List<CoalescedRow> coalescedRows, long firstId) {
+    ImmutableList.Builder<CoalescedRow> coalescedRowListBuilder = new ImmutableList.Builder<>();
+    long coalescedRowId = firstId;
+    for (CoalescedRow coalescedRow : coalescedRows) {
+      coalescedRowListBuilder.add(coalescedRow.toBuilder().setId(coalescedRowId++).build());
+    }
+    return coalescedRowListBuilder.build();
+  }
+
+  private static ImmutableList<CoalescedRow> concat(
+      ImmutableList<CoalescedRow> first, ImmutableList<CoalescedRow> second) {
+    return new ImmutableList.Builder<CoalescedRow>().addAll(first).addAll(second).build();
+  }
+
+  private static Object[] copyRow(Cursor cursor) {
+    Object[] row = new Object[cursor.getColumnCount()];
+    for (int column = 0; column < row.length; column++) {
+      switch (cursor.getType(column)) {
+        case Cursor.FIELD_TYPE_INTEGER:
+          row[column] = cursor.getLong(column);
+          break;
+        case Cursor.FIELD_TYPE_FLOAT:
+          row[column] = cursor.getDouble(column);
+          break;
+        case Cursor.FIELD_TYPE_STRING:
+          row[column] = cursor.getString(column);
+          break;
+        case Cursor.FIELD_TYPE_BLOB:
+          row[column] = cursor.getBlob(column);
+          break;
+        default:
+          row[column] = null;
+      }
+    }
+    return row;
+  }
+
+  /** The first page and all of the {@link CoalescedRow coalesced rows} of the call log. */
+  public static final class PagedCoalescedRows {
+    private final ListenableFuture<ImmutableList<CoalescedRow>> firstPage;
+    private final ListenableFuture<ImmutableList<CoalescedRow>> allRows;
+
+    PagedCoalescedRows(
+        ListenableFuture<ImmutableList<CoalescedRow>> firstPage,
+        ListenableFuture<ImmutableList<CoalescedRow>> allRows) {
+      this.firstPage = firstPage;
+      this.allRows = allRows;
+    }
+
+    /**
+     * Completes with the first {@link CoalescedRow coalesced rows}, or with all of them if the call
+     * log fits on the first page. Fails if coalescing fails before the first page is ready.
+     */
+    public ListenableFuture<ImmutableList<CoalescedRow>> firstPage() {
+      return firstPage;
+    }
+
+    /** Completes with all {@link CoalescedRow coalesced rows}; the first page is a prefix of it. */
+    public ListenableFuture<ImmutableList<CoalescedRow>> allRows() {
+      return allRows;
+    }
+  }
+
+  /**
+   * Rows of the call log copied out of the cursor, with the coalesced rows of all of its groups but
+   * the last one, which stays open in {@link #rowCombiner}.
+   */
+  private static final class Chunk {
+    private final Cursor rows;
+    private final RowCombiner rowCombiner;
+    private final List<CoalescedRow> coalescedRows = new ArrayList<>();
+    // Position of the first row of every group, so that groupStarts.get(i) is the first row of
+    // coalescedRows.get(i) and the last element is the first row of the open group.
+    private final List<Integer> groupStarts = new ArrayList<>();
+
+    Chunk(Cursor rows, RowCombiner rowCombiner) {
+      this.rows = rows;
+      this.rowCombiner = rowCombiner;
+    }
+  }
+
   /** Combines rows from {@link AnnotatedCallLog} into a {@link CoalescedRow}. */
   private static final class RowCombiner {
     private final CoalescedRow.Builder coalescedRowBuilder = CoalescedRow.newBuilder();
@@ -176,10 +429,16 @@ public class Coalescer {
     private final int voicemailCallTagColumn;
     private final int callTypeColumn;
 
+    private final NumberCache numberCache;
+
     // DialerPhoneNumberUtil will be created lazily as its instantiation is expensive.
     private DialerPhoneNumberUtil dialerPhoneNumberUtil = null;
 
-    RowCombiner(Cursor annotatedCallLogRow) {
+    // The number of the most recent row in the current group.
+    private ParsedNumber groupNumber = null;
+
+    RowCombiner(Cursor annotatedCallLogRow, NumberCache numberCache) {
+      this.numberCache = numberCache;
       idColumn = annotatedCallLogRow.getColumnIndexOrThrow(AnnotatedCallLog._ID);
       timestampColumn = annotatedCallLogRow.getColumnIndexOrThrow(AnnotatedCallLog.TIMESTAMP);
       numberColumn = annotatedCallLogRow.getColumnIndexOrThrow(AnnotatedCallLog.NUMBER);
@@ -212,6 +471,7 @@ public class Coalescer {
     void startNewGroup() {
       coalescedRowBuilder.clear();
       coalescedIdsBuilder.clear();
+      groupNumber = null;
     }
 
     /**
@@ -255,8 +515,8 @@ public class Coalescer {
       // Two different DialerPhoneNumbers could be combined if they are different but considered
       // to be a match by libphonenumber; in this case we arbitrarily select the most recent one.
       try {
-        coalescedRowBuilder.setNumber(
-            DialerPhoneNumber.parseFrom(annotatedCallLogRow.getBlob(numberColumn)));
+        groupNumber = numberCache.getNumber(annotatedCallLogRow.getBlob(numberColumn));
+        coalescedRowBuilder.setNumber(groupNumber.number);
       } catch (InvalidProtocolBufferException e) {
         throw Assert.createAssertionFailException("Unable to parse DialerPhoneNumber bytes", e);
       }
@@ -356,24 +616,78 @@ public class Coalescer {
     }
 
     private boolean meetsDialerPhoneNumberCriteria(Cursor annotatedCallLogRow) {
-      DialerPhoneNumber groupPhoneNumber = coalescedRowBuilder.getNumber();
-
-      DialerPhoneNumber rowPhoneNumber;
+      ParsedNumber rowNumber;
       try {
         byte[] rowPhoneNumberBytes = annotatedCallLogRow.getBlob(numberColumn);
         if (rowPhoneNumberBytes == null) {
           return false; // Empty numbers should not be combined.
         }
-        rowPhoneNumber = DialerPhoneNumber.parseFrom(rowPhoneNumberBytes);
+        rowNumber = numberCache.getNumber(rowPhoneNumberBytes);
       } catch (InvalidProtocolBufferException e) {
         throw Assert.createAssertionFailException("Unable to parse DialerPhoneNumber bytes", e);
       }
 
-      if (dialerPhoneNumberUtil == null) {
-        dialerPhoneNumberUtil = new DialerPhoneNumberUtil();
+      Boolean isMatch = numberCache.getMatch(groupNumber, rowNumber);
+      if (isMatch == null) {
+        if (dialerPhoneNumberUtil == null) {
+          dialerPhoneNumberUtil = new DialerPhoneNumberUtil();
+        }
+        isMatch = dialerPhoneNumberUtil.isMatch(groupNumber.number, rowNumber.number);
+        numberCache.putMatch(groupNumber, rowNumber, isMatch);
+      }
+      return isMatch;
+    }
+  }
+
+  /** A {@link DialerPhoneNumber} parsed by {@link NumberCache}, identified by a small integer. */
+  private static final class ParsedNumber {
+    private final int id;
+    private final DialerPhoneNumber number;
+
+    ParsedNumber(int id, DialerPhoneNumber number) {
+      this.id = id;
+      this.number = number;
+    }
+  }
+
+  /**
+   * Parsed {@link DialerPhoneNumber DialerPhoneNumbers} and the results of matching them, shared by
+   * all {@link RowCombiner RowCombiners} of one coalescing pass.
+   *
+   * <p>A call log usually has few distinct numbers which appear in many rows, so each distinct
+   * number blob is parsed once and each pair of distinct numbers is only matched by libphonenumber
+   * the first time it is seen.
+   */
+  private static final class NumberCache {
+    private final ConcurrentHashMap<ByteBuffer, ParsedNumber> numbers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Boolean> matches = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    ParsedNumber getNumber(byte[] numberBytes) throws InvalidProtocolBufferException {
+      ByteBuffer key = ByteBuffer.wrap(numberBytes);
+      ParsedNumber parsedNumber = numbers.get(key);
+      if (parsedNumber == null) {
+        parsedNumber =
+            new ParsedNumber(nextId.getAndIncrement(), DialerPhoneNumber.parseFrom(numberBytes));
+        ParsedNumber existing = numbers.putIfAbsent(key, parsedNumber);
+        if (existing != null) {
+          parsedNumber = existing;
+        }
       }
+      return parsedNumber;
+    }
+
+    @Nullable
+    Boolean getMatch(ParsedNumber groupNumber, ParsedNumber rowNumber) {
+      return matches.get(matchKey(groupNumber, rowNumber));
+    }
+
+    void putMatch(ParsedNumber groupNumber, ParsedNumber rowNumber, boolean isMatch) {
+      matches.put(matchKey(groupNumber, rowNumber), isMatch);
+    }
 
-      return dialerPhoneNumberUtil.isMatch(groupPhoneNumber, rowPhoneNumber);
+    private static long matchKey(ParsedNumber groupNumber, ParsedNumber rowNumber) {
+      return ((long) groupNumber.id << 32) | (rowNumber.id & 0xffffffffL);
     }
   }
 
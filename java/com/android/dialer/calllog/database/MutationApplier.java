@@ -20,7 +20,10 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
+import android.net.Uri;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
 import android.support.annotation.WorkerThread;
 import android.text.TextUtils;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract;
@@ -29,31 +32,77 @@ import com.android.dialer.calllog.datasources.CallLogMutations;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.common.concurrent.Annotations.BackgroundExecutor;
+import com.android.dialer.configprovider.ConfigProvider;
+import com.android.dialer.metrics.FutureTimer;
+import com.android.dialer.metrics.Metrics;
 import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 import javax.inject.Inject;
 
 /** Applies {@link CallLogMutations} to the annotated call log. */
 public class MutationApplier {
 
+  /**
+   * Maximum number of rows inserted, updated or deleted in a single transaction. The mutations are
+   * applied in one transaction if this is not positive.
+   */
+  @VisibleForTesting
+  static final String CHUNK_SIZE_KEY = "annotated_call_log_mutation_chunk_size";
+
+  private static final long DEFAULT_CHUNK_SIZE = 250;
+
+  /** The maximum number of selection args in a SQLite statement. */
+  private static final int MAX_SELECTION_ARGS = 999;
+
+  /** URI used by chunks, which don't notify observers as they are notified once at the end. */
+  private static final Uri CHUNK_CONTENT_URI =
+      AnnotatedCallLog.CONTENT_URI
+          .buildUpon()
+          .appendQueryParameter(AnnotatedCallLogContract.SUPPRESS_NOTIFICATION, "true")
+          .build();
+
   private final ListeningExecutorService backgroundExecutorService;
+  private final FutureTimer futureTimer;
+  private final ConfigProvider configProvider;
 
   @Inject
-  public MutationApplier(@BackgroundExecutor ListeningExecutorService backgroundExecutorService) {
+  public MutationApplier(
+      @BackgroundExecutor ListeningExecutorService backgroundExecutorService,
+      FutureTimer futureTimer,
+      ConfigProvider configProvider) {
     this.backgroundExecutorService = backgroundExecutorService;
+    this.futureTimer = futureTimer;
+    this.configProvider = configProvider;
   }
 
-  /** Applies the provided {@link CallLogMutations} to the annotated call log. */
+  /**
+   * Applies the provided {@link CallLogMutations} to the annotated call log.
+   *
+   * <p>Unless disabled by {@link #CHUNK_SIZE_KEY}, the mutations are applied in chunks, each in its
+   * own transaction and background task, so that a large rebuild doesn't keep readers of the
+   * annotated call log waiting on the database lock until it is done. Observers of the annotated
+   * call log are notified once, after the last chunk.
+   *
+   * <p>Chunks are idempotent: inserts replace existing rows with the same ID, and updates and
+   * deletes of missing rows succeed. If a chunk fails, the chunks before it stay committed and the
+   * next refresh, which computes the same mutations again, completes them.
+   */
   public ListenableFuture<Void> applyToDatabase(CallLogMutations mutations, Context appContext) {
     if (mutations.isEmpty()) {
       return Futures.immediateFuture(null);
     }
+    long chunkSize = configProvider.getLong(CHUNK_SIZE_KEY, DEFAULT_CHUNK_SIZE);
+    if (chunkSize > 0) {
+      return applyToDatabaseInChunks(mutations, appContext, (int) chunkSize);
+    }
     return backgroundExecutorService.submit(
         () -> {
           applyToDatabaseInternal(mutations, appContext);
@@ -61,6 +110,107 @@ public class MutationApplier {
         });
   }
 
+  private ListenableFuture<Void> applyToDatabaseInChunks(
+      CallLogMutations mutations, Context appContext, int chunkSize) {
+    List<Callable<Integer>> chunks = new ArrayList<>();
+
+    // Inserts, updates and deletes are applied in the same order as applyToDatabaseInternal does.
+    for (List<Entry<Long, ContentValues>> entries :
+        Iterables.partition(mutations.getInserts().entrySet(), chunkSize)) {
+      chunks.add(() -> insertChunk(entries, appContext));
+    }
+    for (List<Entry<Long, ContentValues>> entries :
+        Iterables.partition(mutations.getUpdates().entrySet(), chunkSize)) {
+      chunks.add(() -> updateChunk(entries, appContext));
+    }
+    for (List<Long> ids :
+        Iterables.partition(mutations.getDeletes(), Math.min(chunkSize, MAX_SELECTION_ARGS))) {
+      chunks.add(() -> deleteChunk(ids, appContext));
+    }
+
+    long startTime = SystemClock.elapsedRealtime();
+    ListenableFuture<Integer> rowCountFuture = Futures.immediateFuture(0);
+    for (Callable<Integer> chunk : chunks) {
+      // Each chunk is submitted only after the previous one has completed, so that other work on
+      // the background executor and readers of the database can run in between.
+      rowCountFuture =
+          Futures.transformAsync(
+              rowCountFuture,
+              rowCount -> {
+                ListenableFuture<Integer> chunkFuture = backgroundExecutorService.submit(chunk);
+                futureTimer.applyTiming(chunkFuture, Metrics.APPLY_MUTATIONS_CHUNK_EVENT_NAME);
+                return Futures.transform(
+                    chunkFuture,
+                    chunkRowCount -> rowCount + chunkRowCount,
+                    MoreExecutors.directExecutor());
+              },
+              MoreExecutors.directExecutor());
+    }
+    // Also notify if a chunk failed, as the previous chunks were committed.
+    rowCountFuture.addListener(
+        () ->
+            appContext
+                .getContentResolver()
+                .notifyChange(AnnotatedCallLog.CONTENT_URI, /* observer = */ null),
+        MoreExecutors.directExecutor());
+    return Futures.transform(
+        rowCountFuture,
+        rowCount -> {
+          long elapsedMillis = Math.max(1, SystemClock.elapsedRealtime() - startTime);
+          LogUtil.i(
+              "MutationApplier.applyToDatabaseInChunks",
+              "applied %d rows in %d chunks in %dms (%d rows/s)",
+              rowCount,
+              chunks.size(),
+              elapsedMillis,
+              rowCount * 1000L / elapsedMillis);
+          return null;
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  @WorkerThread
+  private static int insertChunk(List<Entry<Long, ContentValues>> entries, Context appContext) {
+    Assert.isWorkerThread();
+    ContentValues[] valuesArray = new ContentValues[entries.size()];
+    for (int i = 0; i < valuesArray.length; i++) {
+      Entry<Long, ContentValues> entry = entries.get(i);
+      ContentValues contentValues = new ContentValues(entry.getValue());
+      contentValues.put(AnnotatedCallLog._ID, entry.getKey());
+      valuesArray[i] = contentValues;
+    }
+    LogUtil.i("MutationApplier.insertChunk", "inserting %d rows", valuesArray.length);
+    return appContext.getContentResolver().bulkInsert(CHUNK_CONTENT_URI, valuesArray);
+  }
+
+  @WorkerThread
+  private static int updateChunk(List<Entry<Long, ContentValues>> entries, Context appContext)
+      throws RemoteException, OperationApplicationException {
+    Assert.isWorkerThread();
+    ArrayList<ContentProviderOperation> operations = new ArrayList<>(entries.size());
+    for (Entry<Long, ContentValues> entry : entries) {
+      operations.add(
+          ContentProviderOperation.newUpdate(
+                  ContentUris.withAppendedId(CHUNK_CONTENT_URI, entry.getKey()))
+              .withValues(entry.getValue())
+              .build());
+    }
+    LogUtil.i("MutationApplier.updateChunk", "updating %d rows", operations.size());
+    appContext.getContentResolver().applyBatch(AnnotatedCallLogContract.AUTHORITY, operations);
+    return entries.size();
+  }
+
+  @WorkerThread
+  private static int deleteChunk(List<Long> ids, Context appContext)
+      throws RemoteException, OperationApplicationException {
+    Assert.isWorkerThread();
+    LogUtil.i("MutationApplier.deleteChunk", "deleting %d rows", ids.size());
+    ArrayList<ContentProviderOperation> operations = new ArrayList<>(1);
+    operations.add(newDeleteOperation(CHUNK_CONTENT_URI, ids));
+    appContext.getContentResolver().applyBatch(AnnotatedCallLogContract.AUTHORITY, operations);
+    return ids.size();
+  }
+
   @WorkerThread
   private void applyToDatabaseInternal(CallLogMutations mutations, Context appContext)
       throws RemoteException, OperationApplicationException {
@@ -101,27 +251,31 @@ public class MutationApplier {
           "MutationApplier.applyToDatabase", "deleting %d rows", mutations.getDeletes().size());
 
       // Batch the deletes into chunks of 999, the maximum size for SQLite selection args.
-      Iterable<List<Long>> batches = Iterables.partition(mutations.getDeletes(), 999);
+      Iterable<List<Long>> batches =
+          Iterables.partition(mutations.getDeletes(), MAX_SELECTION_ARGS);
       for (List<Long> idsInBatch : batches) {
-        String[] questionMarks = new String[idsInBatch.size()];
-        Arrays.fill(questionMarks, "?");
+        operations.add(newDeleteOperation(AnnotatedCallLog.CONTENT_URI, idsInBatch));
+      }
+    }
+
+    appContext.getContentResolver().applyBatch(AnnotatedCallLogContract.AUTHORITY, operations);
+  }
 
-        String whereClause =
-            (AnnotatedCallLog._ID + " in (") + TextUtils.join(",", questionMarks) + ")";
+  private static ContentProviderOperation newDeleteOperation(Uri uri, List<Long> ids) {
+    String[] questionMarks = new String[ids.size()];
+    Arrays.fill(questionMarks, "?");
 
-        String[] whereArgs = new String[idsInBatch.size()];
-        int i = 0;
-        for (long id : idsInBatch) {
-          whereArgs[i++] = String.valueOf(id);
-        }
+    String whereClause =
+        (AnnotatedCallLog._ID + " in (") + TextUtils.join(",", questionMarks) + ")";
 
-        operations.add(
-            ContentProviderOperation.newDelete(AnnotatedCallLog.CONTENT_URI)
-                .withSelection(whereClause, whereArgs)
-                .build());
-      }
+    String[] whereArgs = new String[ids.size()];
+    int i = 0;
+    for (long id : ids) {
+      whereArgs[i++] = String.valueOf(id);
     }
 
-    appContext.getContentResolver().applyBatch(AnnotatedCallLogContract.AUTHORITY, operations);
+    return ContentProviderOperation.newDelete(uri)
+        .withSelection(whereClause, whereArgs)
+        .build();
   }
 }
@@ -28,6 +28,13 @@ public class AnnotatedCallLogContract {
 
   public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
 
+  /**
+   * Query parameter which, when set to "true" on the URI of a bulk insert or on the URIs of all the
+   * operations of a batch, suppresses the change notification. Used by callers writing in several
+   * transactions, which notify once when they are done.
+   */
+  public static final String SUPPRESS_NOTIFICATION = "suppress_notification";
+
   /** AnnotatedCallLog table. */
   public static final class AnnotatedCallLog implements BaseColumns {
 
@@ -75,6 +75,52 @@ public final class CallLogMutations {
     deletes.add(id);
   }
 
+  /**
+   * Returns a copy of these mutations which a data source can fill independently of other data
+   * sources filling these mutations or other copies. The data source's contributions are then added
+   * back with {@link #merge(CallLogMutations)}.
+   */
+  public CallLogMutations copy() {
+    CallLogMutations copy = new CallLogMutations();
+    copy.inserts.ensureCapacity(inserts.size());
+    for (int i = 0; i < inserts.size(); i++) {
+      copy.inserts.put(inserts.keyAt(i), new ContentValues(inserts.valueAt(i)));
+    }
+    copy.updates.ensureCapacity(updates.size());
+    for (int i = 0; i < updates.size(); i++) {
+      copy.updates.put(updates.keyAt(i), new ContentValues(updates.valueAt(i)));
+    }
+    copy.deletes.addAll(deletes);
+    return copy;
+  }
+
+  /**
+   * Adds the mutations a data source filled into {@code copy}, which was obtained from {@link
+   * #copy()}, to these mutations.
+   *
+   * <p>Values in {@code copy} overwrite the values in these mutations, so merging copies in the
+   * order of their data sources gives the same result as filling these mutations with each data
+   * source in turn, as long as each data source only reads the values it doesn't write.
+   *
+   * @throws IllegalStateException if {@code copy} contains an insert these mutations don't contain
+   */
+  public void merge(CallLogMutations copy) {
+    for (int i = 0; i < copy.inserts.size(); i++) {
+      ContentValues existingContentValues = inserts.get(copy.inserts.keyAt(i));
+      Assert.checkState(existingContentValues != null, "Data sources can't add inserts");
+      existingContentValues.putAll(copy.inserts.valueAt(i));
+    }
+    for (int i = 0; i < copy.updates.size(); i++) {
+      update(copy.updates.keyAt(i), copy.updates.valueAt(i));
+    }
+    for (int i = 0; i < copy.deletes.size(); i++) {
+      long id = copy.deletes.valueAt(i);
+      if (!deletes.contains(id)) {
+        delete(id);
+      }
+    }
+  }
+
   public boolean isEmpty() {
     return inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty();
   }
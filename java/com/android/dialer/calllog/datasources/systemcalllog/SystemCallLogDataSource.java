@@ -31,7 +31,6 @@ import android.support.annotation.Nullable;
 import android.support.annotation.RequiresApi;
 import android.support.annotation.VisibleForTesting;
 import android.support.annotation.WorkerThread;
-import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.ArraySet;
 import com.android.dialer.DialerPhoneNumber;
@@ -46,7 +45,7 @@ import com.android.dialer.common.concurrent.Annotations.BackgroundExecutor;
 import com.android.dialer.compat.android.provider.VoicemailCompat;
 import com.android.dialer.duo.Duo;
 import com.android.dialer.inject.ApplicationContext;
-import com.android.dialer.phonenumberproto.DialerPhoneNumberUtil;
+import com.android.dialer.phonenumberutil.PhoneNumberCache;
 import com.android.dialer.storage.Unencrypted;
 import com.android.dialer.util.PermissionsUtil;
 import com.google.common.collect.Iterables;
@@ -72,6 +71,16 @@ public class SystemCallLogDataSource implements CallLogDataSource {
   @VisibleForTesting
   static final String PREF_LAST_TIMESTAMP_PROCESSED = "systemCallLogLastTimestampProcessed";
 
+  /** Number of rows read from the system call log by each query. */
+  @VisibleForTesting static final int PAGE_SIZE = 200;
+
+  /**
+   * Maximum number of rows a fill inserts or updates. The annotated call log deletes its oldest
+   * rows beyond {@link com.android.dialer.calllog.database.AnnotatedCallLogMaxRows}, except
+   * voicemails, so reading more would be wasted.
+   */
+  @VisibleForTesting static final int MAX_ROWS_PER_FILL = 1000;
+
   private final Context appContext;
   private final ListeningExecutorService backgroundExecutorService;
   private final MarkDirtyObserver markDirtyObserver;
@@ -204,6 +213,7 @@ public class SystemCallLogDataSource implements CallLogDataSource {
     // This data source should always run first so the mutations should always be empty.
     Assert.checkArgument(mutations.isEmpty());
 
+    // The annotated call log is capped, so its IDs are few enough to be held in memory.
     Set<Long> annotatedCallLogIds = getAnnotatedCallLogIds(appContext);
 
     LogUtil.i(
@@ -211,7 +221,11 @@ public class SystemCallLogDataSource implements CallLogDataSource {
         "found %d existing annotated call log ids",
         annotatedCallLogIds.size());
 
-    handleInsertsAndUpdates(appContext, mutations, annotatedCallLogIds);
+    FillRange range =
+        new FillRange(sharedPreferences.getLong(PREF_LAST_TIMESTAMP_PROCESSED, 0L));
+    handleInsertsAndUpdates(appContext, mutations, range, annotatedCallLogIds);
+    lastTimestampProcessed = range.newestLastModified;
+
     handleDeletes(appContext, annotatedCallLogIds, mutations);
     return null;
   }
@@ -228,38 +242,94 @@ public class SystemCallLogDataSource implements CallLogDataSource {
     return null;
   }
 
+  /**
+   * Inserts or updates the rows in {@code range}, newest first, in pages of at most {@link
+   * #PAGE_SIZE} rows, until the range is complete or {@link #MAX_ROWS_PER_FILL} rows were read.
+   */
   private void handleInsertsAndUpdates(
-      Context appContext, CallLogMutations mutations, Set<Long> existingAnnotatedCallLogIds) {
-    long previousTimestampProcessed = sharedPreferences.getLong(PREF_LAST_TIMESTAMP_PROCESSED, 0L);
+      Context appContext,
+      CallLogMutations mutations,
+      FillRange range,
+      Set<Long> existingAnnotatedCallLogIds) {
+    PhoneNumberCache phoneNumberCache = PhoneNumberCache.get(appContext);
+
+    int rowCount = 0;
+    while (!range.isComplete && rowCount < MAX_ROWS_PER_FILL) {
+      int pageSize = Math.min(PAGE_SIZE, MAX_ROWS_PER_FILL - rowCount);
+      int pageRowCount =
+          handlePage(
+              appContext,
+              mutations,
+              phoneNumberCache,
+              range,
+              existingAnnotatedCallLogIds,
+              pageSize);
+      if (pageRowCount < 0) {
+        break;
+      }
+      rowCount += pageRowCount;
+      range.isComplete = pageRowCount < pageSize;
+    }
+
+    LogUtil.i(
+        "SystemCallLogDataSource.handleInsertsAndUpdates",
+        "read %d entries modified after %d, complete: %b, number cache hits: %d, misses: %d",
+        rowCount,
+        range.lowerBound,
+        range.isComplete,
+        phoneNumberCache.getHitCount(),
+        phoneNumberCache.getMissCount());
+  }
 
-    DialerPhoneNumberUtil dialerPhoneNumberUtil = new DialerPhoneNumberUtil();
+  /**
+   * Inserts or updates the next page of at most {@code pageSize} rows in {@code range}.
+   *
+   * @return the number of rows read, or -1 if the system call log couldn't be queried
+   */
+  private int handlePage(
+      Context appContext,
+      CallLogMutations mutations,
+      PhoneNumberCache phoneNumberCache,
+      FillRange range,
+      Set<Long> existingAnnotatedCallLogIds,
+      int pageSize) {
+    String selection = Calls.LAST_MODIFIED + " > ? AND " + Voicemails.DELETED + " = 0";
+    List<String> selectionArgs = new ArrayList<>();
+    selectionArgs.add(String.valueOf(range.lowerBound));
+    if (range.lastRow != null) {
+      // Continue after the last row read, in the order of the query.
+      selection +=
+          " AND ("
+              + Calls.LAST_MODIFIED
+              + " < ? OR ("
+              + Calls.LAST_MODIFIED
+              + " = ? AND "
+              + Calls._ID
+              + " < ?))";
+      selectionArgs.add(String.valueOf(range.lastRow.lastModified));
+      selectionArgs.add(String.valueOf(range.lastRow.lastModified));
+      selectionArgs.add(String.valueOf(range.lastRow.id));
+    }
 
-    // TODO(zachh): Really should be getting last 1000 by timestamp, not by last modified.
     try (Cursor cursor =
         appContext
             .getContentResolver()
             .query(
                 Calls.CONTENT_URI_WITH_VOICEMAIL,
                 getProjection(),
-                Calls.LAST_MODIFIED + " > ? AND " + Voicemails.DELETED + " = 0",
-                new String[] {String.valueOf(previousTimestampProcessed)},
-                Calls.LAST_MODIFIED + " DESC LIMIT 1000")) {
+                selection,
+                selectionArgs.toArray(new String[selectionArgs.size()]),
+                Calls.LAST_MODIFIED + " DESC, " + Calls._ID + " DESC LIMIT " + pageSize)) {
 
       if (cursor == null) {
-        LogUtil.e("SystemCallLogDataSource.handleInsertsAndUpdates", "null cursor");
-        return;
+        LogUtil.e("SystemCallLogDataSource.handlePage", "null cursor");
+        return -1;
       }
 
       if (!cursor.moveToFirst()) {
-        LogUtil.i("SystemCallLogDataSource.handleInsertsAndUpdates", "no entries to insert/update");
-        return;
+        return 0;
       }
 
-      LogUtil.i(
-          "SystemCallLogDataSource.handleInsertsAndUpdates",
-          "found %d entries to insert/update",
-          cursor.getCount());
-
       int idColumn = cursor.getColumnIndexOrThrow(Calls._ID);
       int dateColumn = cursor.getColumnIndexOrThrow(Calls.DATE);
       int lastModifiedColumn = cursor.getColumnIndexOrThrow(Calls.LAST_MODIFIED);
@@ -280,9 +350,12 @@ public class SystemCallLogDataSource implements CallLogDataSource {
       int featuresColumn = cursor.getColumnIndexOrThrow(Calls.FEATURES);
       int postDialDigitsColumn = cursor.getColumnIndexOrThrow(Calls.POST_DIAL_DIGITS);
 
-      // The cursor orders by LAST_MODIFIED DESC, so the first result is the most recent timestamp
-      // processed.
-      lastTimestampProcessed = cursor.getLong(lastModifiedColumn);
+      // The cursor orders by LAST_MODIFIED DESC, so the first result of the first page is the most
+      // recent timestamp in the range.
+      if (range.newestLastModified == null) {
+        range.newestLastModified = cursor.getLong(lastModifiedColumn);
+      }
+
       do {
         long id = cursor.getLong(idColumn);
         long date = cursor.getLong(dateColumn);
@@ -323,16 +396,11 @@ public class SystemCallLogDataSource implements CallLogDataSource {
         if (!TextUtils.isEmpty(numberAsStr)) {
           String numberWithPostDialDigits =
               postDialDigits == null ? numberAsStr : numberAsStr + postDialDigits;
-          DialerPhoneNumber dialerPhoneNumber =
-              dialerPhoneNumberUtil.parse(numberWithPostDialDigits, countryIso);
-
-          contentValues.put(AnnotatedCallLog.NUMBER, dialerPhoneNumber.toByteArray());
-          String formattedNumber =
-              PhoneNumberUtils.formatNumber(numberWithPostDialDigits, countryIso);
-          if (formattedNumber == null) {
-            formattedNumber = numberWithPostDialDigits;
-          }
-          contentValues.put(AnnotatedCallLog.FORMATTED_NUMBER, formattedNumber);
+          PhoneNumberCache.Entry number =
+              phoneNumberCache.get(numberWithPostDialDigits, countryIso);
+
+          contentValues.put(AnnotatedCallLog.NUMBER, number.getDialerPhoneNumber().toByteArray());
+          contentValues.put(AnnotatedCallLog.FORMATTED_NUMBER, number.getFormattedNumber());
         } else {
           contentValues.put(
               AnnotatedCallLog.NUMBER, DialerPhoneNumber.getDefaultInstance().toByteArray());
@@ -360,6 +428,10 @@ public class SystemCallLogDataSource implements CallLogDataSource {
           mutations.insert(id, contentValues);
         }
       } while (cursor.moveToNext());
+
+      cursor.moveToLast();
+      range.lastRow = new RowPosition(cursor.getLong(lastModifiedColumn), cursor.getLong(idColumn));
+      return cursor.getCount();
     }
   }
 
@@ -520,4 +592,32 @@ public class SystemCallLogDataSource implements CallLogDataSource {
     }
     return ids;
   }
+
+  /** The position of a row in the order rows are processed: newest modification first. */
+  private static final class RowPosition {
+    private final long lastModified;
+    private final long id;
+
+    RowPosition(long lastModified, long id) {
+      this.lastModified = lastModified;
+      this.id = id;
+    }
+  }
+
+  /** The rows of the system call log modified after {@link #lowerBound}, read page by page. */
+  private static final class FillRange {
+    private final long lowerBound;
+
+    /** The last row read, after which the next page starts, or null to start with the newest. */
+    @Nullable private RowPosition lastRow;
+
+    /** The last modified timestamp of the newest row read, or null if no row was read. */
+    @Nullable private Long newestLastModified;
+
+    private boolean isComplete;
+
+    FillRange(long lowerBound) {
+      this.lowerBound = lowerBound;
+    }
+  }
 }
@@ -34,6 +34,7 @@ import com.android.dialer.calllog.CallLogComponent;
 import com.android.dialer.calllog.RefreshAnnotatedCallLogReceiver;
 import com.android.dialer.calllog.database.CallLogDatabaseComponent;
 import com.android.dialer.calllog.database.Coalescer;
+import com.android.dialer.calllog.database.Coalescer.PagedCoalescedRows;
 import com.android.dialer.calllog.model.CoalescedRow;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
@@ -51,7 +52,6 @@ import com.android.dialer.widget.EmptyContentView;
 import com.android.dialer.widget.EmptyContentView.OnEmptyViewActionButtonClickedListener;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
@@ -69,6 +69,7 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
   private EmptyContentView emptyContentView;
   private RefreshAnnotatedCallLogReceiver refreshAnnotatedCallLogReceiver;
   private SupportUiListener<ImmutableList<CoalescedRow>> coalesingAnnotatedCallLogListener;
+  private SupportUiListener<ImmutableList<CoalescedRow>> coalescingFirstPageListener;
 
   private boolean shouldMarkCallsRead = false;
   private final Runnable setShouldMarkCallsReadTrue = () -> shouldMarkCallsRead = true;
@@ -231,6 +232,11 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
             .createUiListener(
                 getChildFragmentManager(),
                 /* taskId = */ "NewCallLogFragment.coalescingAnnotatedCallLog");
+    coalescingFirstPageListener =
+        DialerExecutorComponent.get(getContext())
+            .createUiListener(
+                getChildFragmentManager(),
+                /* taskId = */ "NewCallLogFragment.coalescingAnnotatedCallLogFirstPage");
 
     if (PermissionsUtil.hasCallLogReadPermissions(getContext())) {
       getLoaderManager().restartLoader(LOADER_ID, null, this);
@@ -306,34 +312,32 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
 
     // Start combining adjacent rows which should be collapsed for display purposes.
     // This is a time-consuming process so we will do it in the background.
-    ListenableFuture<ImmutableList<CoalescedRow>> coalescedRowsFuture =
-        CallLogDatabaseComponent.get(getContext()).coalescer().coalesce(newCursor);
+    PagedCoalescedRows coalescedRows =
+        CallLogDatabaseComponent.get(getContext()).coalescer().coalesceInPages(newCursor);
+
+    // When the call log is first shown, show the first page without waiting for the rest of the
+    // rows. Existing rows are only replaced once all rows have been coalesced.
+    if (recyclerView.getAdapter() == null) {
+      coalescingFirstPageListener.listen(
+          getContext(),
+          coalescedRows.firstPage(),
+          firstPage -> {
+            LogUtil.i("NewCallLogFragment.onLoadFinished", "coalescing first page succeeded");
+            if (recyclerView.getAdapter() == null) {
+              showCoalescedRows(firstPage);
+            }
+          },
+          throwable -> {
+            // Failures are handled by the listener of all rows, which fails with the same error.
+          });
+    }
 
     coalesingAnnotatedCallLogListener.listen(
         getContext(),
-        coalescedRowsFuture,
-        coalescedRows -> {
+        coalescedRows.allRows(),
+        allRows -> {
           LogUtil.i("NewCallLogFragment.onLoadFinished", "coalescing succeeded");
-
-          // TODO(zachh): Handle empty cursor by showing empty view.
-          if (recyclerView.getAdapter() == null) {
-            recyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
-            // Note: It's not clear if this callback can be invoked when there's no associated
-            // activity, but if crashes are observed here it may be possible to use getContext()
-            // instead.
-            Activity activity = Assert.isNotNull(getActivity());
-            recyclerView.setAdapter(
-                new NewCallLogAdapter(
-                    activity,
-                    coalescedRows,
-                    System::currentTimeMillis,
-                    PromotionComponent.get(getContext())
-                        .promotionManager()
-                        .getHighestPriorityPromotion(PromotionType.CARD)
-                        .orElse(null)));
-          } else {
-            ((NewCallLogAdapter) recyclerView.getAdapter()).updateRows(coalescedRows);
-          }
+          showCoalescedRows(allRows);
         },
         throwable -> {
           // Coalescing can fail if the cursor passed to Coalescer is closed by the loader while
@@ -348,6 +352,28 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
         });
   }
 
+  private void showCoalescedRows(ImmutableList<CoalescedRow> coalescedRows) {
+    // TODO(zachh): Handle empty cursor by showing empty view.
+    if (recyclerView.getAdapter() == null) {
+      recyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
+      // Note: It's not clear if this callback can be invoked when there's no associated
+      // activity, but if crashes are observed here it may be possible to use getContext()
+      // instead.
+      Activity activity = Assert.isNotNull(getActivity());
+      recyclerView.setAdapter(
+          new NewCallLogAdapter(
+              activity,
+              coalescedRows,
+              System::currentTimeMillis,
+              PromotionComponent.get(getContext())
+                  .promotionManager()
+                  .getHighestPriorityPromotion(PromotionType.CARD)
+                  .orElse(null)));
+    } else {
+      ((NewCallLogAdapter) recyclerView.getAdapter()).updateRows(coalescedRows);
+    }
+  }
+
   @Override
   public void onLoaderReset(Loader<Cursor> loader) {
     LogUtil.enterBlock("NewCallLogFragment.onLoaderReset");
@@ -19,9 +19,16 @@ package com.android.dialer.calllog.ui;
 import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.DeletedContacts;
 import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
-import android.util.ArrayMap;
+import android.support.annotation.WorkerThread;
+import android.util.LruCache;
 import com.android.dialer.DialerPhoneNumber;
 import com.android.dialer.calllog.model.CoalescedRow;
 import com.android.dialer.calllogutils.NumberAttributesBuilder;
@@ -31,15 +38,19 @@ import com.android.dialer.common.concurrent.Annotations.BackgroundExecutor;
 import com.android.dialer.common.concurrent.Annotations.Ui;
 import com.android.dialer.common.concurrent.ThreadUtil;
 import com.android.dialer.inject.ApplicationContext;
+import com.android.dialer.metrics.FutureTimer;
+import com.android.dialer.metrics.Metrics;
 import com.android.dialer.phonelookup.PhoneLookupInfo;
 import com.android.dialer.phonelookup.composite.CompositePhoneLookup;
 import com.android.dialer.phonelookup.database.contract.PhoneLookupHistoryContract;
 import com.android.dialer.phonelookup.database.contract.PhoneLookupHistoryContract.PhoneLookupHistory;
+import com.android.dialer.util.PermissionsUtil;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.protobuf.InvalidProtocolBufferException;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -58,36 +69,70 @@ import javax.inject.Inject;
  * the CP2 information for all of them at once, and so information for those rows must be retrieved
  * at display time.
  *
- * <p>This class also updates {@link PhoneLookupHistory} with the results that it fetches.
+ * <p>This class also updates {@link PhoneLookupHistory} with the results that it fetches, and
+ * reads them back from there when they are not in its in-memory cache, so that results fetched
+ * before the call log was recreated don't have to be fetched again. Results written before the
+ * last change to CP2 are not read back, so that added or edited contacts are shown.
  */
 public final class RealtimeRowProcessor {
 
+  /** The maximum number of results kept in memory. */
+  private static final int MAX_CACHE_SIZE = 200;
+
+  /** Results read back from {@link PhoneLookupHistory} must have been written within this time. */
+  private static final long MAX_PHONE_LOOKUP_HISTORY_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
   /*
-   * The time to wait between writing batches of records to PhoneLookupHistory.
+   * The time to wait after the last queued result before writing the batch to PhoneLookupHistory.
    */
   @VisibleForTesting static final long BATCH_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(3);
 
+  /*
+   * The longest time a queued result waits to be written, even if more results keep arriving.
+   */
+  @VisibleForTesting static final long MAX_BATCH_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  /*
+   * The batch is written as soon as it holds this many results.
+   */
+  @VisibleForTesting static final int MAX_BATCH_SIZE = 50;
+
   private final Context appContext;
   private final CompositePhoneLookup compositePhoneLookup;
   private final ListeningExecutorService uiExecutor;
   private final ListeningExecutorService backgroundExecutor;
+  private final FutureTimer futureTimer;
 
-  private final Map<DialerPhoneNumber, PhoneLookupInfo> cache = new ArrayMap<>();
+  private final LruCache<DialerPhoneNumber, PhoneLookupInfo> cache =
+      new LruCache<>(MAX_CACHE_SIZE);
 
   private final Map<DialerPhoneNumber, PhoneLookupInfo> queuedPhoneLookupHistoryWrites =
       new LinkedHashMap<>(); // Keep the order so the most recent looked up value always wins
   private final Runnable writePhoneLookupHistoryRunnable = this::writePhoneLookupHistory;
+  private long firstQueuedWriteMillis;
+
+  /**
+   * The last time a contact was updated or deleted in CP2, read once after each {@link
+   * #clearCache()}, or null if it hasn't been read since.
+   */
+  @Nullable private ListenableFuture<Long> lastCp2ChangeMillisFuture;
+
+  private int cacheHitCount;
+  private int phoneLookupHistoryHitCount;
+  private int missCount;
 
   @Inject
   RealtimeRowProcessor(
       @ApplicationContext Context appContext,
       @Ui ListeningExecutorService uiExecutor,
       @BackgroundExecutor ListeningExecutorService backgroundExecutor,
-      CompositePhoneLookup compositePhoneLookup) {
+      CompositePhoneLookup compositePhoneLookup,
+      FutureTimer futureTimer) {
     this.appContext = appContext;
     this.uiExecutor = uiExecutor;
     this.backgroundExecutor = backgroundExecutor;
     this.compositePhoneLookup = compositePhoneLookup;
+    this.futureTimer = futureTimer;
   }
 
   /**
@@ -101,46 +146,183 @@ public final class RealtimeRowProcessor {
       return Futures.immediateFuture(row);
     }
 
-    PhoneLookupInfo cachedPhoneLookupInfo = cache.get(row.getNumber());
+    DialerPhoneNumber number = row.getNumber();
+    PhoneLookupInfo cachedPhoneLookupInfo = cache.get(number);
+    if (cachedPhoneLookupInfo == null) {
+      // Results evicted from the cache may not have been written yet.
+      cachedPhoneLookupInfo = queuedPhoneLookupHistoryWrites.get(number);
+    }
     if (cachedPhoneLookupInfo != null) {
+      cacheHitCount++;
       return Futures.immediateFuture(applyPhoneLookupInfoToRow(cachedPhoneLookupInfo, row));
     }
 
-    ListenableFuture<PhoneLookupInfo> phoneLookupInfoFuture =
-        compositePhoneLookup.lookup(row.getNumber());
-    return Futures.transform(
-        phoneLookupInfoFuture,
-        phoneLookupInfo -> {
-          queuePhoneLookupHistoryWrite(row.getNumber(), phoneLookupInfo);
-          cache.put(row.getNumber(), phoneLookupInfo);
-          return applyPhoneLookupInfoToRow(phoneLookupInfo, row);
+    if (lastCp2ChangeMillisFuture == null) {
+      lastCp2ChangeMillisFuture = backgroundExecutor.submit(this::queryLastCp2ChangeMillis);
+    }
+    ListenableFuture<PhoneLookupInfo> phoneLookupHistoryFuture =
+        Futures.transform(
+            lastCp2ChangeMillisFuture,
+            lastCp2ChangeMillis -> queryPhoneLookupHistory(number, lastCp2ChangeMillis),
+            backgroundExecutor);
+    return Futures.transformAsync(
+        phoneLookupHistoryFuture,
+        phoneLookupHistoryInfo -> {
+          if (phoneLookupHistoryInfo != null) {
+            phoneLookupHistoryHitCount++;
+            cache.put(number, phoneLookupHistoryInfo);
+            return Futures.immediateFuture(applyPhoneLookupInfoToRow(phoneLookupHistoryInfo, row));
+          }
+
+          missCount++;
+          ListenableFuture<PhoneLookupInfo> phoneLookupInfoFuture =
+              compositePhoneLookup.lookup(number);
+          return Futures.transform(
+              phoneLookupInfoFuture,
+              phoneLookupInfo -> {
+                queuePhoneLookupHistoryWrite(number, phoneLookupInfo);
+                cache.put(number, phoneLookupInfo);
+                return applyPhoneLookupInfoToRow(phoneLookupInfo, row);
+              },
+              uiExecutor /* ensures the cache is updated on a single thread */);
         },
         uiExecutor /* ensures the cache is updated on a single thread */);
   }
 
-  /** Clears the internal cache. */
+  /** Clears the internal cache, and reads the time CP2 last changed again. */
   @MainThread
   public void clearCache() {
     Assert.isMainThread();
-    cache.clear();
+    LogUtil.i(
+        "RealtimeRowProcessor.clearCache",
+        "cache hits: %d, PhoneLookupHistory hits: %d, misses: %d",
+        cacheHitCount,
+        phoneLookupHistoryHitCount,
+        missCount);
+    cache.evictAll();
+    lastCp2ChangeMillisFuture = null;
   }
 
+  /**
+   * Returns the last time a contact was updated or deleted in CP2, or {@link Long#MAX_VALUE} if it
+   * can't be read so that nothing is read back from {@link PhoneLookupHistory}.
+   */
+  @WorkerThread
+  private long queryLastCp2ChangeMillis() {
+    Assert.isWorkerThread();
+    if (!PermissionsUtil.hasContactsReadPermissions(appContext)) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(
+        queryLatestTimestamp(Contacts.CONTENT_URI, Contacts.CONTACT_LAST_UPDATED_TIMESTAMP),
+        queryLatestTimestamp(
+            DeletedContacts.CONTENT_URI, DeletedContacts.CONTACT_DELETED_TIMESTAMP));
+  }
+
+  @WorkerThread
+  private long queryLatestTimestamp(Uri uri, String timestampColumn) {
+    try (Cursor cursor =
+        appContext
+            .getContentResolver()
+            .query(
+                uri,
+                new String[] {timestampColumn},
+                null,
+                null,
+                timestampColumn + " DESC limit 1")) {
+      if (cursor == null) {
+        LogUtil.w("RealtimeRowProcessor.queryLatestTimestamp", "null cursor");
+        return Long.MAX_VALUE;
+      }
+      return cursor.moveToFirst() ? cursor.getLong(0 /* columnIndex */) : 0;
+    }
+  }
+
+  /**
+   * Returns the info written to {@link PhoneLookupHistory} for {@code dialerPhoneNumber} by a
+   * previous lookup, or null if there is none which is recent and complete.
+   *
+   * <p>The AnnotatedCallLog refresh marks the info in PhoneLookupHistory as incomplete whenever it
+   * couldn't process the number, so complete info for a row which needs processing was written by
+   * this class after the last refresh. Info written before {@code lastCp2ChangeMillis} may show a
+   * contact as it was before it was added, edited or deleted, so it isn't returned.
+   */
+  @WorkerThread
+  @Nullable
+  private PhoneLookupInfo queryPhoneLookupHistory(
+      DialerPhoneNumber dialerPhoneNumber, long lastCp2ChangeMillis) {
+    Assert.isWorkerThread();
+    if (lastCp2ChangeMillis == Long.MAX_VALUE) {
+      return null;
+    }
+    long minLastModified =
+        Math.max(
+            System.currentTimeMillis() - MAX_PHONE_LOOKUP_HISTORY_AGE_MILLIS, lastCp2ChangeMillis);
+    try (Cursor cursor =
+        appContext
+            .getContentResolver()
+            .query(
+                PhoneLookupHistory.contentUriForNumber(dialerPhoneNumber.getNormalizedNumber()),
+                new String[] {PhoneLookupHistory.PHONE_LOOKUP_INFO},
+                PhoneLookupHistory.LAST_MODIFIED + " > ?",
+                new String[] {Long.toString(minLastModified)},
+                null)) {
+      if (cursor == null) {
+        LogUtil.w("RealtimeRowProcessor.queryPhoneLookupHistory", "null cursor");
+        return null;
+      }
+      if (!cursor.moveToFirst()) {
+        return null;
+      }
+      PhoneLookupInfo phoneLookupInfo;
+      try {
+        phoneLookupInfo = PhoneLookupInfo.parseFrom(cursor.getBlob(0 /* columnIndex */));
+      } catch (InvalidProtocolBufferException e) {
+        throw new IllegalStateException(e);
+      }
+      return phoneLookupInfo.getDefaultCp2Info().getIsIncomplete() ? null : phoneLookupInfo;
+    }
+  }
+
+  /**
+   * Queues {@code phoneLookupInfo} to be written to PhoneLookupHistory.
+   *
+   * <p>The batch is written once no result has been queued for {@link #BATCH_WAIT_MILLIS}, but no
+   * later than {@link #MAX_BATCH_DELAY_MILLIS} after its first result so that continuous scrolling
+   * doesn't postpone it indefinitely, and immediately once it holds {@link #MAX_BATCH_SIZE}
+   * results.
+   */
   @MainThread
   private void queuePhoneLookupHistoryWrite(
       DialerPhoneNumber dialerPhoneNumber, PhoneLookupInfo phoneLookupInfo) {
     Assert.isMainThread();
+    long now = SystemClock.uptimeMillis();
+    if (queuedPhoneLookupHistoryWrites.isEmpty()) {
+      firstQueuedWriteMillis = now;
+    }
     queuedPhoneLookupHistoryWrites.put(dialerPhoneNumber, phoneLookupInfo);
     ThreadUtil.getUiThreadHandler().removeCallbacks(writePhoneLookupHistoryRunnable);
-    ThreadUtil.getUiThreadHandler().postDelayed(writePhoneLookupHistoryRunnable, BATCH_WAIT_MILLIS);
+    if (queuedPhoneLookupHistoryWrites.size() >= MAX_BATCH_SIZE) {
+      writePhoneLookupHistory();
+      return;
+    }
+    long delayMillis =
+        Math.min(BATCH_WAIT_MILLIS, firstQueuedWriteMillis + MAX_BATCH_DELAY_MILLIS - now);
+    ThreadUtil.getUiThreadHandler()
+        .postDelayed(writePhoneLookupHistoryRunnable, Math.max(0, delayMillis));
   }
 
   @MainThread
   private void writePhoneLookupHistory() {
     Assert.isMainThread();
+    if (queuedPhoneLookupHistoryWrites.isEmpty()) {
+      return;
+    }
 
     // Copy the batch to a new collection that be safely processed on a background thread.
     ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> currentBatch =
         ImmutableMap.copyOf(queuedPhoneLookupHistoryWrites);
+    long queuedMillis = SystemClock.uptimeMillis() - firstQueuedWriteMillis;
 
     // Clear the queue, handing responsibility for its items to the background task.
     queuedPhoneLookupHistoryWrites.clear();
@@ -176,6 +358,7 @@ public final class RealtimeRowProcessor {
                           .applyBatch(PhoneLookupHistoryContract.AUTHORITY, operations))
                   .length;
             });
+    futureTimer.applyTiming(applyBatchFuture, Metrics.NEW_CALL_LOG_WRITE_PHONE_LOOKUP_HISTORY);
 
     Futures.addCallback(
         applyBatchFuture,
@@ -184,8 +367,9 @@ public final class RealtimeRowProcessor {
           public void onSuccess(Integer rowsAffected) {
             LogUtil.i(
                 "RealtimeRowProcessor.onSuccess",
-                "wrote %d rows to PhoneLookupHistory",
-                rowsAffected);
+                "wrote %d rows to PhoneLookupHistory after queueing them for %dms",
+                rowsAffected,
+                queuedMillis);
           }
 
           @Override
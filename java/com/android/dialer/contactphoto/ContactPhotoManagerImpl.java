@@ -38,11 +38,13 @@ import android.os.Handler;
 import android.os.Handler.Callback;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Contacts.Photo;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Directory;
+import android.support.annotation.Nullable;
 import android.support.annotation.UiThread;
 import android.support.annotation.WorkerThread;
 import android.support.v4.graphics.drawable.RoundedBitmapDrawable;
@@ -71,12 +73,24 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
   private static final String LOADER_THREAD_NAME = "ContactPhotoLoader";
 
+  private static final String DECODER_THREAD_NAME = "ContactPhotoDecoder";
+
+  /** Maximum number of threads decoding photos, whatever the number of cores. */
+  private static final int MAX_DECODER_THREADS = 4;
+
+  private static final int DECODER_THREAD_KEEP_ALIVE_SECONDS = 1;
+
   private static final int FADE_TRANSITION_DURATION = 200;
 
   /**
@@ -97,8 +111,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   private static final BitmapHolder BITMAP_UNAVAILABLE;
   /** Cache size for {@link #bitmapHolderCache} for devices with "large" RAM. */
   private static final int HOLDER_CACHE_SIZE = 2000000;
-  /** Cache size for {@link #bitmapCache} for devices with "large" RAM. */
-  private static final int BITMAP_CACHE_SIZE = 36864 * 48; // 1728K
   /** Height/width of a thumbnail image */
   private static int thumbnailSize;
 
@@ -116,11 +128,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   /** Cache size threshold at which bitmaps will not be preloaded. */
   private final int bitmapHolderCacheRedZoneBytes;
   /**
-   * Level 2 LRU cache for bitmaps. This is a smaller cache that holds the most recently used
-   * bitmaps to save time on decoding them from bytes (the bytes are stored in {@link
+   * Level 2 cache for bitmaps, shared with the other photo loaders of the app. It holds the most
+   * recently used bitmaps to save time on decoding them from bytes (the bytes are stored in {@link
    * #bitmapHolderCache}.
    */
-  private final LruCache<Object, Bitmap> bitmapCache;
+  private final PhotoCache photoCache;
   /**
    * A map from ImageView to the corresponding photo ID or uri, encapsulated in a request. The
    * request may swapped out before the photo loading request is started.
@@ -137,6 +149,13 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   private volatile boolean bitmapHolderCacheAllUnfresh = true;
   /** Thread responsible for loading photos from the database. Created upon the first request. */
   private LoaderThread loaderThread;
+  /**
+   * Threads decoding the photos loaded by {@link #loaderThread}, photos of the views waiting for
+   * them first. Created upon the first request.
+   */
+  private ThreadPoolExecutor decoderExecutor;
+  /** Orders {@link DecodeTask}s of the same priority. */
+  private final AtomicLong decodeSequenceNumber = new AtomicLong();
   /** A gate to make sure we only send one instance of MESSAGE_PHOTOS_NEEDED at a time. */
   private boolean loadingRequested;
   /** Flag indicating if the image loading is paused. */
@@ -152,22 +171,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
     final float cacheSizeAdjustment = (am.isLowRamDevice()) ? 0.5f : 1.0f;
 
-    final int bitmapCacheSize = (int) (cacheSizeAdjustment * BITMAP_CACHE_SIZE);
-    bitmapCache =
-        new LruCache<Object, Bitmap>(bitmapCacheSize) {
-          @Override
-          protected int sizeOf(Object key, Bitmap value) {
-            return value.getByteCount();
-          }
-
-          @Override
-          protected void entryRemoved(
-              boolean evicted, Object key, Bitmap oldValue, Bitmap newValue) {
-            if (DEBUG) {
-              dumpStats();
-            }
-          }
-        };
+    photoCache = PhotoCache.get(context);
     final int holderCacheSize = (int) (cacheSizeAdjustment * HOLDER_CACHE_SIZE);
     bitmapHolderCache =
         new LruCache<Object, BitmapHolder>(holderCacheSize) {
@@ -190,7 +194,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     if (DEBUG) {
       LogUtil.d(
           "ContactPhotoManagerImpl.ContactPhotoManagerImpl",
-          "Cache size: " + btk(bitmapHolderCache.maxSize()) + " + " + btk(bitmapCache.maxSize()));
+          "Cache size: "
+              + btk(bitmapHolderCache.maxSize())
+              + " + "
+              + btk((int) photoCache.getMaxSize()));
     }
 
     thumbnailSize =
@@ -221,10 +228,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
   /**
    * If necessary, decodes bytes stored in the holder to Bitmap. As long as the bitmap is held
-   * either by {@link #bitmapCache} or by a soft reference in the holder, it will not be necessary
-   * to decode the bitmap.
+   * either by {@link #photoCache} or by a soft reference in the holder, it will not be necessary to
+   * decode the bitmap. A bitmap decoded at a higher resolution by an earlier request is reused.
+   * Called on the decoder threads.
    */
-  private static void inflateBitmap(BitmapHolder holder, int requestedExtent) {
+  @WorkerThread
+  private void inflateBitmap(Object key, BitmapHolder holder, int requestedExtent) {
     final int sampleSize =
         BitmapUtil.findOptimalSampleSize(holder.originalSmallerExtent, requestedExtent);
     byte[] bytes = holder.bytes;
@@ -243,6 +252,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       }
     }
 
+    PhotoCache.DecodedPhoto decodedPhoto = photoCache.getPhoto(key, sampleSize);
+    if (decodedPhoto != null) {
+      holder.decodedSampleSize = decodedPhoto.sampleSize;
+      holder.bitmap = decodedPhoto.bitmap;
+      holder.bitmapRef = new SoftReference<Bitmap>(decodedPhoto.bitmap);
+      return;
+    }
+
     try {
       Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(bytes, sampleSize);
 
@@ -343,24 +360,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
               + staleCacheOverwrite.get());
     }
 
-    {
-      int numBitmaps = 0;
-      int bitmapBytes = 0;
-      for (Bitmap b : bitmapCache.snapshot().values()) {
-        numBitmaps++;
-        bitmapBytes += b.getByteCount();
-      }
-      LogUtil.d(
-          "ContactPhotoManagerImpl.dumpStats",
-          "L2: "
-              + btk(bitmapBytes)
-              + ", "
-              + numBitmaps
-              + " bitmaps"
-              + ", avg: "
-              + btk(safeDiv(bitmapBytes, numBitmaps)));
-      // We don't get from L2 cache, so L2 stats is meaningless.
-    }
+    photoCache.dumpStats();
   }
 
   @Override
@@ -372,6 +372,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       // Clear the caches.  Note all pending requests will be removed too.
       clear();
     }
+    photoCache.trimMemory(level);
   }
 
   @Override
@@ -558,11 +559,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       view.setImageDrawable(getDrawableForBitmap(context.getResources(), cachedBitmap, request));
     }
 
-    // Put the bitmap in the LRU cache. But only do this for images that are small enough
-    // (we require that at least six of those can be cached at the same time)
-    if (cachedBitmap.getByteCount() < bitmapCache.maxSize() / 6) {
-      bitmapCache.put(request.getKey(), cachedBitmap);
-    }
+    cacheDecodedPhoto(request.getKey(), cachedBitmap, holder.decodedSampleSize);
 
     // Soften the reference
     holder.bitmap = null;
@@ -570,6 +567,16 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     return holder.fresh;
   }
 
+  /**
+   * Puts the bitmap in the LRU cache. But only does this for images that are small enough (we
+   * require that at least six of those can be cached at the same time).
+   */
+  private void cacheDecodedPhoto(Object key, Bitmap bitmap, int sampleSize) {
+    if (bitmap.getByteCount() < photoCache.getMaxSize() / 6) {
+      photoCache.putPhoto(key, bitmap, sampleSize);
+    }
+  }
+
   /**
    * Given a bitmap, returns a drawable that is configured to display the bitmap based on the
    * specified request.
@@ -591,7 +598,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
     pendingRequests.clear();
     bitmapHolderCache.evictAll();
-    bitmapCache.evictAll();
+    photoCache.evictPhotos();
   }
 
   @Override
@@ -652,12 +659,70 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   }
 
   public void ensureLoaderThread() {
+    if (decoderExecutor == null) {
+      decoderExecutor = createDecoderExecutor();
+    }
     if (loaderThread == null) {
       loaderThread = new LoaderThread(context.getContentResolver());
       loaderThread.start();
     }
   }
 
+  /**
+   * Creates a pool with one thread per core, leaving one for the UI and loader threads. Tasks must
+   * be {@link DecodeTask}s run with {@link ThreadPoolExecutor#execute}, so that they can be sorted.
+   */
+  private static ThreadPoolExecutor createDecoderExecutor() {
+    int threadCount =
+        Math.max(1, Math.min(MAX_DECODER_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            threadCount,
+            threadCount,
+            DECODER_THREAD_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, DECODER_THREAD_NAME);
+                // Java thread priority 4 corresponds to Process.THREAD_PRIORITY_BACKGROUND (10)
+                thread.setPriority(4);
+                return thread;
+              }
+            });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Decodes the bytes stored in the holder on {@link #decoderExecutor}, unless they are already
+   * being decoded. A preload still waiting to be decoded is moved ahead if a view now needs the
+   * photo. Only called from the loader thread.
+   */
+  @WorkerThread
+  private void decodeInBackground(
+      Object key, BitmapHolder holder, int requestedExtent, boolean preloading) {
+    DecodeTask queuedTask = holder.decodeTask;
+    if (queuedTask != null
+        && (preloading || !queuedTask.preloading || !decoderExecutor.remove(queuedTask))) {
+      return;
+    }
+    DecodeTask decodeTask = new DecodeTask(key, holder, requestedExtent, preloading);
+    holder.decodeTask = decodeTask;
+    decoderExecutor.execute(decodeTask);
+  }
+
+  /** Returns whether a view is waiting for the photo with {@code key}. */
+  private boolean isPending(Object key) {
+    for (Request request : pendingRequests.values()) {
+      if (request.getKey().equals(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Goes over pending loading requests and displays loaded photos. If some of the photos still
    * haven't been loaded, sends another request for image loading.
@@ -683,7 +748,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
   /**
    * Removes strong references to loaded bitmaps to allow them to be garbage collected if needed.
-   * Some of the bitmaps will still be retained by {@link #bitmapCache}.
+   * Some of the bitmaps will still be retained by {@link #photoCache}.
    */
   private void softenCache() {
     for (BitmapHolder holder : bitmapHolderCache.snapshot().values()) {
@@ -712,17 +777,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     BitmapHolder holder =
         new BitmapHolder(bytes, bytes == null ? -1 : BitmapUtil.getSmallerExtentFromBytes(bytes));
 
-    // Unless this image is being preloaded, decode it right away while
-    // we are still on the background thread.
-    if (!preloading) {
-      inflateBitmap(holder, requestedExtent);
-    }
-
     if (bytes != null) {
       bitmapHolderCache.put(key, holder);
       if (bitmapHolderCache.get(key) != holder) {
         LogUtil.w("ContactPhotoManagerImpl.cacheBitmap", "bitmap too big to fit in cache.");
         bitmapHolderCache.put(key, BITMAP_UNAVAILABLE);
+      } else {
+        // Preloaded images are decoded too, but after the ones which are displayed.
+        decodeInBackground(key, holder, requestedExtent, preloading);
       }
     } else {
       bitmapHolderCache.put(key, BITMAP_UNAVAILABLE);
@@ -732,8 +794,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   }
 
   /**
-   * Populates an array of photo IDs that need to be loaded. Also decodes bitmaps that we have
-   * already loaded
+   * Populates an array of photo IDs that need to be loaded. Also starts decoding bitmaps that we
+   * have already loaded
    */
   private void obtainPhotoIdsAndUrisToLoad(
       Set<Long> photoIds, Set<String> photoIdsAsStrings, Set<Request> uris) {
@@ -741,8 +803,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     photoIdsAsStrings.clear();
     uris.clear();
 
-    boolean jpegsDecoded = false;
-
     /*
      * Since the call is made from the loader thread, the map could be
      * changing during the iteration. That's not really a problem:
@@ -763,8 +823,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
           && holder.fresh
           && (holder.bitmapRef == null || holder.bitmapRef.get() == null)) {
         // This was previously loaded but we don't currently have the inflated Bitmap
-        inflateBitmap(holder, request.getRequestedExtent());
-        jpegsDecoded = true;
+        decodeInBackground(request.getKey(), holder, request.getRequestedExtent(), false);
       } else {
         if (holder == null || !holder.fresh) {
           if (request.isUriRequest()) {
@@ -776,10 +835,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
       }
     }
-
-    if (jpegsDecoded) {
-      mainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
-    }
   }
 
   /** Maintains the state of a particular photo. */
@@ -789,8 +844,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     final int originalSmallerExtent;
 
     volatile boolean fresh;
+    /** The task decoding the bytes or waiting to, or null if there is none. */
+    @Nullable volatile DecodeTask decodeTask;
     Bitmap bitmap;
-    Reference<Bitmap> bitmapRef;
+    /** Set by the decoder threads after {@link #decodedSampleSize}. */
+    volatile Reference<Bitmap> bitmapRef;
     int decodedSampleSize;
 
     public BitmapHolder(byte[] bytes, int originalSmallerExtent) {
@@ -800,6 +858,63 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
   }
 
+  /**
+   * Decodes the bytes of a photo. Photos that views are waiting for are decoded before preloaded
+   * ones, the most recently requested first, as those are the views shown when flinging.
+   */
+  private final class DecodeTask implements Runnable, Comparable<DecodeTask> {
+
+    private final Object key;
+    private final BitmapHolder holder;
+    private final int requestedExtent;
+    private final boolean preloading;
+    private final long sequenceNumber = decodeSequenceNumber.incrementAndGet();
+
+    DecodeTask(Object key, BitmapHolder holder, int requestedExtent, boolean preloading) {
+      this.key = key;
+      this.holder = holder;
+      this.requestedExtent = requestedExtent;
+      this.preloading = preloading;
+    }
+
+    @WorkerThread
+    @Override
+    public void run() {
+      try {
+        if (!preloading && !isPending(key)) {
+          // The view was scrolled away or bound to another photo. The bytes are kept in the cache,
+          // so the photo is decoded again if it is requested again.
+          return;
+        }
+        inflateBitmap(key, holder, requestedExtent);
+        if (preloading) {
+          // No view displays a preloaded photo yet, so only the LRU cache keeps it from being
+          // collected. Like softenCache, the holder then only keeps a soft reference.
+          Bitmap bitmap = holder.bitmap;
+          if (bitmap != null) {
+            cacheDecodedPhoto(key, bitmap, holder.decodedSampleSize);
+          }
+          holder.bitmap = null;
+        }
+      } finally {
+        if (holder.decodeTask == this) {
+          holder.decodeTask = null;
+        }
+      }
+      if (!pendingRequests.isEmpty()) {
+        mainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+      }
+    }
+
+    @Override
+    public int compareTo(DecodeTask other) {
+      if (preloading != other.preloading) {
+        return preloading ? 1 : -1;
+      }
+      return Long.compare(other.sequenceNumber, sequenceNumber);
+    }
+  }
+
   /**
    * A holder for either a Uri or an id and a flag whether this was requested for the dark or light
    * theme
@@ -938,8 +1053,18 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     /** A pause between preload batches that yields to the UI thread. */
     private static final int PHOTO_PRELOAD_DELAY = 1000;
 
-    /** Number of photos to preload per batch. */
-    private static final int PRELOAD_BATCH = 25;
+    /**
+     * Number of photos to preload in the first batch. The size of the next batches adapts to how
+     * long batches take and to how busy the decoder threads are, between {@link
+     * #MIN_PRELOAD_BATCH} and {@link #MAX_PRELOAD_BATCH}.
+     */
+    private static final int INITIAL_PRELOAD_BATCH = 25;
+
+    private static final int MIN_PRELOAD_BATCH = 5;
+    private static final int MAX_PRELOAD_BATCH = 50;
+
+    /** Preload batches taking longer than this to query are made smaller. */
+    private static final long PRELOAD_BATCH_TARGET_MILLIS = 50;
 
     /**
      * Maximum number of photos to preload. If the cache size is 2Mb and the expected average size
@@ -959,6 +1084,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private Handler loaderThreadHandler;
     private byte[] buffer;
     private int preloadStatus = PRELOAD_STATUS_NOT_STARTED;
+    private int preloadBatchSize = INITIAL_PRELOAD_BATCH;
+    /** How long the last preload batch took, or -1 before the first one. */
+    private long lastPreloadBatchMillis = -1;
 
     public LoaderThread(ContentResolver resolver) {
       super(LOADER_THREAD_NAME);
@@ -1051,9 +1179,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       photoIds.clear();
       photoIdsAsStrings.clear();
 
+      adjustPreloadBatchSize();
+      long startMillis = SystemClock.elapsedRealtime();
       int count = 0;
       int preloadSize = preloadPhotoIds.size();
-      while (preloadSize > 0 && photoIds.size() < PRELOAD_BATCH) {
+      while (preloadSize > 0 && photoIds.size() < preloadBatchSize) {
         preloadSize--;
         count++;
         Long photoId = preloadPhotoIds.get(preloadSize);
@@ -1063,6 +1193,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       }
 
       loadThumbnails(true);
+      lastPreloadBatchMillis = SystemClock.elapsedRealtime() - startMillis;
 
       if (preloadSize == 0) {
         preloadStatus = PRELOAD_STATUS_DONE;
@@ -1070,11 +1201,34 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
       LogUtil.v(
           "ContactPhotoManagerImpl.preloadPhotosInBackground",
-          "preloaded " + count + " photos.  cached bytes: " + bitmapHolderCache.size());
+          "preloaded "
+              + count
+              + " photos in "
+              + lastPreloadBatchMillis
+              + " ms.  cached bytes: "
+              + bitmapHolderCache.size());
 
       requestPreloading();
     }
 
+    /**
+     * Halves the batch if the previous one took too long or photos are still waiting to be
+     * decoded, as the decoder threads are then busy with the photos of the views being shown.
+     * Doubles it otherwise. The first batch keeps its initial size.
+     */
+    @WorkerThread
+    private void adjustPreloadBatchSize() {
+      if (lastPreloadBatchMillis < 0) {
+        return;
+      }
+      if (lastPreloadBatchMillis > PRELOAD_BATCH_TARGET_MILLIS
+          || !decoderExecutor.getQueue().isEmpty()) {
+        preloadBatchSize = Math.max(MIN_PRELOAD_BATCH, preloadBatchSize / 2);
+      } else {
+        preloadBatchSize = Math.min(MAX_PRELOAD_BATCH, preloadBatchSize * 2);
+      }
+    }
+
     @WorkerThread
     private void queryPhotosForPreload() {
       Cursor cursor = null;
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.contactphoto;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+import com.android.dialer.common.LogUtil;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide memory cache of decoded photos, shared by {@link ContactPhotoManager} and the Glide
+ * photo manager so that both draw from the same budget and the same avatar isn't decoded twice.
+ *
+ * <p>Entries are accounted by their size in bytes. Decoded contact photos are keyed by photo ID or
+ * URI; a photo decoded at a higher resolution is reused for requests needing a lower one. Other
+ * entries, such as Glide resources, use their own keys and report their own size.
+ *
+ * <p>Can be used from any thread.
+ */
+public final class PhotoCache {
+
+  /** Notified when an entry is evicted to make room for others or because memory is low. */
+  public interface EvictionListener {
+    void onEvicted(Object value);
+  }
+
+  /** Fraction of the memory class of the app used by the cache. */
+  private static final float MEMORY_CLASS_FRACTION = 1 / 8f;
+
+  private static final float LOW_RAM_MEMORY_CLASS_FRACTION = 1 / 16f;
+
+  private static PhotoCache instance;
+
+  private final int initialMaxSize;
+  private final LruCache<Object, CacheEntry> cache;
+  private final AtomicInteger photoHitCount = new AtomicInteger();
+  private final AtomicInteger photoMissCount = new AtomicInteger();
+
+  private PhotoCache(int maxSize) {
+    this.initialMaxSize = maxSize;
+    this.cache =
+        new LruCache<Object, CacheEntry>(maxSize) {
+          @Override
+          protected int sizeOf(Object key, CacheEntry entry) {
+            return entry.sizeBytes;
+          }
+
+          @Override
+          protected void entryRemoved(
+              boolean evicted, Object key, CacheEntry oldEntry, @Nullable CacheEntry newEntry) {
+            // Like Glide's own memory cache, treat an entry replaced by another one as evicted.
+            if (oldEntry.evictionListener != null
+                && (evicted || (newEntry != null && newEntry.value != oldEntry.value))) {
+              oldEntry.evictionListener.onEvicted(oldEntry.value);
+            }
+          }
+        };
+  }
+
+  public static synchronized PhotoCache get(Context context) {
+    if (instance == null) {
+      ActivityManager activityManager =
+          (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+      float fraction =
+          activityManager.isLowRamDevice() ? LOW_RAM_MEMORY_CLASS_FRACTION : MEMORY_CLASS_FRACTION;
+      int memoryClassBytes = activityManager.getMemoryClass() * 1024 * 1024;
+      instance = new PhotoCache((int) (memoryClassBytes * fraction));
+    }
+    return instance;
+  }
+
+  /**
+   * Returns the contact photo with {@code photoKey} if it was decoded with a sample size of at most
+   * {@code maxSampleSize}, that is at the requested resolution or a higher one.
+   *
+   * @param photoKey the photo ID or URI of the photo
+   */
+  @Nullable
+  public DecodedPhoto getPhoto(Object photoKey, int maxSampleSize) {
+    CacheEntry entry = cache.get(new PhotoKey(photoKey));
+    if (entry == null || ((DecodedPhoto) entry.value).sampleSize > maxSampleSize) {
+      photoMissCount.incrementAndGet();
+      return null;
+    }
+    photoHitCount.incrementAndGet();
+    return (DecodedPhoto) entry.value;
+  }
+
+  /**
+   * Returns the contact photo with {@code photoKey} if it is at least {@code minExtent} pixels wide
+   * and high, or if it was decoded at full resolution.
+   */
+  @Nullable
+  public DecodedPhoto getPhotoForExtent(Object photoKey, int minExtent) {
+    DecodedPhoto photo = findPhotoForExtent(photoKey, minExtent);
+    if (photo == null) {
+      photoMissCount.incrementAndGet();
+    } else {
+      photoHitCount.incrementAndGet();
+    }
+    return photo;
+  }
+
+  /**
+   * Returns whether {@link #getPhotoForExtent} would currently return a photo, without counting it
+   * as a hit or miss.
+   */
+  public boolean hasPhotoForExtent(Object photoKey, int minExtent) {
+    return findPhotoForExtent(photoKey, minExtent) != null;
+  }
+
+  @Nullable
+  private DecodedPhoto findPhotoForExtent(Object photoKey, int minExtent) {
+    CacheEntry entry = cache.get(new PhotoKey(photoKey));
+    if (entry == null) {
+      return null;
+    }
+    DecodedPhoto photo = (DecodedPhoto) entry.value;
+    if (photo.sampleSize == 1
+        || Math.min(photo.bitmap.getWidth(), photo.bitmap.getHeight()) >= minExtent) {
+      return photo;
+    }
+    return null;
+  }
+
+  /**
+   * Caches a contact photo decoded with {@code sampleSize}, unless the photo is already cached at a
+   * higher resolution.
+   */
+  public void putPhoto(Object photoKey, Bitmap bitmap, int sampleSize) {
+    PhotoKey key = new PhotoKey(photoKey);
+    CacheEntry entry = cache.get(key);
+    if (entry != null && ((DecodedPhoto) entry.value).sampleSize < sampleSize) {
+      return;
+    }
+    cache.put(
+        key,
+        new CacheEntry(
+            new DecodedPhoto(bitmap, sampleSize),
+            bitmap.getAllocationByteCount(),
+            /* evictionListener = */ null));
+  }
+
+  /** Removes all contact photos, leaving the other entries. */
+  public void evictPhotos() {
+    for (Object key : cache.snapshot().keySet()) {
+      if (key instanceof PhotoKey) {
+        cache.remove(key);
+      }
+    }
+  }
+
+  /** Returns the value of an entry added by {@link #put}, or null if there is none. */
+  @Nullable
+  public Object get(Object key) {
+    CacheEntry entry = cache.get(key);
+    return entry == null ? null : entry.value;
+  }
+
+  /**
+   * Caches {@code value}, which takes {@code sizeBytes} of memory.
+   *
+   * @param evictionListener notified if the value is evicted, but not if it is {@link #remove
+   *     removed}
+   * @return the value previously cached with {@code key}, if any
+   */
+  @Nullable
+  public Object put(
+      Object key, Object value, int sizeBytes, @Nullable EvictionListener evictionListener) {
+    CacheEntry previousEntry = cache.put(key, new CacheEntry(value, sizeBytes, evictionListener));
+    return previousEntry == null ? null : previousEntry.value;
+  }
+
+  /** Removes the entry with {@code key} and returns its value, or null if there is none. */
+  @Nullable
+  public Object remove(Object key) {
+    CacheEntry entry = cache.remove(key);
+    return entry == null ? null : entry.value;
+  }
+
+  /** Returns the size of all entries, in bytes. */
+  public long getCurrentSize() {
+    return cache.size();
+  }
+
+  /** Returns the maximum size of all entries, in bytes. */
+  public long getMaxSize() {
+    return cache.maxSize();
+  }
+
+  /** Changes the maximum size to {@code multiplier} times the initial one. */
+  public void setSizeMultiplier(float multiplier) {
+    cache.resize(Math.max(1, Math.round(initialMaxSize * multiplier)));
+  }
+
+  public void evictAll() {
+    cache.evictAll();
+  }
+
+  /**
+   * Evicts entries depending on {@code level}: all of them once the app is in the background or
+   * memory is critically low, half of them once the UI is hidden or memory is low.
+   *
+   * @see ComponentCallbacks2#onTrimMemory(int)
+   */
+  public void trimMemory(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      cache.evictAll();
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      cache.trimToSize(cache.maxSize() / 2);
+    }
+  }
+
+  /** Dumps cache stats on logcat. */
+  public void dumpStats() {
+    int photoCount = 0;
+    long photoBytes = 0;
+    int otherCount = 0;
+    long otherBytes = 0;
+    for (Map.Entry<Object, CacheEntry> mapEntry : cache.snapshot().entrySet()) {
+      if (mapEntry.getKey() instanceof PhotoKey) {
+        photoCount++;
+        photoBytes += mapEntry.getValue().sizeBytes;
+      } else {
+        otherCount++;
+        otherBytes += mapEntry.getValue().sizeBytes;
+      }
+    }
+    LogUtil.i(
+        "PhotoCache.dumpStats",
+        "size: %d/%d bytes, photos: %d (%d bytes), others: %d (%d bytes), "
+            + "photo hits: %d, photo misses: %d, hits: %d, misses: %d, evictions: %d",
+        cache.size(),
+        cache.maxSize(),
+        photoCount,
+        photoBytes,
+        otherCount,
+        otherBytes,
+        photoHitCount.get(),
+        photoMissCount.get(),
+        cache.hitCount(),
+        cache.missCount(),
+        cache.evictionCount());
+  }
+
+  /** A contact photo and the sample size it was decoded with. */
+  public static final class DecodedPhoto {
+    public final Bitmap bitmap;
+    public final int sampleSize;
+
+    DecodedPhoto(Bitmap bitmap, int sampleSize) {
+      this.bitmap = bitmap;
+      this.sampleSize = sampleSize;
+    }
+  }
+
+  private static final class CacheEntry {
+    final Object value;
+    final int sizeBytes;
+    @Nullable final EvictionListener evictionListener;
+
+    CacheEntry(Object value, int sizeBytes, @Nullable EvictionListener evictionListener) {
+      this.value = value;
+      this.sizeBytes = sizeBytes;
+      this.evictionListener = evictionListener;
+    }
+  }
+
+  /** Key of a contact photo: its photo ID or URI. */
+  private static final class PhotoKey {
+    private final Object idOrUri;
+
+    PhotoKey(Object idOrUri) {
+      this.idOrUri = idOrUri;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof PhotoKey && Objects.equals(idOrUri, ((PhotoKey) o).idOrUri);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(idOrUri);
+    }
+  }
+}
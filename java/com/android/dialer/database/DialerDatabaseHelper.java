@@ -24,7 +24,6 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract;
@@ -32,9 +31,9 @@ import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Directory;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.support.annotation.WorkerThread;
-import android.text.TextUtils;
 import com.android.contacts.common.util.StopWatch;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.common.concurrent.DefaultFutureCallback;
@@ -42,15 +41,15 @@ import com.android.dialer.common.concurrent.DialerExecutorComponent;
 import com.android.dialer.common.concurrent.DialerFutureSerializer;
 import com.android.dialer.common.database.Selection;
 import com.android.dialer.configprovider.ConfigProviderComponent;
-import com.android.dialer.contacts.resources.R;
 import com.android.dialer.database.FilteredNumberContract.FilteredNumberColumns;
+import com.android.dialer.smartdial.util.SmartDialMatchPosition;
 import com.android.dialer.smartdial.util.SmartDialNameMatcher;
-import com.android.dialer.smartdial.util.SmartDialPrefix;
 import com.android.dialer.util.PermissionsUtil;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 
@@ -67,7 +66,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    *   0-98   KitKat
    * </pre>
    */
-  public static final int DATABASE_VERSION = 10;
+  public static final int DATABASE_VERSION = 11;
 
   public static final String DATABASE_NAME = "dialer.db";
 
@@ -88,6 +87,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
 
   private final Context context;
   private final DialerFutureSerializer dialerFutureSerializer = new DialerFutureSerializer();
+  private final SmartDialPrefixIndex smartDialPrefixIndex = new SmartDialPrefixIndex();
 
   private boolean isTestInstance = false;
 
@@ -160,6 +160,8 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             + " INTEGER"
             + ");");
 
+    createSmartDialContactHashTable(db);
+
     db.execSQL(
         "CREATE TABLE "
             + Tables.PROPERTIES
@@ -204,8 +206,10 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
   }
 
   public void dropTables(SQLiteDatabase db) {
+    smartDialPrefixIndex.invalidate();
     db.execSQL("DROP TABLE IF EXISTS " + Tables.PREFIX_TABLE);
     db.execSQL("DROP TABLE IF EXISTS " + Tables.SMARTDIAL_TABLE);
+    db.execSQL("DROP TABLE IF EXISTS " + Tables.SMARTDIAL_CONTACT_HASH_TABLE);
     db.execSQL("DROP TABLE IF EXISTS " + Tables.PROPERTIES);
     db.execSQL("DROP TABLE IF EXISTS " + Tables.FILTERED_NUMBER_TABLE);
     db.execSQL("DROP TABLE IF EXISTS " + Tables.VOICEMAIL_ARCHIVE_TABLE);
@@ -268,6 +272,15 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
       oldVersion = 10;
     }
 
+    if (oldVersion < 11) {
+      createSmartDialContactHashTable(db);
+      // Existing rows have no hash yet, reload all contacts so that they get one.
+      if (!isTestInstance) {
+        resetSmartDialLastUpdatedTime();
+      }
+      oldVersion = 11;
+    }
+
     if (oldVersion != DATABASE_VERSION) {
       throw new IllegalStateException(
           "error upgrading the database to version " + DATABASE_VERSION);
@@ -280,6 +293,18 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     db.execSQL("ALTER TABLE smartdial_table ADD carrier_presence INTEGER NOT NULL DEFAULT 0");
   }
 
+  private static void createSmartDialContactHashTable(SQLiteDatabase db) {
+    db.execSQL(
+        "CREATE TABLE IF NOT EXISTS "
+            + Tables.SMARTDIAL_CONTACT_HASH_TABLE
+            + " ("
+            + SmartDialContactHashColumns.CONTACT_ID
+            + " INTEGER PRIMARY KEY, "
+            + SmartDialContactHashColumns.CONTACT_HASH
+            + " INTEGER"
+            + ");");
+  }
+
   /** Stores a key-value pair in the {@link Tables#PROPERTIES} table. */
   public void setProperty(String key, String value) {
     setProperty(getWritableDatabase(), key, value);
@@ -408,6 +433,17 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             Tables.PREFIX_TABLE,
             prefixSelection.getSelection(),
             prefixSelection.getSelectionArgs());
+
+        Selection hashSelection =
+            Selection.column(SmartDialContactHashColumns.CONTACT_ID).is("=", deleteContactId);
+        db.delete(
+            Tables.SMARTDIAL_CONTACT_HASH_TABLE,
+            hashSelection.getSelection(),
+            hashSelection.getSelectionArgs());
+
+        if (smartDialPrefixIndex.isLoaded()) {
+          smartDialPrefixIndex.removeContact(deleteContactId);
+        }
       } while (deletedContactCursor.moveToNext());
 
       db.setTransactionSuccessful();
@@ -438,8 +474,8 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    */
   private void removePotentiallyCorruptedContacts(SQLiteDatabase db, String last_update_time) {
     db.delete(
-        Tables.PREFIX_TABLE,
-        PrefixColumns.CONTACT_ID
+        Tables.SMARTDIAL_CONTACT_HASH_TABLE,
+        SmartDialContactHashColumns.CONTACT_ID
             + " IN "
             + "(SELECT "
             + SmartDialDbColumns.CONTACT_ID
@@ -452,212 +488,83 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             + ")",
         null);
     db.delete(
-        Tables.SMARTDIAL_TABLE,
-        SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + " > " + last_update_time,
+        Tables.PREFIX_TABLE,
+        PrefixColumns.CONTACT_ID
+            + " IN "
+            + "(SELECT "
+            + SmartDialDbColumns.CONTACT_ID
+            + " FROM "
+            + Tables.SMARTDIAL_TABLE
+            + " WHERE "
+            + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
+            + " > "
+            + last_update_time
+            + ")",
         null);
-  }
-
-  /**
-   * Removes rows in the smartdial database that matches updated contacts.
-   *
-   * @param db Database pointer to the smartdial database
-   * @param updatedContactCursor Cursor pointing to the list of recently updated contacts.
-   */
-  @VisibleForTesting
-  void removeUpdatedContacts(SQLiteDatabase db, Cursor updatedContactCursor) {
-    db.beginTransaction();
-    try {
-      updatedContactCursor.moveToPosition(-1);
-      while (updatedContactCursor.moveToNext()) {
-        if (updatedContactCursor.isNull(UpdatedContactQuery.UPDATED_CONTACT_ID)) {
-          LogUtil.i(
-              "DialerDatabaseHelper.removeUpdatedContacts",
-              "contact_id column null. Row was deleted during iteration, skipping");
-          continue;
-        }
-
-        final Long contactId = updatedContactCursor.getLong(UpdatedContactQuery.UPDATED_CONTACT_ID);
-
-        db.delete(Tables.SMARTDIAL_TABLE, SmartDialDbColumns.CONTACT_ID + "=" + contactId, null);
-        db.delete(Tables.PREFIX_TABLE, PrefixColumns.CONTACT_ID + "=" + contactId, null);
-      }
-
-      db.setTransactionSuccessful();
-    } finally {
-      db.endTransaction();
+    int removedRows =
+        db.delete(
+            Tables.SMARTDIAL_TABLE,
+            SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + " > " + last_update_time,
+            null);
+    if (removedRows > 0) {
+      // The removed contacts are not known individually; rebuild the index after the update.
+      smartDialPrefixIndex.invalidate();
     }
   }
 
   /**
-   * Inserts updated contacts as rows to the smartdial table.
-   *
-   * @param db Database pointer to the smartdial database.
-   * @param updatedContactCursor Cursor pointing to the list of recently updated contacts.
-   * @param currentMillis Current time to be recorded in the smartdial table as update timestamp.
+   * Returns the ids of the contacts updated in the contacts provider since {@code
+   * lastUpdateMillis}, or null if the query failed.
    */
-  @VisibleForTesting
-  protected void insertUpdatedContactsAndNumberPrefix(
-      SQLiteDatabase db, Cursor updatedContactCursor, Long currentMillis) {
-    db.beginTransaction();
-    try {
-      final String sqlInsert =
-          "INSERT INTO "
-              + Tables.SMARTDIAL_TABLE
-              + " ("
-              + SmartDialDbColumns.DATA_ID
-              + ", "
-              + SmartDialDbColumns.NUMBER
-              + ", "
-              + SmartDialDbColumns.CONTACT_ID
-              + ", "
-              + SmartDialDbColumns.LOOKUP_KEY
-              + ", "
-              + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
-              + ", "
-              + SmartDialDbColumns.PHOTO_ID
-              + ", "
-              + SmartDialDbColumns.LAST_TIME_USED
-              + ", "
-              + SmartDialDbColumns.TIMES_USED
-              + ", "
-              + SmartDialDbColumns.STARRED
-              + ", "
-              + SmartDialDbColumns.IS_SUPER_PRIMARY
-              + ", "
-              + SmartDialDbColumns.IN_VISIBLE_GROUP
-              + ", "
-              + SmartDialDbColumns.IS_PRIMARY
-              + ", "
-              + SmartDialDbColumns.CARRIER_PRESENCE
-              + ", "
-              + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
-              + ") "
-              + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-      final SQLiteStatement insert = db.compileStatement(sqlInsert);
-
-      final String numberSqlInsert =
-          "INSERT INTO "
-              + Tables.PREFIX_TABLE
-              + " ("
-              + PrefixColumns.CONTACT_ID
-              + ", "
-              + PrefixColumns.PREFIX
-              + ") "
-              + " VALUES (?, ?)";
-      final SQLiteStatement numberInsert = db.compileStatement(numberSqlInsert);
-
-      updatedContactCursor.moveToPosition(-1);
-      while (updatedContactCursor.moveToNext()) {
-        insert.clearBindings();
-
-        if (updatedContactCursor.isNull(PhoneQuery.PHONE_ID)) {
+  @Nullable
+  private Set<Long> queryUpdatedContactIds(String lastUpdateMillis) {
+    try (Cursor cursor =
+        context
+            .getContentResolver()
+            .query(
+                UpdatedContactQuery.URI,
+                UpdatedContactQuery.PROJECTION,
+                UpdatedContactQuery.SELECT_UPDATED_CLAUSE,
+                new String[] {lastUpdateMillis},
+                null)) {
+      if (cursor == null) {
+        return null;
+      }
+      Set<Long> contactIds = new HashSet<>();
+      while (cursor.moveToNext()) {
+        if (cursor.isNull(UpdatedContactQuery.UPDATED_CONTACT_ID)) {
           LogUtil.i(
-              "DialerDatabaseHelper.insertUpdatedContactsAndNumberPrefix",
-              "_id column null. Row was deleted during iteration, skipping");
-          continue;
-        }
-
-        // Handle string columns which can possibly be null first. In the case of certain
-        // null columns (due to malformed rows possibly inserted by third-party apps
-        // or sync adapters), skip the phone number row.
-        final String number = updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER);
-        if (TextUtils.isEmpty(number)) {
-          continue;
-        } else {
-          insert.bindString(2, number);
-        }
-
-        final String lookupKey = updatedContactCursor.getString(PhoneQuery.PHONE_LOOKUP_KEY);
-        if (TextUtils.isEmpty(lookupKey)) {
+              "DialerDatabaseHelper.queryUpdatedContactIds",
+              "contact_id column null. Row was deleted during iteration, skipping");
           continue;
-        } else {
-          insert.bindString(4, lookupKey);
-        }
-
-        final String displayName = updatedContactCursor.getString(PhoneQuery.PHONE_DISPLAY_NAME);
-        if (displayName == null) {
-          insert.bindString(5, context.getResources().getString(R.string.missing_name));
-        } else {
-          insert.bindString(5, displayName);
-        }
-        insert.bindLong(1, updatedContactCursor.getLong(PhoneQuery.PHONE_ID));
-        insert.bindLong(3, updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
-        insert.bindLong(6, updatedContactCursor.getLong(PhoneQuery.PHONE_PHOTO_ID));
-        insert.bindLong(7, updatedContactCursor.getLong(PhoneQuery.PHONE_LAST_TIME_USED));
-        insert.bindLong(8, updatedContactCursor.getInt(PhoneQuery.PHONE_TIMES_USED));
-        insert.bindLong(9, updatedContactCursor.getInt(PhoneQuery.PHONE_STARRED));
-        insert.bindLong(10, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_SUPER_PRIMARY));
-        insert.bindLong(11, updatedContactCursor.getInt(PhoneQuery.PHONE_IN_VISIBLE_GROUP));
-        insert.bindLong(12, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_PRIMARY));
-        insert.bindLong(13, updatedContactCursor.getInt(PhoneQuery.PHONE_CARRIER_PRESENCE));
-        insert.bindLong(14, currentMillis);
-        insert.executeInsert();
-        final String contactPhoneNumber = updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER);
-        final ArrayList<String> numberPrefixes =
-            SmartDialPrefix.parseToNumberTokens(context, contactPhoneNumber);
-
-        for (String numberPrefix : numberPrefixes) {
-          numberInsert.bindLong(1, updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
-          numberInsert.bindString(2, numberPrefix);
-          numberInsert.executeInsert();
-          numberInsert.clearBindings();
         }
+        contactIds.add(cursor.getLong(UpdatedContactQuery.UPDATED_CONTACT_ID));
       }
-
-      db.setTransactionSuccessful();
-    } finally {
-      db.endTransaction();
+      return contactIds;
     }
   }
 
-  /**
-   * Inserts prefixes of contact names to the prefix table.
-   *
-   * @param db Database pointer to the smartdial database.
-   * @param nameCursor Cursor pointing to the list of distinct updated contacts.
-   */
-  @VisibleForTesting
-  void insertNamePrefixes(SQLiteDatabase db, Cursor nameCursor) {
-    final int columnIndexName = nameCursor.getColumnIndex(SmartDialDbColumns.DISPLAY_NAME_PRIMARY);
-    final int columnIndexContactId = nameCursor.getColumnIndex(SmartDialDbColumns.CONTACT_ID);
-
-    db.beginTransaction();
-    try {
-      final String sqlInsert =
-          "INSERT INTO "
-              + Tables.PREFIX_TABLE
-              + " ("
-              + PrefixColumns.CONTACT_ID
-              + ", "
-              + PrefixColumns.PREFIX
-              + ") "
-              + " VALUES (?, ?)";
-      final SQLiteStatement insert = db.compileStatement(sqlInsert);
-
-      while (nameCursor.moveToNext()) {
-        if (nameCursor.isNull(columnIndexContactId)) {
-          LogUtil.i(
-              "DialerDatabaseHelper.insertNamePrefixes",
-              "contact_id column null. Row was deleted during iteration, skipping");
-          continue;
-        }
-
-        /** Computes a list of prefixes of a given contact name. */
-        final ArrayList<String> namePrefixes =
-            SmartDialPrefix.generateNamePrefixes(context, nameCursor.getString(columnIndexName));
-
-        for (String namePrefix : namePrefixes) {
-          insert.bindLong(1, nameCursor.getLong(columnIndexContactId));
-          insert.bindString(2, namePrefix);
-          insert.executeInsert();
-          insert.clearBindings();
+  /** Returns the ids of all contacts stored in the smart dial tables. */
+  private static Set<Long> queryStoredContactIds(SQLiteDatabase db) {
+    Set<Long> contactIds = new HashSet<>();
+    try (Cursor cursor =
+        db.rawQuery(
+            "SELECT "
+                + SmartDialDbColumns.CONTACT_ID
+                + " FROM "
+                + Tables.SMARTDIAL_TABLE
+                + " UNION SELECT "
+                + SmartDialContactHashColumns.CONTACT_ID
+                + " FROM "
+                + Tables.SMARTDIAL_CONTACT_HASH_TABLE,
+            null)) {
+      if (cursor != null) {
+        while (cursor.moveToNext()) {
+          contactIds.add(cursor.getLong(0));
         }
       }
-
-      db.setTransactionSuccessful();
-    } finally {
-      db.endTransaction();
     }
+    return contactIds;
   }
 
   /**
@@ -672,6 +579,16 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
   public void updateSmartDialDatabase(boolean forceUpdate) {
     LogUtil.enterBlock("DialerDatabaseHelper.updateSmartDialDatabase");
 
+    try {
+      updateSmartDialTables(forceUpdate);
+    } catch (RuntimeException e) {
+      // The index may contain rows of a transaction that has been rolled back.
+      smartDialPrefixIndex.invalidate();
+      throw e;
+    }
+  }
+
+  private void updateSmartDialTables(boolean forceUpdate) {
     final SQLiteDatabase db = getWritableDatabase();
 
     LogUtil.v("DialerDatabaseHelper.updateSmartDialDatabase", "starting to update database");
@@ -703,45 +620,28 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
 
     /** Removes contacts that have been deleted. */
     removeDeletedContacts(db, lastUpdateMillis);
-    removePotentiallyCorruptedContacts(db, lastUpdateMillis);
+    removePotentiallyCorruptedContacts(db, String.valueOf(sharedPrefLastUpdateMillis));
 
     if (DEBUG) {
       stopWatch.lap("Finished deleting deleted entries");
     }
 
     /**
-     * If the database did not exist before, jump through deletion as there is nothing to delete.
+     * Collects the contacts that may have lost all of their phone numbers. Note that this has to
+     * use a separate result set from updatedPhoneCursor, since it is possible for a contact to be
+     * updated (e.g. phone number deleted), but have no results show up in updatedPhoneCursor (since
+     * all of its phone numbers have been deleted). When reloading all contacts, every contact
+     * already in the database is a candidate.
      */
-    if (!lastUpdateMillis.equals("0")) {
-      /**
-       * Removes contacts that have been updated. Updated contact information will be inserted
-       * later. Note that this has to use a separate result set from updatePhoneCursor, since it is
-       * possible for a contact to be updated (e.g. phone number deleted), but have no results show
-       * up in updatedPhoneCursor (since all of its phone numbers have been deleted).
-       */
-      final Cursor updatedContactCursor =
-          context
-              .getContentResolver()
-              .query(
-                  UpdatedContactQuery.URI,
-                  UpdatedContactQuery.PROJECTION,
-                  UpdatedContactQuery.SELECT_UPDATED_CLAUSE,
-                  new String[] {lastUpdateMillis},
-                  null);
-      if (updatedContactCursor == null) {
-        LogUtil.e(
-            "DialerDatabaseHelper.updateSmartDialDatabase",
-            "smartDial query received null for cursor");
-        return;
-      }
-      try {
-        removeUpdatedContacts(db, updatedContactCursor);
-      } finally {
-        updatedContactCursor.close();
-      }
-      if (DEBUG) {
-        stopWatch.lap("Finished deleting entries belonging to updated contacts");
-      }
+    final Set<Long> removalCandidates =
+        lastUpdateMillis.equals("0")
+            ? queryStoredContactIds(db)
+            : queryUpdatedContactIds(lastUpdateMillis);
+    if (removalCandidates == null) {
+      LogUtil.e(
+          "DialerDatabaseHelper.updateSmartDialDatabase",
+          "smartDial query received null for cursor");
+      return;
     }
 
     /**
@@ -756,7 +656,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 PhoneQuery.PROJECTION,
                 PhoneQuery.SELECTION,
                 new String[] {lastUpdateMillis},
-                null);
+                PhoneQuery.SORT_ORDER);
     if (updatedPhoneCursor == null) {
       LogUtil.e(
           "DialerDatabaseHelper.updateSmartDialDatabase",
@@ -764,49 +664,18 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
       return;
     }
 
+    final SmartDialContactSyncer syncer =
+        new SmartDialContactSyncer(context, db, smartDialPrefixIndex, currentMillis);
     try {
-      /** Inserts recently updated phone numbers to the smartdial database. */
-      insertUpdatedContactsAndNumberPrefix(db, updatedPhoneCursor, currentMillis);
+      /** Writes the contacts whose rows or prefixes changed, and removes vanished contacts. */
+      syncer.sync(updatedPhoneCursor, removalCandidates);
       if (DEBUG) {
-        stopWatch.lap("Finished building the smart dial table");
+        stopWatch.lap("Finished syncing the smart dial and prefix tables");
       }
     } finally {
       updatedPhoneCursor.close();
     }
 
-    /**
-     * Gets a list of distinct contacts which have been updated, and adds the name prefixes of these
-     * contacts to the prefix table.
-     */
-    final Cursor nameCursor =
-        db.rawQuery(
-            "SELECT DISTINCT "
-                + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
-                + ", "
-                + SmartDialDbColumns.CONTACT_ID
-                + " FROM "
-                + Tables.SMARTDIAL_TABLE
-                + " WHERE "
-                + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
-                + " = "
-                + currentMillis,
-            new String[] {});
-    if (nameCursor != null) {
-      try {
-        if (DEBUG) {
-          stopWatch.lap("Queried the smart dial table for contact names");
-        }
-
-        /** Inserts prefixes of names into the prefix table. */
-        insertNamePrefixes(db, nameCursor);
-        if (DEBUG) {
-          stopWatch.lap("Finished building the name prefix table");
-        }
-      } finally {
-        nameCursor.close();
-      }
-    }
-
     /** Creates index on contact_id for fast JOIN operation. */
     db.execSQL(
         "CREATE INDEX IF NOT EXISTS smartdial_contact_id_index ON "
@@ -861,15 +730,25 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
       stopWatch.lap(TAG + "Finished recreating index");
     }
 
-    /** Updates the database index statistics. */
-    db.execSQL("ANALYZE " + Tables.SMARTDIAL_TABLE);
-    db.execSQL("ANALYZE " + Tables.PREFIX_TABLE);
-    db.execSQL("ANALYZE smartdial_contact_id_index");
-    db.execSQL("ANALYZE smartdial_last_update_index");
-    db.execSQL("ANALYZE nameprefix_index");
-    db.execSQL("ANALYZE nameprefix_contact_id_index");
+    /**
+     * Updates the database index statistics. Only worth it when the tables were (re)filled; small
+     * deltas do not change the statistics meaningfully.
+     */
+    if (syncer.hasChanges() && lastUpdateMillis.equals("0")) {
+      db.execSQL("ANALYZE " + Tables.SMARTDIAL_TABLE);
+      db.execSQL("ANALYZE " + Tables.PREFIX_TABLE);
+      db.execSQL("ANALYZE smartdial_contact_id_index");
+      db.execSQL("ANALYZE smartdial_last_update_index");
+      db.execSQL("ANALYZE nameprefix_index");
+      db.execSQL("ANALYZE nameprefix_contact_id_index");
+    }
+    if (DEBUG) {
+      stopWatch.lap(TAG + "Finished updating index stats");
+    }
+
+    loadSmartDialPrefixIndexIfNeeded(db);
     if (DEBUG) {
-      stopWatch.stopAndLog(TAG + "Finished updating index stats", 0);
+      stopWatch.stopAndLog(TAG + "Finished loading the prefix index", 0);
     }
 
     final SharedPreferences.Editor editor = databaseLastUpdateSharedPref.edit();
@@ -884,6 +763,70 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     context.sendBroadcast(intent);
   }
 
+  /**
+   * Loads the smart dial and prefix tables into {@link #smartDialPrefixIndex} if the index has not
+   * been loaded yet, was invalidated, or holds too many removed contacts. Otherwise the index has
+   * already been kept up to date by the rest of the update.
+   */
+  private void loadSmartDialPrefixIndexIfNeeded(SQLiteDatabase db) {
+    if (smartDialPrefixIndex.isLoaded() && !smartDialPrefixIndex.needsCompaction()) {
+      return;
+    }
+    smartDialPrefixIndex.reset();
+
+    try (Cursor cursor =
+        db.query(
+            Tables.SMARTDIAL_TABLE,
+            SmartDialIndexQuery.PROJECTION,
+            null /* selection */,
+            null /* selectionArgs */,
+            null /* groupBy */,
+            null /* having */,
+            null /* orderBy */)) {
+      if (cursor == null) {
+        return;
+      }
+      while (cursor.moveToNext()) {
+        smartDialPrefixIndex.addRow(
+            new ContactNumber(
+                cursor.getLong(SmartDialIndexQuery.CONTACT_ID),
+                cursor.getLong(SmartDialIndexQuery.DATA_ID),
+                cursor.getString(SmartDialIndexQuery.DISPLAY_NAME_PRIMARY),
+                cursor.getString(SmartDialIndexQuery.NUMBER),
+                cursor.getString(SmartDialIndexQuery.LOOKUP_KEY),
+                cursor.getLong(SmartDialIndexQuery.PHOTO_ID),
+                cursor.getInt(SmartDialIndexQuery.CARRIER_PRESENCE)),
+            cursor.getInt(SmartDialIndexQuery.STARRED) != 0,
+            cursor.getInt(SmartDialIndexQuery.IS_SUPER_PRIMARY) != 0,
+            cursor.getLong(SmartDialIndexQuery.LAST_TIME_USED),
+            cursor.getInt(SmartDialIndexQuery.TIMES_USED),
+            cursor.getInt(SmartDialIndexQuery.IN_VISIBLE_GROUP) != 0,
+            cursor.getInt(SmartDialIndexQuery.IS_PRIMARY) != 0);
+      }
+    }
+
+    try (Cursor cursor =
+        db.query(
+            Tables.PREFIX_TABLE,
+            new String[] {PrefixColumns.CONTACT_ID, PrefixColumns.PREFIX},
+            null /* selection */,
+            null /* selectionArgs */,
+            null /* groupBy */,
+            null /* having */,
+            null /* orderBy */)) {
+      if (cursor == null) {
+        return;
+      }
+      while (cursor.moveToNext()) {
+        if (!cursor.isNull(1)) {
+          smartDialPrefixIndex.addPrefix(cursor.getLong(0), cursor.getString(1));
+        }
+      }
+    }
+
+    smartDialPrefixIndex.finishLoad();
+  }
+
   /**
    * Returns a list of candidate contacts where the query is a prefix of the dialpad index of the
    * contact's name or phone number.
@@ -894,6 +837,12 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
   @WorkerThread
   public synchronized ArrayList<ContactNumber> getLooseMatches(
       String query, SmartDialNameMatcher nameMatcher) {
+    final List<ContactNumber> candidates =
+        smartDialPrefixIndex.query(query, System.currentTimeMillis());
+    if (candidates != null) {
+      return filterLooseMatches(query, nameMatcher, candidates);
+    }
+
     final SQLiteDatabase db = getReadableDatabase();
 
     /** Uses SQL query wildcard '%' to represent prefix matching. */
@@ -994,9 +943,10 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         /**
          * If the contact has either the name or number that matches the query, add to the result.
          */
-        final boolean nameMatches = nameMatcher.matches(context, displayName);
+        final boolean nameMatches = nameMatcher.matchesPacked(context, displayName);
         final boolean numberMatches =
-            (nameMatcher.matchesNumber(context, phoneNumber, query) != null);
+            nameMatcher.matchesNumberPacked(phoneNumber, query)
+                != SmartDialMatchPosition.NO_MATCH;
         if (nameMatches || numberMatches) {
           /** If a contact has not been added, add it to the result and the hash set. */
           duplicates.add(contactMatch);
@@ -1019,6 +969,34 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     return result;
   }
 
+  /**
+   * Same as the cursor loop of {@link #getLooseMatches(String, SmartDialNameMatcher)}, over the
+   * sorted candidates returned by {@link #smartDialPrefixIndex}.
+   */
+  private ArrayList<ContactNumber> filterLooseMatches(
+      String query, SmartDialNameMatcher nameMatcher, List<ContactNumber> candidates) {
+    final ArrayList<ContactNumber> result = new ArrayList<>();
+    final Set<ContactMatch> duplicates = new HashSet<>();
+    for (ContactNumber candidate : candidates) {
+      if (result.size() >= MAX_ENTRIES) {
+        break;
+      }
+      final ContactMatch contactMatch = new ContactMatch(candidate.lookupKey, candidate.id);
+      if (duplicates.contains(contactMatch)) {
+        continue;
+      }
+      final boolean nameMatches = nameMatcher.matchesPacked(context, candidate.displayName);
+      final boolean numberMatches =
+          nameMatcher.matchesNumberPacked(candidate.phoneNumber, query)
+              != SmartDialMatchPosition.NO_MATCH;
+      if (nameMatches || numberMatches) {
+        duplicates.add(contactMatch);
+        result.add(candidate);
+      }
+    }
+    return result;
+  }
+
   public interface Tables {
 
     /** Saves a list of numbers to be blocked. */
@@ -1027,6 +1005,8 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     String SMARTDIAL_TABLE = "smartdial_table";
     /** Saves all possible prefixes to refer to a contacts. */
     String PREFIX_TABLE = "prefix_table";
+    /** Saves a hash of the rows and prefixes of each contact in the two tables above. */
+    String SMARTDIAL_CONTACT_HASH_TABLE = "smartdial_contact_hash_table";
     /** Saves all archived voicemail information. */
     String VOICEMAIL_ARCHIVE_TABLE = "voicemail_archive_table";
     /** Database properties for internal use */
@@ -1058,6 +1038,12 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     String CONTACT_ID = "contact_id";
   }
 
+  public interface SmartDialContactHashColumns {
+
+    String CONTACT_ID = "contact_id";
+    String CONTACT_HASH = "contact_hash";
+  }
+
   public interface PropertiesColumns {
 
     String PROPERTY_KEY = "property_key";
@@ -1122,6 +1108,44 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     String SELECT_IGNORE_LOOKUP_KEY_TOO_LONG_CLAUSE = "length(" + Phone.LOOKUP_KEY + ") < 1000";
 
     String SELECTION = SELECT_UPDATED_CLAUSE + " AND " + SELECT_IGNORE_LOOKUP_KEY_TOO_LONG_CLAUSE;
+
+    /** Groups the rows of each contact together. */
+    String SORT_ORDER = Phone.CONTACT_ID + ", " + Phone._ID;
+  }
+
+  /** Query options for loading the smart dial table into {@link SmartDialPrefixIndex}. */
+  private interface SmartDialIndexQuery {
+
+    String[] PROJECTION =
+        new String[] {
+          SmartDialDbColumns.DATA_ID, // 0
+          SmartDialDbColumns.DISPLAY_NAME_PRIMARY, // 1
+          SmartDialDbColumns.PHOTO_ID, // 2
+          SmartDialDbColumns.NUMBER, // 3
+          SmartDialDbColumns.CONTACT_ID, // 4
+          SmartDialDbColumns.LOOKUP_KEY, // 5
+          SmartDialDbColumns.CARRIER_PRESENCE, // 6
+          SmartDialDbColumns.STARRED, // 7
+          SmartDialDbColumns.IS_SUPER_PRIMARY, // 8
+          SmartDialDbColumns.LAST_TIME_USED, // 9
+          SmartDialDbColumns.TIMES_USED, // 10
+          SmartDialDbColumns.IN_VISIBLE_GROUP, // 11
+          SmartDialDbColumns.IS_PRIMARY, // 12
+        };
+
+    int DATA_ID = 0;
+    int DISPLAY_NAME_PRIMARY = 1;
+    int PHOTO_ID = 2;
+    int NUMBER = 3;
+    int CONTACT_ID = 4;
+    int LOOKUP_KEY = 5;
+    int CARRIER_PRESENCE = 6;
+    int STARRED = 7;
+    int IS_SUPER_PRIMARY = 8;
+    int LAST_TIME_USED = 9;
+    int TIMES_USED = 10;
+    int IN_VISIBLE_GROUP = 11;
+    int IS_PRIMARY = 12;
   }
 
   /**
@@ -1166,7 +1190,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    * Gets the sorting order for the smartdial table. This computes a SQL "ORDER BY" argument by
    * composing contact status and recent contact details together.
    */
-  private interface SmartDialSortingOrder {
+  interface SmartDialSortingOrder {
 
     /** Current contacts - those contacted within the last 3 days (in milliseconds) */
     long LAST_TIME_USED_CURRENT_MS = 3L * 24 * 60 * 60 * 1000;
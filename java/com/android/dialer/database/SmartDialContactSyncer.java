@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.WorkerThread;
+import android.text.TextUtils;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.contacts.resources.R;
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.database.DialerDatabaseHelper.PhoneQuery;
+import com.android.dialer.database.DialerDatabaseHelper.PrefixColumns;
+import com.android.dialer.database.DialerDatabaseHelper.SmartDialContactHashColumns;
+import com.android.dialer.database.DialerDatabaseHelper.SmartDialDbColumns;
+import com.android.dialer.database.DialerDatabaseHelper.Tables;
+import com.android.dialer.smartdial.util.SmartDialPrefix;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Brings the smart dial and prefix tables in line with the contacts provider one contact at a time.
+ *
+ * <p>For every contact in the phone cursor, the rows and prefixes that would be written are
+ * computed in memory and hashed. If the hash equals the one stored in {@link
+ * Tables#SMARTDIAL_CONTACT_HASH_TABLE} the contact is skipped, otherwise its old rows are replaced.
+ * Each contact is written atomically, so the tables never hold a partially written contact.
+ */
+final class SmartDialContactSyncer {
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final Context context;
+  private final SQLiteDatabase db;
+  private final SmartDialPrefixIndex smartDialPrefixIndex;
+  private final long currentMillis;
+
+  private final Map<Long, Long> storedHashes = new HashMap<>();
+
+  private SQLiteStatement insertRow;
+  private SQLiteStatement insertPrefix;
+  private SQLiteStatement deleteRows;
+  private SQLiteStatement deletePrefixes;
+  private SQLiteStatement deleteHash;
+  private SQLiteStatement replaceHash;
+
+  private int contactsWritten;
+  private int contactsSkipped;
+  private int contactsRemoved;
+  private int rowsWritten;
+  private int rowsSkipped;
+
+  SmartDialContactSyncer(
+      Context context,
+      SQLiteDatabase db,
+      SmartDialPrefixIndex smartDialPrefixIndex,
+      long currentMillis) {
+    this.context = context;
+    this.db = db;
+    this.smartDialPrefixIndex = smartDialPrefixIndex;
+    this.currentMillis = currentMillis;
+  }
+
+  /**
+   * Writes the contacts of {@code phoneCursor} whose content changed, and removes every contact of
+   * {@code removalCandidates} that does not appear in the cursor.
+   *
+   * @param phoneCursor rows of {@link PhoneQuery}, sorted by {@link PhoneQuery#SORT_ORDER}.
+   */
+  @WorkerThread
+  void sync(Cursor phoneCursor, Set<Long> removalCandidates) {
+    loadStoredHashes();
+
+    db.beginTransaction();
+    try {
+      compileStatements();
+
+      List<ContactRow> contactRows = new ArrayList<>();
+      long currentContactId = 0;
+      phoneCursor.moveToPosition(-1);
+      while (phoneCursor.moveToNext()) {
+        ContactRow row = readRow(phoneCursor);
+        if (row == null) {
+          continue;
+        }
+        if (!contactRows.isEmpty() && row.contactNumber.id != currentContactId) {
+          syncContact(currentContactId, contactRows);
+          removalCandidates.remove(currentContactId);
+          contactRows.clear();
+        }
+        currentContactId = row.contactNumber.id;
+        contactRows.add(row);
+      }
+      if (!contactRows.isEmpty()) {
+        syncContact(currentContactId, contactRows);
+        removalCandidates.remove(currentContactId);
+      }
+
+      for (long contactId : removalCandidates) {
+        removeContact(contactId);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      closeStatements();
+    }
+
+    LogUtil.i(
+        "SmartDialContactSyncer.sync",
+        "contacts written: %d, skipped: %d, removed: %d; rows written: %d, skipped: %d",
+        contactsWritten,
+        contactsSkipped,
+        contactsRemoved,
+        rowsWritten,
+        rowsSkipped);
+  }
+
+  /** Number of smart dial and prefix rows deleted or inserted by {@link #sync}. */
+  int getRowsWritten() {
+    return rowsWritten;
+  }
+
+  /** Number of smart dial and prefix rows left untouched by {@link #sync} because they matched. */
+  int getRowsSkipped() {
+    return rowsSkipped;
+  }
+
+  /** Whether {@link #sync} changed the tables at all. */
+  boolean hasChanges() {
+    return contactsWritten > 0 || contactsRemoved > 0;
+  }
+
+  private void loadStoredHashes() {
+    try (Cursor cursor =
+        db.query(
+            Tables.SMARTDIAL_CONTACT_HASH_TABLE,
+            new String[] {
+              SmartDialContactHashColumns.CONTACT_ID, SmartDialContactHashColumns.CONTACT_HASH
+            },
+            null /* selection */,
+            null /* selectionArgs */,
+            null /* groupBy */,
+            null /* having */,
+            null /* orderBy */)) {
+      if (cursor == null) {
+        return;
+      }
+      while (cursor.moveToNext()) {
+        storedHashes.put(cursor.getLong(0), cursor.getLong(1));
+      }
+    }
+  }
+
+  private ContactRow readRow(Cursor cursor) {
+    if (cursor.isNull(PhoneQuery.PHONE_ID)) {
+      LogUtil.i(
+          "SmartDialContactSyncer.readRow",
+          "_id column null. Row was deleted during iteration, skipping");
+      return null;
+    }
+
+    // In the case of certain null columns (due to malformed rows possibly inserted by third-party
+    // apps or sync adapters), skip the phone number row.
+    String number = cursor.getString(PhoneQuery.PHONE_NUMBER);
+    if (TextUtils.isEmpty(number)) {
+      return null;
+    }
+    String lookupKey = cursor.getString(PhoneQuery.PHONE_LOOKUP_KEY);
+    if (TextUtils.isEmpty(lookupKey)) {
+      return null;
+    }
+    String displayName = cursor.getString(PhoneQuery.PHONE_DISPLAY_NAME);
+    if (displayName == null) {
+      displayName = context.getResources().getString(R.string.missing_name);
+    }
+
+    return new ContactRow(
+        new ContactNumber(
+            cursor.getLong(PhoneQuery.PHONE_CONTACT_ID),
+            cursor.getLong(PhoneQuery.PHONE_ID),
+            displayName,
+            number,
+            lookupKey,
+            cursor.getLong(PhoneQuery.PHONE_PHOTO_ID),
+            cursor.getInt(PhoneQuery.PHONE_CARRIER_PRESENCE)),
+        cursor.getLong(PhoneQuery.PHONE_LAST_TIME_USED),
+        cursor.getInt(PhoneQuery.PHONE_TIMES_USED),
+        cursor.getInt(PhoneQuery.PHONE_STARRED),
+        cursor.getInt(PhoneQuery.PHONE_IS_SUPER_PRIMARY),
+        cursor.getInt(PhoneQuery.PHONE_IN_VISIBLE_GROUP),
+        cursor.getInt(PhoneQuery.PHONE_IS_PRIMARY),
+        SmartDialPrefix.parseToNumberTokens(context, number));
+  }
+
+  private void syncContact(long contactId, List<ContactRow> rows) {
+    // Name prefixes are stored once per distinct display name, number prefixes once per row.
+    Set<String> displayNames = new LinkedHashSet<>();
+    int prefixCount = 0;
+    long hash = FNV_OFFSET_BASIS;
+    for (ContactRow row : rows) {
+      hash = row.hash(hash);
+      prefixCount += row.numberPrefixes.size();
+      displayNames.add(row.contactNumber.displayName);
+    }
+    List<String> namePrefixes = new ArrayList<>();
+    for (String displayName : displayNames) {
+      namePrefixes.addAll(SmartDialPrefix.generateNamePrefixes(context, displayName));
+    }
+    for (String namePrefix : namePrefixes) {
+      hash = hash(hash, namePrefix);
+    }
+    prefixCount += namePrefixes.size();
+
+    Long storedHash = storedHashes.get(contactId);
+    if (storedHash != null && storedHash == hash) {
+      contactsSkipped++;
+      rowsSkipped += rows.size() + prefixCount;
+      return;
+    }
+
+    deleteContactRows(contactId);
+    boolean updateIndex = smartDialPrefixIndex.isLoaded();
+    if (updateIndex) {
+      smartDialPrefixIndex.removeContact(contactId);
+    }
+
+    for (ContactRow row : rows) {
+      row.bind(insertRow, currentMillis);
+      insertRow.executeInsert();
+      for (String numberPrefix : row.numberPrefixes) {
+        insertPrefix(contactId, numberPrefix);
+      }
+      if (updateIndex) {
+        smartDialPrefixIndex.addRow(
+            row.contactNumber,
+            row.starred != 0,
+            row.superPrimary != 0,
+            row.lastTimeUsed,
+            row.timesUsed,
+            row.inVisibleGroup != 0,
+            row.primary != 0);
+        for (String numberPrefix : row.numberPrefixes) {
+          smartDialPrefixIndex.addPrefix(contactId, numberPrefix);
+        }
+      }
+    }
+    for (String namePrefix : namePrefixes) {
+      insertPrefix(contactId, namePrefix);
+      if (updateIndex) {
+        smartDialPrefixIndex.addPrefix(contactId, namePrefix);
+      }
+    }
+
+    replaceHash.bindLong(1, contactId);
+    replaceHash.bindLong(2, hash);
+    replaceHash.executeInsert();
+
+    contactsWritten++;
+    rowsWritten += rows.size() + prefixCount;
+
+    // Lets readers of the database in between contacts; every contact is complete at this point.
+    db.yieldIfContendedSafely();
+  }
+
+  private void removeContact(long contactId) {
+    deleteContactRows(contactId);
+    deleteHash.bindLong(1, contactId);
+    deleteHash.executeUpdateDelete();
+    if (smartDialPrefixIndex.isLoaded()) {
+      smartDialPrefixIndex.removeContact(contactId);
+    }
+    contactsRemoved++;
+  }
+
+  private void deleteContactRows(long contactId) {
+    deleteRows.bindLong(1, contactId);
+    rowsWritten += deleteRows.executeUpdateDelete();
+    deletePrefixes.bindLong(1, contactId);
+    rowsWritten += deletePrefixes.executeUpdateDelete();
+  }
+
+  private void insertPrefix(long contactId, String prefix) {
+    insertPrefix.bindLong(1, contactId);
+    insertPrefix.bindString(2, prefix);
+    insertPrefix.executeInsert();
+  }
+
+  private void compileStatements() {
+    insertRow =
+        db.compileStatement(
+            "INSERT INTO "
+                + Tables.SMARTDIAL_TABLE
+                + " ("
+                + SmartDialDbColumns.DATA_ID
+                + ", "
+                + SmartDialDbColumns.NUMBER
+                + ", "
+                + SmartDialDbColumns.CONTACT_ID
+                + ", "
+                + SmartDialDbColumns.LOOKUP_KEY
+                + ", "
+                + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
+                + ", "
+                + SmartDialDbColumns.PHOTO_ID
+                + ", "
+                + SmartDialDbColumns.LAST_TIME_USED
+                + ", "
+                + SmartDialDbColumns.TIMES_USED
+                + ", "
+                + SmartDialDbColumns.STARRED
+                + ", "
+                + SmartDialDbColumns.IS_SUPER_PRIMARY
+                + ", "
+                + SmartDialDbColumns.IN_VISIBLE_GROUP
+                + ", "
+                + SmartDialDbColumns.IS_PRIMARY
+                + ", "
+                + SmartDialDbColumns.CARRIER_PRESENCE
+                + ", "
+                + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
+                + ") "
+                + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+    insertPrefix =
+        db.compileStatement(
+            "INSERT INTO "
+                + Tables.PREFIX_TABLE
+                + " ("
+                + PrefixColumns.CONTACT_ID
+                + ", "
+                + PrefixColumns.PREFIX
+                + ") "
+                + " VALUES (?, ?)");
+    deleteRows =
+        db.compileStatement(
+            "DELETE FROM "
+                + Tables.SMARTDIAL_TABLE
+                + " WHERE "
+                + SmartDialDbColumns.CONTACT_ID
+                + "=?");
+    deletePrefixes =
+        db.compileStatement(
+            "DELETE FROM " + Tables.PREFIX_TABLE + " WHERE " + PrefixColumns.CONTACT_ID + "=?");
+    deleteHash =
+        db.compileStatement(
+            "DELETE FROM "
+                + Tables.SMARTDIAL_CONTACT_HASH_TABLE
+                + " WHERE "
+                + SmartDialContactHashColumns.CONTACT_ID
+                + "=?");
+    replaceHash =
+        db.compileStatement(
+            "INSERT OR REPLACE INTO "
+                + Tables.SMARTDIAL_CONTACT_HASH_TABLE
+                + " ("
+                + SmartDialContactHashColumns.CONTACT_ID
+                + ", "
+                + SmartDialContactHashColumns.CONTACT_HASH
+                + ") "
+                + " VALUES (?, ?)");
+  }
+
+  private void closeStatements() {
+    SQLiteStatement[] statements = {
+      insertRow, insertPrefix, deleteRows, deletePrefixes, deleteHash, replaceHash
+    };
+    for (SQLiteStatement statement : statements) {
+      if (statement != null) {
+        statement.close();
+      }
+    }
+  }
+
+  private static long hash(long hash, long value) {
+    for (int i = 0; i < 8; i++) {
+      hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+      value >>>= 8;
+    }
+    return hash;
+  }
+
+  private static long hash(long hash, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+    }
+    // Terminates the string so that adjacent strings cannot be confused with each other.
+    return (hash ^ 0xffff) * FNV_PRIME;
+  }
+
+  /** A row of {@link PhoneQuery} as it will be written to the smart dial table. */
+  private static final class ContactRow {
+
+    final ContactNumber contactNumber;
+    final long lastTimeUsed;
+    final int timesUsed;
+    final int starred;
+    final int superPrimary;
+    final int inVisibleGroup;
+    final int primary;
+    final List<String> numberPrefixes;
+
+    ContactRow(
+        ContactNumber contactNumber,
+        long lastTimeUsed,
+        int timesUsed,
+        int starred,
+        int superPrimary,
+        int inVisibleGroup,
+        int primary,
+        List<String> numberPrefixes) {
+      this.contactNumber = contactNumber;
+      this.lastTimeUsed = lastTimeUsed;
+      this.timesUsed = timesUsed;
+      this.starred = starred;
+      this.superPrimary = superPrimary;
+      this.inVisibleGroup = inVisibleGroup;
+      this.primary = primary;
+      this.numberPrefixes = numberPrefixes;
+    }
+
+    long hash(long hash) {
+      hash = SmartDialContactSyncer.hash(hash, contactNumber.dataId);
+      hash = SmartDialContactSyncer.hash(hash, contactNumber.phoneNumber);
+      hash = SmartDialContactSyncer.hash(hash, contactNumber.lookupKey);
+      hash = SmartDialContactSyncer.hash(hash, contactNumber.displayName);
+      hash = SmartDialContactSyncer.hash(hash, contactNumber.photoId);
+      hash = SmartDialContactSyncer.hash(hash, contactNumber.carrierPresence);
+      hash = SmartDialContactSyncer.hash(hash, lastTimeUsed);
+      hash = SmartDialContactSyncer.hash(hash, timesUsed);
+      hash = SmartDialContactSyncer.hash(hash, starred);
+      hash = SmartDialContactSyncer.hash(hash, superPrimary);
+      hash = SmartDialContactSyncer.hash(hash, inVisibleGroup);
+      hash = SmartDialContactSyncer.hash(hash, primary);
+      for (String numberPrefix : numberPrefixes) {
+        hash = SmartDialContactSyncer.hash(hash, numberPrefix);
+      }
+      return hash;
+    }
+
+    void bind(SQLiteStatement insert, long currentMillis) {
+      insert.clearBindings();
+      insert.bindLong(1, contactNumber.dataId);
+      insert.bindString(2, contactNumber.phoneNumber);
+      insert.bindLong(3, contactNumber.id);
+      insert.bindString(4, contactNumber.lookupKey);
+      insert.bindString(5, contactNumber.displayName);
+      insert.bindLong(6, contactNumber.photoId);
+      insert.bindLong(7, lastTimeUsed);
+      insert.bindLong(8, timesUsed);
+      insert.bindLong(9, starred);
+      insert.bindLong(10, superPrimary);
+      insert.bindLong(11, inVisibleGroup);
+      insert.bindLong(12, primary);
+      insert.bindLong(13, contactNumber.carrierPresence);
+      insert.bindLong(14, currentMillis);
+    }
+  }
+}
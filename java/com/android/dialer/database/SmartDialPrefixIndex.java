@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.support.annotation.Nullable;
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.database.DialerDatabaseHelper.SmartDialSortingOrder;
+import com.google.common.collect.Lists;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory mirror of {@link DialerDatabaseHelper.Tables#SMARTDIAL_TABLE} and {@link
+ * DialerDatabaseHelper.Tables#PREFIX_TABLE}, organized as a T9 trie so that dialpad queries can be
+ * answered without SQLite.
+ *
+ * <p>Trie nodes and postings are stored in parallel primitive arrays. Every prefix row becomes a
+ * path in the trie, and the node at the end of the path holds a posting for the contact's slot.
+ * The candidates for a query are all slots posted in the subtree below the query's node.
+ *
+ * <p>The index remembers the node and the ordered candidates of the previous query. When the next
+ * query extends the previous one (the user typed another digit), the search continues from the
+ * previous node and the previous candidates are narrowed instead of being collected and sorted
+ * again.
+ *
+ * <p>The index is only mutated by the thread running {@link
+ * DialerDatabaseHelper#updateSmartDialDatabase(boolean)}; queries may come from any thread.
+ */
+final class SmartDialPrefixIndex {
+
+  private static final int ROOT = 0;
+  private static final int NO_NODE = -1;
+  private static final int NO_POSTING = -1;
+  private static final int INITIAL_CAPACITY = 256;
+
+  /** Minimum number of removed contacts before the index asks to be rebuilt. */
+  private static final int MIN_DEAD_SLOTS_FOR_COMPACTION = 64;
+
+  private char[] nodeChar;
+  private int[] nodeFirstChild;
+  private int[] nodeNextSibling;
+  private int[] nodePostingHead;
+  private int nodeCount;
+
+  private int[] postingSlot;
+  private int[] postingNext;
+  private int postingCount;
+
+  /** Rows of each contact slot, or null once the contact has been removed. */
+  private final ArrayList<List<IndexedRow>> slotRows = new ArrayList<>();
+
+  private final Map<Long, Integer> contactIdToSlot = new HashMap<>();
+  private int deadSlots;
+
+  /** Marks slots visited by the current query; compared against {@link #stamp}. */
+  private int[] slotStamp = new int[0];
+
+  private int stamp;
+  private int[] stack = new int[0];
+  private int[] candidateSlots = new int[0];
+
+  private boolean loaded;
+  private int version;
+
+  @Nullable private String lastQuery;
+  private int lastNode = NO_NODE;
+  private int lastVersion = -1;
+  private List<IndexedRow> lastRows = Collections.emptyList();
+
+  /** Whether the index mirrors the database and can be used to answer queries. */
+  synchronized boolean isLoaded() {
+    return loaded;
+  }
+
+  /** Drops all contents. Queries are answered by the database until {@link #finishLoad()}. */
+  synchronized void reset() {
+    nodeChar = new char[INITIAL_CAPACITY];
+    nodeFirstChild = new int[INITIAL_CAPACITY];
+    nodeNextSibling = new int[INITIAL_CAPACITY];
+    nodePostingHead = new int[INITIAL_CAPACITY];
+    nodeCount = 0;
+    newNode('\0');
+
+    postingSlot = new int[INITIAL_CAPACITY];
+    postingNext = new int[INITIAL_CAPACITY];
+    postingCount = 0;
+
+    slotRows.clear();
+    contactIdToSlot.clear();
+    deadSlots = 0;
+    slotStamp = new int[0];
+    candidateSlots = new int[0];
+    stamp = 0;
+
+    loaded = false;
+    version++;
+    clearLastQuery();
+  }
+
+  /** Marks the index as a complete mirror of the database after a {@link #reset()}. */
+  synchronized void finishLoad() {
+    loaded = true;
+    version++;
+  }
+
+  /** Discards the index. It has to be reset and reloaded before it is used again. */
+  synchronized void invalidate() {
+    loaded = false;
+    nodeChar = null;
+    nodeFirstChild = null;
+    nodeNextSibling = null;
+    nodePostingHead = null;
+    postingSlot = null;
+    postingNext = null;
+    slotRows.clear();
+    contactIdToSlot.clear();
+    version++;
+    clearLastQuery();
+  }
+
+  /** Whether enough contacts were removed that rebuilding the index would reclaim memory. */
+  synchronized boolean needsCompaction() {
+    return deadSlots >= MIN_DEAD_SLOTS_FOR_COMPACTION && deadSlots > contactIdToSlot.size();
+  }
+
+  /** Adds a row of the smart dial table. */
+  synchronized void addRow(
+      ContactNumber contactNumber,
+      boolean starred,
+      boolean superPrimary,
+      long lastTimeUsed,
+      int timesUsed,
+      boolean inVisibleGroup,
+      boolean primary) {
+    int slot = getOrCreateSlot(contactNumber.id);
+    slotRows
+        .get(slot)
+        .add(
+            new IndexedRow(
+                slot,
+                contactNumber,
+                starred,
+                superPrimary,
+                lastTimeUsed,
+                timesUsed,
+                inVisibleGroup,
+                primary));
+    version++;
+  }
+
+  /** Adds a row of the prefix table. */
+  synchronized void addPrefix(long contactId, String prefix) {
+    int slot = getOrCreateSlot(contactId);
+    int node = ROOT;
+    for (int i = 0; i < prefix.length(); i++) {
+      char c = prefix.charAt(i);
+      int child = findChild(node, c);
+      if (child == NO_NODE) {
+        child = newNode(c);
+        nodeNextSibling[child] = nodeFirstChild[node];
+        nodeFirstChild[node] = child;
+      }
+      node = child;
+    }
+    int head = nodePostingHead[node];
+    if (head == NO_POSTING || postingSlot[head] != slot) {
+      nodePostingHead[node] = newPosting(slot, head);
+    }
+    version++;
+  }
+
+  /** Removes all rows and prefixes of a contact. */
+  synchronized void removeContact(long contactId) {
+    Integer slot = contactIdToSlot.remove(contactId);
+    if (slot == null) {
+      return;
+    }
+    // Postings of the slot stay in the trie and are skipped by queries until the next rebuild.
+    slotRows.set(slot, null);
+    deadSlots++;
+    version++;
+  }
+
+  /**
+   * Returns the rows of all contacts that have a prefix starting with {@code query}, in the order
+   * defined by {@link SmartDialSortingOrder#SORT_ORDER}, or null if the index is not loaded.
+   */
+  @Nullable
+  synchronized List<ContactNumber> query(String query, long nowMillis) {
+    if (!loaded) {
+      return null;
+    }
+
+    List<IndexedRow> rows;
+    int node;
+    if (lastQuery != null && lastVersion == version && query.startsWith(lastQuery)) {
+      node = walk(lastNode, query, lastQuery.length());
+      rows = node == lastNode ? lastRows : narrow(lastRows, node);
+    } else {
+      node = walk(ROOT, query, 0);
+      rows = collect(node, nowMillis);
+    }
+
+    lastQuery = query;
+    lastNode = node;
+    lastVersion = version;
+    lastRows = rows;
+    return Lists.transform(rows, row -> row.contactNumber);
+  }
+
+  private void clearLastQuery() {
+    lastQuery = null;
+    lastNode = NO_NODE;
+    lastVersion = -1;
+    lastRows = Collections.emptyList();
+  }
+
+  private int getOrCreateSlot(long contactId) {
+    Integer slot = contactIdToSlot.get(contactId);
+    if (slot != null) {
+      return slot;
+    }
+    int newSlot = slotRows.size();
+    slotRows.add(new ArrayList<>(1));
+    contactIdToSlot.put(contactId, newSlot);
+    return newSlot;
+  }
+
+  private int newNode(char c) {
+    if (nodeCount == nodeChar.length) {
+      int capacity = nodeCount * 2;
+      nodeChar = Arrays.copyOf(nodeChar, capacity);
+      nodeFirstChild = Arrays.copyOf(nodeFirstChild, capacity);
+      nodeNextSibling = Arrays.copyOf(nodeNextSibling, capacity);
+      nodePostingHead = Arrays.copyOf(nodePostingHead, capacity);
+    }
+    int node = nodeCount++;
+    nodeChar[node] = c;
+    nodeFirstChild[node] = NO_NODE;
+    nodeNextSibling[node] = NO_NODE;
+    nodePostingHead[node] = NO_POSTING;
+    return node;
+  }
+
+  private int newPosting(int slot, int next) {
+    if (postingCount == postingSlot.length) {
+      int capacity = postingCount * 2;
+      postingSlot = Arrays.copyOf(postingSlot, capacity);
+      postingNext = Arrays.copyOf(postingNext, capacity);
+    }
+    int posting = postingCount++;
+    postingSlot[posting] = slot;
+    postingNext[posting] = next;
+    return posting;
+  }
+
+  private int findChild(int node, char c) {
+    for (int child = nodeFirstChild[node]; child != NO_NODE; child = nodeNextSibling[child]) {
+      if (nodeChar[child] == c) {
+        return child;
+      }
+    }
+    return NO_NODE;
+  }
+
+  /** Follows {@code query} from {@code start} beginning at character {@code offset}. */
+  private int walk(int start, String query, int offset) {
+    int node = start;
+    for (int i = offset; i < query.length() && node != NO_NODE; i++) {
+      node = findChild(node, query.charAt(i));
+    }
+    return node;
+  }
+
+  /**
+   * Marks every live slot posted in the subtree of {@code node} with a fresh {@link #stamp} and
+   * returns how many were found. The slots are written to {@link #candidateSlots}.
+   */
+  private int markSubtree(int node) {
+    if (++stamp == 0) {
+      Arrays.fill(slotStamp, 0);
+      stamp = 1;
+    }
+    if (slotStamp.length < slotRows.size()) {
+      slotStamp = Arrays.copyOf(slotStamp, slotRows.size());
+    }
+    if (node == NO_NODE) {
+      return 0;
+    }
+    if (stack.length < nodeCount) {
+      stack = new int[nodeCount];
+    }
+
+    int found = 0;
+    int top = 0;
+    stack[top++] = node;
+    while (top > 0) {
+      int current = stack[--top];
+      for (int p = nodePostingHead[current]; p != NO_POSTING; p = postingNext[p]) {
+        int slot = postingSlot[p];
+        if (slotStamp[slot] != stamp && slotRows.get(slot) != null) {
+          slotStamp[slot] = stamp;
+          if (found == candidateSlots.length) {
+            candidateSlots = Arrays.copyOf(candidateSlots, Math.max(16, found * 2));
+          }
+          candidateSlots[found++] = slot;
+        }
+      }
+      for (int child = nodeFirstChild[current]; child != NO_NODE; child = nodeNextSibling[child]) {
+        stack[top++] = child;
+      }
+    }
+    return found;
+  }
+
+  private List<IndexedRow> collect(int node, long nowMillis) {
+    int found = markSubtree(node);
+    if (found == 0) {
+      return Collections.emptyList();
+    }
+    ArrayList<IndexedRow> rows = new ArrayList<>(found);
+    for (int i = 0; i < found; i++) {
+      rows.addAll(slotRows.get(candidateSlots[i]));
+    }
+    Collections.sort(rows, sortOrder(nowMillis));
+    return rows;
+  }
+
+  /** Keeps the rows of {@code previous} whose slot is posted below {@code node}, in order. */
+  private List<IndexedRow> narrow(List<IndexedRow> previous, int node) {
+    if (markSubtree(node) == 0) {
+      return Collections.emptyList();
+    }
+    ArrayList<IndexedRow> rows = new ArrayList<>();
+    for (IndexedRow row : previous) {
+      if (slotStamp[row.slot] == stamp) {
+        rows.add(row);
+      }
+    }
+    return rows;
+  }
+
+  /** Mirrors {@link SmartDialSortingOrder#SORT_ORDER}. */
+  private static Comparator<IndexedRow> sortOrder(long nowMillis) {
+    return (first, second) -> {
+      int result = Boolean.compare(second.starred, first.starred);
+      if (result != 0) {
+        return result;
+      }
+      result = Boolean.compare(second.superPrimary, first.superPrimary);
+      if (result != 0) {
+        return result;
+      }
+      result = Integer.compare(first.usageBucket(nowMillis), second.usageBucket(nowMillis));
+      if (result != 0) {
+        return result;
+      }
+      result = Integer.compare(second.timesUsed, first.timesUsed);
+      if (result != 0) {
+        return result;
+      }
+      result = Boolean.compare(second.inVisibleGroup, first.inVisibleGroup);
+      if (result != 0) {
+        return result;
+      }
+      result = first.contactNumber.displayName.compareTo(second.contactNumber.displayName);
+      if (result != 0) {
+        return result;
+      }
+      result = Long.compare(first.contactNumber.id, second.contactNumber.id);
+      if (result != 0) {
+        return result;
+      }
+      return Boolean.compare(second.primary, first.primary);
+    };
+  }
+
+  /** A row of the smart dial table together with the columns it is sorted by. */
+  private static final class IndexedRow {
+
+    final int slot;
+    final ContactNumber contactNumber;
+    final boolean starred;
+    final boolean superPrimary;
+    final long lastTimeUsed;
+    final int timesUsed;
+    final boolean inVisibleGroup;
+    final boolean primary;
+
+    IndexedRow(
+        int slot,
+        ContactNumber contactNumber,
+        boolean starred,
+        boolean superPrimary,
+        long lastTimeUsed,
+        int timesUsed,
+        boolean inVisibleGroup,
+        boolean primary) {
+      this.slot = slot;
+      this.contactNumber = contactNumber;
+      this.starred = starred;
+      this.superPrimary = superPrimary;
+      this.lastTimeUsed = lastTimeUsed;
+      this.timesUsed = timesUsed;
+      this.inVisibleGroup = inVisibleGroup;
+      this.primary = primary;
+    }
+
+    int usageBucket(long nowMillis) {
+      long timeSinceLastUsed = nowMillis - lastTimeUsed;
+      if (timeSinceLastUsed < SmartDialSortingOrder.LAST_TIME_USED_CURRENT_MS) {
+        return 0;
+      }
+      if (timeSinceLastUsed < SmartDialSortingOrder.LAST_TIME_USED_RECENT_MS) {
+        return 1;
+      }
+      return 2;
+    }
+  }
+}
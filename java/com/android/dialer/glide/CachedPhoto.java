@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.glide;
+
+import com.android.dialer.contactphoto.PhotoCache;
+import com.google.auto.value.AutoValue;
+
+/**
+ * Glide model of a contact photo already decoded in {@link PhotoCache}.
+ *
+ * <p>Only the key of the photo is part of the model so that Glide doesn't hold on to a bitmap owned
+ * by the cache. The load fails if the photo was evicted in the meantime.
+ */
+@AutoValue
+public abstract class CachedPhoto {
+
+  /** The photo ID or URI the photo is cached with. */
+  public abstract Object photoKey();
+
+  /** The minimum width and height the cached photo must have. */
+  public abstract int minExtent();
+
+  public static CachedPhoto create(Object photoKey, int minExtent) {
+    return new AutoValue_CachedPhoto(photoKey, minExtent);
+  }
+}
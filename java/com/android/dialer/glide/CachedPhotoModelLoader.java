@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.glide;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import com.android.dialer.contactphoto.PhotoCache;
+import com.android.dialer.contactphoto.PhotoCache.DecodedPhoto;
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.DataSource;
+import com.bumptech.glide.load.Options;
+import com.bumptech.glide.load.ResourceDecoder;
+import com.bumptech.glide.load.data.DataFetcher;
+import com.bumptech.glide.load.engine.Resource;
+import com.bumptech.glide.load.model.ModelLoader;
+import com.bumptech.glide.load.model.ModelLoaderFactory;
+import com.bumptech.glide.load.model.MultiModelLoaderFactory;
+import com.bumptech.glide.signature.ObjectKey;
+import java.io.FileNotFoundException;
+
+/** Loads a {@link CachedPhoto} from {@link PhotoCache}. */
+final class CachedPhotoModelLoader implements ModelLoader<CachedPhoto, DecodedPhoto> {
+
+  private final PhotoCache photoCache;
+
+  private CachedPhotoModelLoader(PhotoCache photoCache) {
+    this.photoCache = photoCache;
+  }
+
+  @Override
+  public LoadData<DecodedPhoto> buildLoadData(
+      @NonNull CachedPhoto model, int width, int height, @NonNull Options options) {
+    return new LoadData<>(new ObjectKey(model), new Fetcher(photoCache, model));
+  }
+
+  @Override
+  public boolean handles(@NonNull CachedPhoto model) {
+    return true;
+  }
+
+  /** Creates {@link CachedPhotoModelLoader}. */
+  static final class Factory implements ModelLoaderFactory<CachedPhoto, DecodedPhoto> {
+
+    private final PhotoCache photoCache;
+
+    Factory(PhotoCache photoCache) {
+      this.photoCache = photoCache;
+    }
+
+    @NonNull
+    @Override
+    public ModelLoader<CachedPhoto, DecodedPhoto> build(
+        @NonNull MultiModelLoaderFactory multiFactory) {
+      return new CachedPhotoModelLoader(photoCache);
+    }
+
+    @Override
+    public void teardown() {}
+  }
+
+  /**
+   * Turns a {@link DecodedPhoto} into a resource that Glide can transform but won't recycle, as the
+   * bitmap is still owned by {@link PhotoCache}.
+   */
+  static final class Decoder implements ResourceDecoder<DecodedPhoto, Bitmap> {
+
+    @Override
+    public boolean handles(@NonNull DecodedPhoto source, @NonNull Options options) {
+      return true;
+    }
+
+    @Override
+    public Resource<Bitmap> decode(
+        @NonNull DecodedPhoto source, int width, int height, @NonNull Options options) {
+      return new NonOwnedBitmapResource(source.bitmap);
+    }
+  }
+
+  private static final class Fetcher implements DataFetcher<DecodedPhoto> {
+
+    private final PhotoCache photoCache;
+    private final CachedPhoto model;
+
+    Fetcher(PhotoCache photoCache, CachedPhoto model) {
+      this.photoCache = photoCache;
+      this.model = model;
+    }
+
+    @Override
+    public void loadData(
+        @NonNull Priority priority, @NonNull DataCallback<? super DecodedPhoto> callback) {
+      DecodedPhoto photo = photoCache.getPhotoForExtent(model.photoKey(), model.minExtent());
+      if (photo == null) {
+        callback.onLoadFailed(new FileNotFoundException("evicted: " + model.photoKey()));
+      } else {
+        callback.onDataReady(photo);
+      }
+    }
+
+    @Override
+    public void cleanup() {}
+
+    @Override
+    public void cancel() {}
+
+    @NonNull
+    @Override
+    public Class<DecodedPhoto> getDataClass() {
+      return DecodedPhoto.class;
+    }
+
+    @NonNull
+    @Override
+    public DataSource getDataSource() {
+      return DataSource.MEMORY_CACHE;
+    }
+  }
+
+  private static final class NonOwnedBitmapResource implements Resource<Bitmap> {
+
+    private final Bitmap bitmap;
+
+    NonOwnedBitmapResource(Bitmap bitmap) {
+      this.bitmap = bitmap;
+    }
+
+    @NonNull
+    @Override
+    public Class<Bitmap> getResourceClass() {
+      return Bitmap.class;
+    }
+
+    @NonNull
+    @Override
+    public Bitmap get() {
+      return bitmap;
+    }
+
+    @Override
+    public int getSize() {
+      return bitmap.getAllocationByteCount();
+    }
+
+    @Override
+    public void recycle() {
+      // Owned by PhotoCache.
+    }
+  }
+}
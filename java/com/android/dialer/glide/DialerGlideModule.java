@@ -16,6 +16,14 @@
 
 package com.android.dialer.glide;
 
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import com.android.dialer.contactphoto.PhotoCache;
+import com.android.dialer.contactphoto.PhotoCache.DecodedPhoto;
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.GlideBuilder;
+import com.bumptech.glide.Registry;
 import com.bumptech.glide.annotation.GlideModule;
 import com.bumptech.glide.module.AppGlideModule;
 
@@ -24,4 +32,23 @@ import com.bumptech.glide.module.AppGlideModule;
  * generated API, which most documentations are based on.
  */
 @GlideModule
-public class DialerGlideModule extends AppGlideModule {}
+public class DialerGlideModule extends AppGlideModule {
+
+  @Override
+  public void applyOptions(@NonNull Context context, @NonNull GlideBuilder builder) {
+    // Share the memory cache with ContactPhotoManager.
+    builder.setMemoryCache(new PhotoCacheMemoryCache(PhotoCache.get(context)));
+  }
+
+  @Override
+  public void registerComponents(
+      @NonNull Context context, @NonNull Glide glide, @NonNull Registry registry) {
+    // Reuse the photos ContactPhotoManager already decoded.
+    registry
+        .append(
+            CachedPhoto.class,
+            DecodedPhoto.class,
+            new CachedPhotoModelLoader.Factory(PhotoCache.get(context)))
+        .append(DecodedPhoto.class, Bitmap.class, new CachedPhotoModelLoader.Decoder());
+  }
+}
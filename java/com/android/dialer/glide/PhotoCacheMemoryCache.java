@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.glide;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.android.dialer.contactphoto.PhotoCache;
+import com.bumptech.glide.load.Key;
+import com.bumptech.glide.load.engine.Resource;
+import com.bumptech.glide.load.engine.cache.MemoryCache;
+
+/** Glide {@link MemoryCache} keeping its resources in the app's {@link PhotoCache}. */
+final class PhotoCacheMemoryCache implements MemoryCache {
+
+  private final PhotoCache photoCache;
+  private final PhotoCache.EvictionListener evictionListener = this::onEvicted;
+
+  @Nullable private ResourceRemovedListener resourceRemovedListener;
+
+  PhotoCacheMemoryCache(PhotoCache photoCache) {
+    this.photoCache = photoCache;
+  }
+
+  @Override
+  public long getCurrentSize() {
+    return photoCache.getCurrentSize();
+  }
+
+  @Override
+  public long getMaxSize() {
+    return photoCache.getMaxSize();
+  }
+
+  @Override
+  public void setSizeMultiplier(float multiplier) {
+    photoCache.setSizeMultiplier(multiplier);
+  }
+
+  @Nullable
+  @Override
+  public Resource<?> remove(@NonNull Key key) {
+    return (Resource<?>) photoCache.remove(key);
+  }
+
+  @Nullable
+  @Override
+  public Resource<?> put(@NonNull Key key, @Nullable Resource<?> resource) {
+    if (resource == null) {
+      return (Resource<?>) photoCache.remove(key);
+    }
+    return (Resource<?>) photoCache.put(key, resource, resource.getSize(), evictionListener);
+  }
+
+  @Override
+  public void setResourceRemovedListener(@NonNull ResourceRemovedListener listener) {
+    resourceRemovedListener = listener;
+  }
+
+  @Override
+  public void clearMemory() {
+    photoCache.evictAll();
+  }
+
+  @Override
+  public void trimMemory(int level) {
+    photoCache.trimMemory(level);
+  }
+
+  private void onEvicted(Object value) {
+    if (resourceRemovedListener != null) {
+      // Lets Glide recycle the resource.
+      resourceRemovedListener.onResourceRemoved((Resource<?>) value);
+    }
+  }
+}
@@ -26,9 +26,12 @@ import android.support.annotation.MainThread;
 import android.support.annotation.Nullable;
 import android.telecom.TelecomManager;
 import android.text.TextUtils;
+import android.view.ViewGroup.LayoutParams;
 import android.widget.ImageView;
 import android.widget.QuickContactBadge;
 import com.android.dialer.common.Assert;
+import com.android.dialer.contactphoto.PhotoCache;
+import com.android.dialer.glide.CachedPhoto;
 import com.android.dialer.glide.GlideApp;
 import com.android.dialer.glide.GlideRequest;
 import com.android.dialer.glide.GlideRequests;
@@ -76,16 +79,19 @@ public class GlidePhotoManagerImpl implements GlidePhotoManager {
             // and a phone number. We use DialerBidiFormatter to wrap the phone number with TTS
             // span.
             DialerBidiFormatter.format(photoInfo.getName())));
-    GlideRequest<Drawable> request = buildRequest(GlideApp.with(imageView), photoInfo);
+    GlideRequest<Drawable> request =
+        buildRequest(GlideApp.with(imageView), photoInfo, getExtent(imageView));
     request.into(imageView);
   }
 
-  private GlideRequest<Drawable> buildRequest(GlideRequests requestManager, PhotoInfo photoInfo) {
+  private GlideRequest<Drawable> buildRequest(
+      GlideRequests requestManager, PhotoInfo photoInfo, int extent) {
     // Warning: Glide ignores extra attributes on BitmapDrawable such as tint and draw the bitmap
     // directly so be sure not to set tint in the XML of any drawable referenced below.
 
     GlideRequest<Drawable> request;
     boolean circleCrop = true; // Photos are cropped to a circle by default.
+    LetterTileDrawable defaultDrawable = getDefaultDrawable(photoInfo);
 
     if (photoInfo.getIsBlocked()) {
       // Whether the number is blocked takes precedence over the spam status.
@@ -96,18 +102,23 @@ public class GlidePhotoManagerImpl implements GlidePhotoManager {
       circleCrop = false; // The spam icon is an octagon so we don't crop it.
 
     } else if (!TextUtils.isEmpty(photoInfo.getPhotoUri())) {
-      request = requestManager.load(parseUri(photoInfo.getPhotoUri()));
+      Uri photoUri = parseUri(photoInfo.getPhotoUri());
+      request = loadPhoto(requestManager, photoUri, photoUri, extent, defaultDrawable);
 
     } else if (photoInfo.getPhotoId() != 0) {
       request =
-          requestManager.load(ContentUris.withAppendedId(Data.CONTENT_URI, photoInfo.getPhotoId()));
+          loadPhoto(
+              requestManager,
+              photoInfo.getPhotoId(),
+              ContentUris.withAppendedId(Data.CONTENT_URI, photoInfo.getPhotoId()),
+              extent,
+              defaultDrawable);
 
     } else {
       // load null to indicate fallback should be used.
       request = requestManager.load((Object) null);
     }
 
-    LetterTileDrawable defaultDrawable = getDefaultDrawable(photoInfo);
     request
         .placeholder(defaultDrawable) // when the photo is still loading.
         .fallback(defaultDrawable); // when there's nothing to load.
@@ -119,6 +130,32 @@ public class GlidePhotoManagerImpl implements GlidePhotoManager {
     return request;
   }
 
+  /**
+   * Loads the photo with the given photo ID or URI from {@link PhotoCache} if {@link
+   * com.android.dialer.contactphoto.ContactPhotoManager} already decoded it at a resolution of at
+   * least {@code extent}, so that it isn't decoded again, or from {@code photoUri} otherwise.
+   */
+  private GlideRequest<Drawable> loadPhoto(
+      GlideRequests requestManager,
+      Object photoKey,
+      Uri photoUri,
+      int extent,
+      Drawable defaultDrawable) {
+    if (extent <= 0 || !PhotoCache.get(appContext).hasPhotoForExtent(photoKey, extent)) {
+      return requestManager.load(photoUri);
+    }
+    // The photo can still be evicted before Glide gets to it.
+    return requestManager
+        .load(CachedPhoto.create(photoKey, extent))
+        .error(requestManager.load(photoUri).placeholder(defaultDrawable).circleCrop());
+  }
+
+  /** Returns the size the photo is displayed at, or 0 if it isn't known yet. */
+  private static int getExtent(ImageView imageView) {
+    LayoutParams layoutParams = imageView.getLayoutParams();
+    return Math.max(imageView.getWidth(), layoutParams == null ? 0 : layoutParams.width);
+  }
+
   /**
    * Generate the default drawable when photos are not available. Used when the photo is loading or
    * no photo is available.
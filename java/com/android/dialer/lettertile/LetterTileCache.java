@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.lettertile;
+
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+import java.util.Objects;
+
+/**
+ * Process-wide cache of rendered letter tiles, shared by all {@link LetterTileDrawable}s so that
+ * lists showing many contacts without photos don't lay out and draw the same letters every frame.
+ *
+ * <p>Tiles are keyed by everything that affects how they are drawn, and the cache is bounded by the
+ * size of the bitmaps. Can be used from any thread.
+ */
+final class LetterTileCache {
+
+  /** The cache uses at most this fraction of the maximum heap size. */
+  private static final int MAX_HEAP_DIVISOR = 32;
+
+  private static final LruCache<Key, Bitmap> tiles =
+      new LruCache<Key, Bitmap>((int) (Runtime.getRuntime().maxMemory() / MAX_HEAP_DIVISOR)) {
+        @Override
+        protected int sizeOf(Key key, Bitmap bitmap) {
+          return bitmap.getAllocationByteCount();
+        }
+      };
+
+  private LetterTileCache() {}
+
+  @Nullable
+  static Bitmap get(Key key) {
+    return tiles.get(key);
+  }
+
+  static void put(Key key, Bitmap bitmap) {
+    tiles.put(key, bitmap);
+  }
+
+  /** How a tile is drawn. */
+  static final class Key {
+    @Nullable private final Character letter;
+    private final int color;
+    private final int fontColor;
+    private final boolean isCircle;
+    private final int contactType;
+    private final float scale;
+    private final float offset;
+    private final int width;
+    private final int height;
+
+    Key(
+        @Nullable Character letter,
+        int color,
+        int fontColor,
+        boolean isCircle,
+        int contactType,
+        float scale,
+        float offset,
+        int width,
+        int height) {
+      this.letter = letter;
+      this.color = color;
+      this.fontColor = fontColor;
+      this.isCircle = isCircle;
+      this.contactType = contactType;
+      this.scale = scale;
+      this.offset = offset;
+      this.width = width;
+      this.height = height;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return Objects.equals(letter, other.letter)
+          && color == other.color
+          && fontColor == other.fontColor
+          && isCircle == other.isCircle
+          && contactType == other.contactType
+          && Float.compare(scale, other.scale) == 0
+          && Float.compare(offset, other.offset) == 0
+          && width == other.width
+          && height == other.height;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(
+          letter, color, fontColor, isCircle, contactType, scale, offset, width, height);
+    }
+  }
+}
@@ -90,6 +90,8 @@ public class LetterTileDrawable extends Drawable {
   /** Reusable components to avoid new allocations */
   private final Paint paint = new Paint();
 
+  private final Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
   private final Rect rect = new Rect();
   private final char[] firstChar = new char[1];
 
@@ -137,10 +139,10 @@ public class LetterTileDrawable extends Drawable {
     color = defaultColor;
   }
 
-  private Rect getScaledBounds(float scale, float offset) {
+  private Rect getScaledBounds(Rect bounds, float scale, float offset) {
     // The drawable should be drawn in the middle of the canvas without changing its width to
     // height ratio.
-    final Rect destRect = copyBounds();
+    final Rect destRect = new Rect(bounds);
     // Crop the destination bounds into a square, scaled and offset as appropriate
     final int halfLength = (int) (scale * Math.min(destRect.width(), destRect.height()) / 2);
 
@@ -183,23 +185,49 @@ public class LetterTileDrawable extends Drawable {
     if (!isVisible() || bounds.isEmpty()) {
       return;
     }
-    // Draw letter tile.
-    drawLetterTile(canvas);
+    if (paint.getColorFilter() != null) {
+      // The filter applies to this drawable only, so the tile can't be shared.
+      drawLetterTile(canvas, bounds);
+      return;
+    }
+    // Draw the letter tile rendered by any drawable with the same details.
+    canvas.drawBitmap(
+        getTileBitmap(bounds.width(), bounds.height()), bounds.left, bounds.top, bitmapPaint);
   }
 
+  /**
+   * Returns the letter tile rendered at the given size. Unless a color filter is set, the bitmap is
+   * shared with the other drawables with the same details and must not be modified.
+   */
   public Bitmap getBitmap(int width, int height) {
+    if (paint.getColorFilter() != null) {
+      return renderLetterTile(width, height);
+    }
+    return getTileBitmap(width, height);
+  }
+
+  private Bitmap getTileBitmap(int width, int height) {
+    LetterTileCache.Key key =
+        new LetterTileCache.Key(
+            letter, color, tileFontColor, isCircle, contactType, scale, offset, width, height);
+    Bitmap bitmap = LetterTileCache.get(key);
+    if (bitmap == null) {
+      bitmap = renderLetterTile(width, height);
+      LetterTileCache.put(key, bitmap);
+    }
+    return bitmap;
+  }
+
+  private Bitmap renderLetterTile(int width, int height) {
     Bitmap bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
-    this.setBounds(0, 0, width, height);
-    Canvas canvas = new Canvas(bitmap);
-    this.draw(canvas);
+    drawLetterTile(new Canvas(bitmap), new Rect(0, 0, width, height));
     return bitmap;
   }
 
-  private void drawLetterTile(final Canvas canvas) {
+  private void drawLetterTile(final Canvas canvas, final Rect bounds) {
     // Draw background color.
     paint.setColor(color);
 
-    final Rect bounds = getBounds();
     final int minDimension = Math.min(bounds.width(), bounds.height());
 
     if (isCircle) {
@@ -237,7 +265,7 @@ public class LetterTileDrawable extends Drawable {
             "Unable to find drawable for contact type " + contactType);
       }
 
-      drawable.setBounds(getScaledBounds(scale, offset));
+      drawable.setBounds(getScaledBounds(bounds, scale, offset));
       drawable.setAlpha(drawable == defaultSpamAvatar ? SPAM_ALPHA : ALPHA);
       drawable.draw(canvas);
     }
@@ -35,9 +35,12 @@ public interface Metrics {
   String INCALL_ACTIVITY_ON_STOP_MEMORY_EVENT_NAME = "IncallActivity.OnStop";
   String OLD_CALL_LOG_JANK_EVENT_NAME = "OldCallLog.Jank";
   String NEW_CALL_LOG_JANK_EVENT_NAME = "NewCallLog.Jank";
+  String NEW_CALL_LOG_WRITE_PHONE_LOOKUP_HISTORY =
+      "NewCallLog.RealtimeRowProcessor.WritePhoneLookupHistory";
 
   // Events related to refreshing the annotated call log.
   String NEW_CALL_LOG_COALESCE = "NewCallLog.Coalesce";
+  String NEW_CALL_LOG_COALESCE_FIRST_PAGE = "NewCallLog.Coalesce.FirstPage";
   String ANNOTATED_CALL_LOG_NOT_DIRTY = "RefreshAnnotatedCallLogReceiver.NotDirty";
   String ANNOTATED_CALL_LOG_CHANGES_NEEDED = "RefreshAnnotatedCallLogReceiver.ChangesNeeded";
   String ANNOTATED_LOG_NO_CHANGES_NEEDED = "RefreshAnnotatedCallLogReceiver.NoChangesNeeded";
@@ -54,6 +57,7 @@ public interface Metrics {
   String FILL_EVENT_NAME = "RefreshAnnotatedCallLog.Fill";
   String ON_SUCCESSFUL_FILL_EVENT_NAME = "RefreshAnnotatedCallLog.OnSuccessfulFill";
   String APPLY_MUTATIONS_EVENT_NAME = "RefreshAnnotatedCallLog.ApplyMutations";
+  String APPLY_MUTATIONS_CHUNK_EVENT_NAME = "RefreshAnnotatedCallLog.ApplyMutations.Chunk";
 
   // These templates are prefixed with a CallLogDataSource or PhoneLookup simple class name.
   String INITIAL_FILL_TEMPLATE = "%s.Initial.Fill";
@@ -22,7 +22,7 @@ import android.telecom.Call;
 import com.android.dialer.DialerPhoneNumber;
 import com.android.dialer.common.concurrent.DialerExecutorComponent;
 import com.android.dialer.location.GeoUtil;
-import com.android.dialer.phonenumberproto.DialerPhoneNumberUtil;
+import com.android.dialer.phonenumberutil.PhoneNumberCache;
 import com.android.dialer.telecom.TelecomCallUtil;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -61,9 +61,9 @@ public interface PhoneLookup<T> {
     ListenableFuture<DialerPhoneNumber> numberFuture =
         backgroundExecutor.submit(
             () -> {
-              DialerPhoneNumberUtil dialerPhoneNumberUtil = new DialerPhoneNumberUtil();
-              return dialerPhoneNumberUtil.parse(
-                  TelecomCallUtil.getNumber(call), GeoUtil.getCurrentCountryIso(appContext));
+              return PhoneNumberCache.get(appContext)
+                  .get(TelecomCallUtil.getNumber(call), GeoUtil.getCurrentCountryIso(appContext))
+                  .getDialerPhoneNumber();
             });
 
     return Futures.transformAsync(numberFuture, this::lookup, MoreExecutors.directExecutor());
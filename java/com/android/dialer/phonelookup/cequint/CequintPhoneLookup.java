@@ -30,7 +30,7 @@ import com.android.dialer.oem.CequintCallerIdManager.CequintCallerIdContact;
 import com.android.dialer.phonelookup.PhoneLookup;
 import com.android.dialer.phonelookup.PhoneLookupInfo;
 import com.android.dialer.phonelookup.PhoneLookupInfo.CequintInfo;
-import com.android.dialer.phonenumberproto.DialerPhoneNumberUtil;
+import com.android.dialer.phonenumberutil.PhoneNumberCache;
 import com.android.dialer.telecom.TelecomCallUtil;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -65,9 +65,9 @@ public class CequintPhoneLookup implements PhoneLookup<CequintInfo> {
     ListenableFuture<DialerPhoneNumber> dialerPhoneNumberFuture =
         backgroundExecutorService.submit(
             () -> {
-              DialerPhoneNumberUtil dialerPhoneNumberUtil = new DialerPhoneNumberUtil();
-              return dialerPhoneNumberUtil.parse(
-                  TelecomCallUtil.getNumber(call), GeoUtil.getCurrentCountryIso(appContext));
+              return PhoneNumberCache.get(appContext)
+                  .get(TelecomCallUtil.getNumber(call), GeoUtil.getCurrentCountryIso(appContext))
+                  .getDialerPhoneNumber();
             });
     String callerDisplayName = call.getDetails().getCallerDisplayName();
     boolean isIncomingCall = (call.getState() == Call.STATE_RINGING);
@@ -58,6 +58,7 @@ public final class CompositePhoneLookup {
   private final ImmutableList<PhoneLookup> phoneLookups;
   private final FutureTimer futureTimer;
   private final CallLogState callLogState;
+  private final PhoneLookupInfoCache phoneLookupInfoCache;
   private final ListeningExecutorService lightweightExecutorService;
 
   @VisibleForTesting
@@ -67,11 +68,13 @@ public final class CompositePhoneLookup {
       ImmutableList<PhoneLookup> phoneLookups,
       FutureTimer futureTimer,
       CallLogState callLogState,
+      PhoneLookupInfoCache phoneLookupInfoCache,
       @LightweightExecutor ListeningExecutorService lightweightExecutorService) {
     this.appContext = appContext;
     this.phoneLookups = phoneLookups;
     this.futureTimer = futureTimer;
     this.callLogState = callLogState;
+    this.phoneLookupInfoCache = phoneLookupInfoCache;
     this.lightweightExecutorService = lightweightExecutorService;
   }
 
@@ -103,10 +106,18 @@ public final class CompositePhoneLookup {
    * Delegates to a set of dependent lookups to build a complete {@link PhoneLookupInfo} for the
    * provided number.
    *
+   * <p>A lookup of the same number which was started recently is reused (see {@link
+   * PhoneLookupInfoCache}).
+   *
    * <p>Note: If any of the dependent lookups fails, the returned future will also fail. If any of
    * the dependent lookups does not complete, the returned future will also not complete.
    */
   public ListenableFuture<PhoneLookupInfo> lookup(DialerPhoneNumber dialerPhoneNumber) {
+    ListenableFuture<PhoneLookupInfo> cachedFuture = phoneLookupInfoCache.get(dialerPhoneNumber);
+    if (cachedFuture != null) {
+      return cachedFuture;
+    }
+
     // TODO(zachh): Add short-circuiting logic so that this call is not blocked on low-priority
     // lookups finishing when a higher-priority one has already finished.
     List<ListenableFuture<?>> futures = new ArrayList<>();
@@ -120,6 +131,7 @@ public final class CompositePhoneLookup {
     ListenableFuture<PhoneLookupInfo> combinedFuture = combineSubMessageFutures(futures);
     String eventName = String.format(Metrics.LOOKUP_FOR_NUMBER_TEMPLATE, getLoggingName());
     futureTimer.applyTiming(combinedFuture, eventName);
+    phoneLookupInfoCache.put(dialerPhoneNumber, combinedFuture);
     return combinedFuture;
   }
 
@@ -257,6 +269,7 @@ public final class CompositePhoneLookup {
     for (PhoneLookup phoneLookup : phoneLookups) {
       phoneLookup.registerContentObservers();
     }
+    phoneLookupInfoCache.registerContentObservers();
   }
 
   /** Delegates to sub-lookups' {@link PhoneLookup#unregisterContentObservers()}. */
@@ -265,10 +278,12 @@ public final class CompositePhoneLookup {
     for (PhoneLookup phoneLookup : phoneLookups) {
       phoneLookup.unregisterContentObservers();
     }
+    phoneLookupInfoCache.unregisterContentObservers();
   }
 
   /** Delegates to sub-lookups' {@link PhoneLookup#clearData()}. */
   public ListenableFuture<Void> clearData() {
+    phoneLookupInfoCache.invalidate();
     List<ListenableFuture<Void>> futures = new ArrayList<>();
     for (PhoneLookup<?> phoneLookup : phoneLookups) {
       ListenableFuture<Void> phoneLookupFuture = phoneLookup.clearData();
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.phonelookup.composite;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.BlockedNumberContract.BlockedNumbers;
+import android.provider.ContactsContract.Contacts;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+import com.android.dialer.DialerPhoneNumber;
+import com.android.dialer.common.Assert;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.common.concurrent.ThreadUtil;
+import com.android.dialer.inject.ApplicationContext;
+import com.android.dialer.phonelookup.PhoneLookupInfo;
+import com.android.dialer.util.ExpirableCache;
+import com.android.dialer.util.ExpirableCache.CachedValue;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Recent results of {@link CompositePhoneLookup#lookup(DialerPhoneNumber)}, so that a number which
+ * is looked up again shortly afterwards (for example by the in-call UI and then by the call log)
+ * doesn't query every {@link com.android.dialer.phonelookup.PhoneLookup} again.
+ *
+ * <p>Lookups are cached while they are in progress, so concurrent lookups of the same number share
+ * one future, and are evicted if they fail. Results expire after {@link #TIME_TO_LIVE_MILLIS}, and
+ * all results are expired once contacts or blocked numbers stop changing for {@link
+ * #INVALIDATION_DELAY_MILLIS}. CP2 changes come in bursts, for example while syncing, and each
+ * change would otherwise throw away the whole cache; a result is never older than its time to live
+ * anyway.
+ */
+@Singleton
+public final class PhoneLookupInfoCache {
+
+  private static final int MAX_SIZE = 100;
+  private static final long TIME_TO_LIVE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  private static final long INVALIDATION_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+  private final Context appContext;
+  private final LruCache<DialerPhoneNumber, CachedValue<CachedLookup>> lruCache =
+      new LruCache<>(MAX_SIZE);
+  private final ExpirableCache<DialerPhoneNumber, CachedLookup> cache =
+      ExpirableCache.create(lruCache);
+  private final AtomicInteger hitCount = new AtomicInteger();
+  private final AtomicInteger missCount = new AtomicInteger();
+
+  private final Runnable invalidateRunnable = this::invalidate;
+
+  private final ContentObserver invalidatingObserver =
+      new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+          Handler handler = ThreadUtil.getUiThreadHandler();
+          handler.removeCallbacks(invalidateRunnable);
+          handler.postDelayed(invalidateRunnable, INVALIDATION_DELAY_MILLIS);
+        }
+      };
+
+  @Inject
+  PhoneLookupInfoCache(@ApplicationContext Context appContext) {
+    this.appContext = appContext;
+  }
+
+  /**
+   * Returns the cached lookup of {@code dialerPhoneNumber}, or null if there is none or it is
+   * expired or failed.
+   */
+  @Nullable
+  ListenableFuture<PhoneLookupInfo> get(DialerPhoneNumber dialerPhoneNumber) {
+    CachedLookup cachedLookup = cache.get(dialerPhoneNumber);
+    if (cachedLookup == null
+        || SystemClock.elapsedRealtime() - cachedLookup.startTimeMillis > TIME_TO_LIVE_MILLIS
+        || hasFailed(cachedLookup.future)) {
+      missCount.incrementAndGet();
+      return null;
+    }
+    hitCount.incrementAndGet();
+    return cachedLookup.future;
+  }
+
+  /** Caches {@code future}, which was just started to look up {@code dialerPhoneNumber}. */
+  void put(DialerPhoneNumber dialerPhoneNumber, ListenableFuture<PhoneLookupInfo> future) {
+    CachedLookup cachedLookup = new CachedLookup(future, SystemClock.elapsedRealtime());
+    cache.put(dialerPhoneNumber, cachedLookup);
+    future.addListener(
+        () -> {
+          if (hasFailed(future)) {
+            evict(dialerPhoneNumber, cachedLookup);
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /** Removes {@code cachedLookup} unless it was replaced meanwhile. */
+  private void evict(DialerPhoneNumber dialerPhoneNumber, CachedLookup cachedLookup) {
+    synchronized (lruCache) {
+      CachedValue<CachedLookup> cachedValue = lruCache.get(dialerPhoneNumber);
+      if (cachedValue != null && cachedValue.getValue() == cachedLookup) {
+        lruCache.remove(dialerPhoneNumber);
+      }
+    }
+  }
+
+  /** Expires all cached lookups, including those still in progress. */
+  void invalidate() {
+    LogUtil.i(
+        "PhoneLookupInfoCache.invalidate",
+        "hits: %d, misses: %d",
+        hitCount.get(),
+        missCount.get());
+    cache.expireAll();
+  }
+
+  /** Invalidates the cache when contacts or blocked numbers change. */
+  @MainThread
+  void registerContentObservers() {
+    Assert.isMainThread();
+    appContext
+        .getContentResolver()
+        .registerContentObserver(
+            Contacts.CONTENT_URI,
+            true, // Contacts are notified on their own URIs
+            invalidatingObserver);
+    appContext
+        .getContentResolver()
+        .registerContentObserver(
+            BlockedNumbers.CONTENT_URI,
+            true, // BlockedNumbers notifies on the item
+            invalidatingObserver);
+  }
+
+  @MainThread
+  void unregisterContentObservers() {
+    Assert.isMainThread();
+    appContext.getContentResolver().unregisterContentObserver(invalidatingObserver);
+    ThreadUtil.getUiThreadHandler().removeCallbacks(invalidateRunnable);
+  }
+
+  private static boolean hasFailed(ListenableFuture<PhoneLookupInfo> future) {
+    if (!future.isDone()) {
+      return false;
+    }
+    try {
+      Futures.getDone(future);
+      return false;
+    } catch (ExecutionException | RuntimeException e) {
+      // Includes cancellation; the next lookup will try again.
+      return true;
+    }
+  }
+
+  /** A lookup and the time it was started at. */
+  private static final class CachedLookup {
+    private final ListenableFuture<PhoneLookupInfo> future;
+    private final long startTimeMillis;
+
+    CachedLookup(ListenableFuture<PhoneLookupInfo> future, long startTimeMillis) {
+      this.future = future;
+      this.startTimeMillis = startTimeMillis;
+    }
+  }
+}
@@ -41,7 +41,7 @@ import com.android.dialer.phonelookup.PhoneLookup;
 import com.android.dialer.phonelookup.PhoneLookupInfo;
 import com.android.dialer.phonelookup.PhoneLookupInfo.Cp2Info;
 import com.android.dialer.phonelookup.PhoneLookupInfo.Cp2Info.Cp2ContactInfo;
-import com.android.dialer.phonelookup.database.contract.PhoneLookupHistoryContract.PhoneLookupHistory;
+import com.android.dialer.phonelookup.database.PhoneLookupHistoryDatabaseHelper;
 import com.android.dialer.phonenumberproto.PartitionedNumbers;
 import com.android.dialer.storage.Unencrypted;
 import com.android.dialer.util.PermissionsUtil;
@@ -53,8 +53,8 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
-import com.google.protobuf.InvalidProtocolBufferException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -75,6 +75,7 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
   private final ListeningExecutorService lightweightExecutorService;
   private final ConfigProvider configProvider;
   private final MissingPermissionsOperations missingPermissionsOperations;
+  private final PhoneLookupHistoryDatabaseHelper phoneLookupHistoryDatabaseHelper;
 
   @Nullable private Long currentLastTimestampProcessed;
 
@@ -85,13 +86,15 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
       @BackgroundExecutor ListeningExecutorService backgroundExecutorService,
       @LightweightExecutor ListeningExecutorService lightweightExecutorService,
       ConfigProvider configProvider,
-      MissingPermissionsOperations missingPermissionsOperations) {
+      MissingPermissionsOperations missingPermissionsOperations,
+      PhoneLookupHistoryDatabaseHelper phoneLookupHistoryDatabaseHelper) {
     this.appContext = appContext;
     this.sharedPreferences = sharedPreferences;
     this.backgroundExecutorService = backgroundExecutorService;
     this.lightweightExecutorService = lightweightExecutorService;
     this.configProvider = configProvider;
     this.missingPermissionsOperations = missingPermissionsOperations;
+    this.phoneLookupHistoryDatabaseHelper = phoneLookupHistoryDatabaseHelper;
   }
 
   @Override
@@ -158,10 +161,10 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
 
     PartitionedNumbers partitionedNumbers = new PartitionedNumbers(phoneNumbers);
     if (partitionedNumbers.invalidNumbers().size() > getMaxSupportedInvalidNumbers()) {
-      // If there are N invalid numbers, we can't determine determine dirtiness without running N
-      // queries; since running this many queries is not feasible for the (lightweight) isDirty
-      // check, simply return true. The expectation is that this should rarely be the case as the
-      // vast majority of numbers in call logs should be valid.
+      // Matching invalid numbers requires a scan of the PHONE table which grows with the number
+      // of invalid numbers; if there are too many for the (lightweight) isDirty check, simply
+      // return true. The expectation is that this should rarely be the case as the vast majority
+      // of numbers in call logs should be valid.
       LogUtil.v(
           "Cp2DefaultDirectoryPhoneLookup.isDirty",
           "returning true because too many invalid numbers (%d)",
@@ -251,13 +254,11 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
     queryFutures.add(
         queryPhoneTableForContactIdsBasedOnE164(partitionedNumbers.validE164Numbers()));
 
-    // Then run a separate query for each invalid number. Separate queries are done to accomplish
-    // loose matching which couldn't be accomplished with a batch query.
+    // Then match the invalid numbers in a single scan of the PHONE table, since the loose matching
+    // they need couldn't be accomplished with a batch query. Only the contact IDs are read.
     Assert.checkState(
         partitionedNumbers.invalidNumbers().size() <= getMaxSupportedInvalidNumbers());
-    for (String invalidNumber : partitionedNumbers.invalidNumbers()) {
-      queryFutures.add(queryPhoneLookupTableForContactIdsBasedOnRawNumber(invalidNumber));
-    }
+    queryFutures.add(queryPhoneTableForContactIdsOfInvalidNumbers(partitionedNumbers));
     return Futures.transform(
         Futures.allAsList(queryFutures),
         listOfSets -> {
@@ -270,50 +271,20 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
         lightweightExecutorService);
   }
 
-  /** Gets all of the contact ids from PhoneLookupHistory. */
-  private ListenableFuture<Set<Long>> queryPhoneLookupHistoryForContactIds() {
+  private ListenableFuture<Set<Long>> queryPhoneTableForContactIdsOfInvalidNumbers(
+      PartitionedNumbers partitionedNumbers) {
+    if (partitionedNumbers.invalidNumbers().isEmpty()) {
+      return Futures.immediateFuture(new ArraySet<>());
+    }
     return backgroundExecutorService.submit(
-        () -> {
-          Set<Long> contactIds = new ArraySet<>();
-          try (Cursor cursor =
-              appContext
-                  .getContentResolver()
-                  .query(
-                      PhoneLookupHistory.CONTENT_URI,
-                      new String[] {
-                        PhoneLookupHistory.PHONE_LOOKUP_INFO,
-                      },
-                      null,
-                      null,
-                      null)) {
-
-            if (cursor == null) {
-              LogUtil.w(
-                  "Cp2DefaultDirectoryPhoneLookup.queryPhoneLookupHistoryForContactIds",
-                  "null cursor");
-              return contactIds;
-            }
+        () ->
+            new Cp2InvalidNumberMatcher(appContext, partitionedNumbers.invalidNumbers())
+                .matchContactIds());
+  }
 
-            if (cursor.moveToFirst()) {
-              int phoneLookupInfoColumn =
-                  cursor.getColumnIndexOrThrow(PhoneLookupHistory.PHONE_LOOKUP_INFO);
-              do {
-                PhoneLookupInfo phoneLookupInfo;
-                try {
-                  phoneLookupInfo =
-                      PhoneLookupInfo.parseFrom(cursor.getBlob(phoneLookupInfoColumn));
-                } catch (InvalidProtocolBufferException e) {
-                  throw new IllegalStateException(e);
-                }
-                for (Cp2ContactInfo info :
-                    phoneLookupInfo.getDefaultCp2Info().getCp2ContactInfoList()) {
-                  contactIds.add(info.getContactId());
-                }
-              } while (cursor.moveToNext());
-            }
-          }
-          return contactIds;
-        });
+  /** Gets all of the contact ids from PhoneLookupHistory. */
+  private ListenableFuture<Set<Long>> queryPhoneLookupHistoryForContactIds() {
+    return backgroundExecutorService.submit(phoneLookupHistoryDatabaseHelper::getContactIds);
   }
 
   private ListenableFuture<Set<Long>> queryPhoneTableForContactIdsBasedOnE164(
@@ -340,30 +311,6 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
         });
   }
 
-  private ListenableFuture<Set<Long>> queryPhoneLookupTableForContactIdsBasedOnRawNumber(
-      String rawNumber) {
-    if (TextUtils.isEmpty(rawNumber)) {
-      return Futures.immediateFuture(new ArraySet<>());
-    }
-    return backgroundExecutorService.submit(
-        () -> {
-          Set<Long> contactIds = new ArraySet<>();
-          try (Cursor cursor =
-              queryPhoneLookup(new String[] {ContactsContract.PhoneLookup.CONTACT_ID}, rawNumber)) {
-            if (cursor == null) {
-              LogUtil.w(
-                  "Cp2DefaultDirectoryPhoneLookup.queryPhoneLookupTableForContactIdsBasedOnRawNumber",
-                  "null cursor");
-              return contactIds;
-            }
-            while (cursor.moveToNext()) {
-              contactIds.add(cursor.getLong(0 /* columnIndex */));
-            }
-          }
-          return contactIds;
-        });
-  }
-
   /** Returns true if any contacts were modified after {@code lastModified}. */
   private ListenableFuture<Boolean> contactsUpdated(Set<Long> contactIds, long lastModified) {
     return backgroundExecutorService.submit(
@@ -631,20 +578,21 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
             try (Cursor cursor = queryContactsTableForContacts(contactIds, lastModified)) {
               int contactIdIndex = cursor.getColumnIndex(Contacts._ID);
               int lastUpdatedIndex = cursor.getColumnIndex(Contacts.CONTACT_LAST_UPDATED_TIMESTAMP);
+              Set<Long> updatedContactIds = new ArraySet<>();
               cursor.moveToPosition(-1);
               while (cursor.moveToNext()) {
-                // Find the DialerPhoneNumber for each contact id and add it to our updated numbers
-                // set. These, along with our number not associated with any Cp2ContactInfo need to
-                // be updated.
-                long contactId = cursor.getLong(contactIdIndex);
-                updatedNumbers.addAll(
-                    findDialerPhoneNumbersContainingContactId(existingInfoMap, contactId));
+                updatedContactIds.add(cursor.getLong(contactIdIndex));
                 long lastUpdatedTimestamp = cursor.getLong(lastUpdatedIndex);
                 if (currentLastTimestampProcessed == null
                     || currentLastTimestampProcessed < lastUpdatedTimestamp) {
                   currentLastTimestampProcessed = lastUpdatedTimestamp;
                 }
               }
+              // Find the DialerPhoneNumbers for the updated contact ids and add them to our updated
+              // numbers set. These, along with our number not associated with any Cp2ContactInfo
+              // need to be updated.
+              updatedNumbers.addAll(
+                  findDialerPhoneNumbersContainingContactIds(existingInfoMap, updatedContactIds));
             }
           }
           return updatedNumbers;
@@ -699,8 +647,8 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
           }
 
           // Divide the numbers into those that are valid and those that are not. Issue a single
-          // batch query for the valid numbers against the PHONE table, and in parallel issue
-          // individual queries against PHONE_LOOKUP for each invalid number.
+          // batch query for the valid numbers against the PHONE table, and in parallel match all
+          // invalid numbers in a single scan of the PHONE table.
           // TODO(zachh): These queries are inefficient without a lastModified column to filter on.
           PartitionedNumbers partitionedNumbers =
               new PartitionedNumbers(ImmutableSet.copyOf(updatedNumbers));
@@ -708,19 +656,14 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
           ListenableFuture<Map<String, Set<Cp2ContactInfo>>> validNumbersFuture =
               batchQueryForValidNumbers(partitionedNumbers.validE164Numbers());
 
-          List<ListenableFuture<Set<Cp2ContactInfo>>> invalidNumbersFuturesList = new ArrayList<>();
-          for (String invalidNumber : partitionedNumbers.invalidNumbers()) {
-            invalidNumbersFuturesList.add(individualQueryForInvalidNumber(invalidNumber));
-          }
-
-          ListenableFuture<List<Set<Cp2ContactInfo>>> invalidNumbersFuture =
-              Futures.allAsList(invalidNumbersFuturesList);
+          ListenableFuture<Map<String, Set<Cp2ContactInfo>>> invalidNumbersFuture =
+              batchQueryForInvalidNumbers(partitionedNumbers.invalidNumbers());
 
           Callable<Map<DialerPhoneNumber, Set<Cp2ContactInfo>>> computeMap =
               () -> {
                 // These get() calls are safe because we are using whenAllSucceed below.
                 Map<String, Set<Cp2ContactInfo>> validNumbersResult = validNumbersFuture.get();
-                List<Set<Cp2ContactInfo>> invalidNumbersResult = invalidNumbersFuture.get();
+                Map<String, Set<Cp2ContactInfo>> invalidNumbersResult = invalidNumbersFuture.get();
 
                 Map<DialerPhoneNumber, Set<Cp2ContactInfo>> map = new ArrayMap<>();
 
@@ -741,9 +684,11 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
                 }
 
                 // Next update the map with the invalid results.
-                int i = 0;
                 for (String invalidNumber : partitionedNumbers.invalidNumbers()) {
-                  Set<Cp2ContactInfo> cp2Infos = invalidNumbersResult.get(i++);
+                  Set<Cp2ContactInfo> cp2Infos = invalidNumbersResult.get(invalidNumber);
+                  if (cp2Infos == null) {
+                    cp2Infos = ImmutableSet.of();
+                  }
                   Set<DialerPhoneNumber> dialerPhoneNumbers =
                       partitionedNumbers.dialerPhoneNumbersForInvalid(invalidNumber);
 
@@ -804,29 +749,17 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
         });
   }
 
-  private ListenableFuture<Set<Cp2ContactInfo>> individualQueryForInvalidNumber(
-      String invalidNumber) {
+  /**
+   * Returns the contacts matching each of {@code invalidNumbers}. Invalid numbers without any
+   * contact are absent from the returned map.
+   */
+  private ListenableFuture<Map<String, Set<Cp2ContactInfo>>> batchQueryForInvalidNumbers(
+      Set<String> invalidNumbers) {
+    if (invalidNumbers.isEmpty()) {
+      return Futures.immediateFuture(new ArrayMap<>());
+    }
     return backgroundExecutorService.submit(
-        () -> {
-          Set<Cp2ContactInfo> cp2ContactInfos = new ArraySet<>();
-          if (invalidNumber.isEmpty()) {
-            return cp2ContactInfos;
-          }
-          try (Cursor cursor =
-              queryPhoneLookup(Cp2Projections.getProjectionForPhoneLookupTable(), invalidNumber)) {
-            if (cursor == null) {
-              LogUtil.w(
-                  "Cp2DefaultDirectoryPhoneLookup.individualQueryForInvalidNumber", "null cursor");
-            } else {
-              while (cursor.moveToNext()) {
-                cp2ContactInfos.add(
-                    Cp2Projections.buildCp2ContactInfoFromCursor(
-                        appContext, cursor, Directory.DEFAULT));
-              }
-            }
-          }
-          return cp2ContactInfos;
-        });
+        () -> new Cp2InvalidNumberMatcher(appContext, invalidNumbers).match());
   }
 
   /**
@@ -924,19 +857,85 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
       ImmutableMap<DialerPhoneNumber, Cp2Info> existingInfoMap, Cursor cursor) {
     int contactIdIndex = cursor.getColumnIndexOrThrow(DeletedContacts.CONTACT_ID);
     int deletedTimeIndex = cursor.getColumnIndexOrThrow(DeletedContacts.CONTACT_DELETED_TIMESTAMP);
-    Set<DialerPhoneNumber> deletedPhoneNumbers = new ArraySet<>();
+    Set<Long> deletedContactIds = new ArraySet<>();
     cursor.moveToPosition(-1);
     while (cursor.moveToNext()) {
-      long contactId = cursor.getLong(contactIdIndex);
-      deletedPhoneNumbers.addAll(
-          findDialerPhoneNumbersContainingContactId(existingInfoMap, contactId));
+      deletedContactIds.add(cursor.getLong(contactIdIndex));
       long deletedTime = cursor.getLong(deletedTimeIndex);
       if (currentLastTimestampProcessed == null || currentLastTimestampProcessed < deletedTime) {
         // TODO(zachh): There's a problem here if a contact for a new row is deleted?
         currentLastTimestampProcessed = deletedTime;
       }
     }
-    return deletedPhoneNumbers;
+    return findDialerPhoneNumbersContainingContactIds(existingInfoMap, deletedContactIds);
+  }
+
+  /**
+   * Returns the DialerPhoneNumbers in {@code existingInfoMap} which are associated with any of
+   * {@code contactIds}.
+   *
+   * <p>{@code existingInfoMap} was read from PhoneLookupHistory, so the numbers of each contact are
+   * found through the contact id index of PhoneLookupHistory and only their entries are examined,
+   * instead of every entry for every contact.
+   */
+  private Set<DialerPhoneNumber> findDialerPhoneNumbersContainingContactIds(
+      Map<DialerPhoneNumber, Cp2Info> existingInfoMap, Set<Long> contactIds) {
+    Set<DialerPhoneNumber> matches = new ArraySet<>();
+    if (contactIds.isEmpty()) {
+      return matches;
+    }
+    Map<Long, Set<String>> normalizedNumbersByContactId =
+        phoneLookupHistoryDatabaseHelper.getNormalizedNumbersForContactIds(contactIds);
+    Map<String, List<DialerPhoneNumber>> dialerPhoneNumbersByNormalizedNumber = null;
+    int fallbackCount = 0;
+    for (long contactId : contactIds) {
+      Set<DialerPhoneNumber> contactMatches = new ArraySet<>();
+      Set<String> normalizedNumbers = normalizedNumbersByContactId.get(contactId);
+      if (normalizedNumbers != null) {
+        if (dialerPhoneNumbersByNormalizedNumber == null) {
+          dialerPhoneNumbersByNormalizedNumber = new HashMap<>(existingInfoMap.size());
+          for (DialerPhoneNumber dialerPhoneNumber : existingInfoMap.keySet()) {
+            String normalizedNumber = dialerPhoneNumber.getNormalizedNumber();
+            List<DialerPhoneNumber> numbers =
+                dialerPhoneNumbersByNormalizedNumber.get(normalizedNumber);
+            if (numbers == null) {
+              numbers = new ArrayList<>(1);
+              dialerPhoneNumbersByNormalizedNumber.put(normalizedNumber, numbers);
+            }
+            numbers.add(dialerPhoneNumber);
+          }
+        }
+        for (String normalizedNumber : normalizedNumbers) {
+          List<DialerPhoneNumber> candidates =
+              dialerPhoneNumbersByNormalizedNumber.get(normalizedNumber);
+          if (candidates == null) {
+            continue;
+          }
+          for (DialerPhoneNumber candidate : candidates) {
+            for (Cp2ContactInfo cp2ContactInfo :
+                existingInfoMap.get(candidate).getCp2ContactInfoList()) {
+              if (cp2ContactInfo.getContactId() == contactId) {
+                contactMatches.add(candidate);
+              }
+            }
+          }
+        }
+      }
+      if (contactMatches.isEmpty()) {
+        // The index didn't know about the contact (for example because the database was replaced
+        // while the info was being processed), so look through all of the existing info.
+        contactMatches = findDialerPhoneNumbersContainingContactId(existingInfoMap, contactId);
+        fallbackCount++;
+      }
+      matches.addAll(contactMatches);
+    }
+    LogUtil.v(
+        "Cp2DefaultDirectoryPhoneLookup.findDialerPhoneNumbersContainingContactIds",
+        "found %d numbers for %d contacts, %d without the index",
+        matches.size(),
+        contactIds.size(),
+        fallbackCount);
+    return matches;
   }
 
   private static Set<DialerPhoneNumber> findDialerPhoneNumbersContainingContactId(
@@ -966,11 +965,11 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
   }
 
   /**
-   * We cannot efficiently process invalid numbers because batch queries cannot be constructed which
-   * accomplish the necessary loose matching. We'll attempt to process a limited number of them, but
-   * if there are too many we fall back to querying CP2 at render time.
+   * Batch queries cannot accomplish the loose matching invalid numbers need, so they are matched
+   * with a scan of the PHONE table (see {@link Cp2InvalidNumberMatcher}). This keeps the cost of
+   * that scan bounded; if there are too many we fall back to querying CP2 at render time.
    */
   private long getMaxSupportedInvalidNumbers() {
-    return configProvider.getLong("cp2_phone_lookup_max_invalid_numbers", 5);
+    return configProvider.getLong("cp2_phone_lookup_max_invalid_numbers", 5000);
   }
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.phonelookup.cp2;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Directory;
+import android.support.annotation.WorkerThread;
+import android.support.v4.util.ArrayMap;
+import android.support.v4.util.ArraySet;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import com.android.dialer.common.Assert;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.phonelookup.PhoneLookupInfo.Cp2Info.Cp2ContactInfo;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Matches many invalid numbers against the default directory with a single scan of the PHONE
+ * table.
+ *
+ * <p>Invalid numbers can't be looked up in a batch query against {@link Phone#NORMALIZED_NUMBER}
+ * because they need the loose matching done by {@link
+ * android.provider.ContactsContract.PhoneLookup}. Instead of issuing a PHONE_LOOKUP query per
+ * number, the invalid numbers are indexed by the last {@link #MIN_MATCH} digits, which is how CP2
+ * narrows down the candidates for PHONE_LOOKUP, and every row of the PHONE table is checked against
+ * the numbers sharing its suffix with {@link PhoneNumberUtils#compare(Context, String, String)}.
+ *
+ * <p>{@link #matchContactIds()} only reads the contact ID and the number of each row, for callers
+ * which don't need the contact info.
+ */
+final class Cp2InvalidNumberMatcher {
+
+  /** Same as the number of digits CP2 uses for the "min match" of PHONE_LOOKUP. */
+  private static final int MIN_MATCH = 7;
+
+  private static final String[] CONTACT_ID_SCAN_PROJECTION =
+      new String[] {
+        Phone.CONTACT_ID, // 0
+        Phone.NUMBER // 1
+      };
+
+  private static final int CONTACT_ID_SCAN_CONTACT_ID_INDEX = 0;
+  private static final int CONTACT_ID_SCAN_NUMBER_INDEX = 1;
+
+  private final Context appContext;
+
+  /** Invalid numbers, keyed by the last {@link #MIN_MATCH} digits of their dialable form. */
+  private final Map<String, List<String>> invalidNumbersBySuffix = new HashMap<>();
+
+  Cp2InvalidNumberMatcher(Context appContext, Set<String> invalidNumbers) {
+    this.appContext = appContext;
+    for (String invalidNumber : invalidNumbers) {
+      String suffix = suffixOf(invalidNumber);
+      if (suffix == null) {
+        continue;
+      }
+      List<String> numbers = invalidNumbersBySuffix.get(suffix);
+      if (numbers == null) {
+        numbers = new ArrayList<>(1);
+        invalidNumbersBySuffix.put(suffix, numbers);
+      }
+      numbers.add(invalidNumber);
+    }
+  }
+
+  /**
+   * Returns the contacts in the default directory matching each invalid number. Numbers without
+   * any matching contact are absent from the returned map.
+   */
+  @WorkerThread
+  Map<String, Set<Cp2ContactInfo>> match() {
+    Assert.isWorkerThread();
+    Map<String, Set<Cp2ContactInfo>> cp2ContactInfosByNumber = new ArrayMap<>();
+    if (invalidNumbersBySuffix.isEmpty()) {
+      return cp2ContactInfosByNumber;
+    }
+
+    int rowCount = 0;
+    try (Cursor cursor = queryPhoneTable(Cp2Projections.getProjectionForPhoneTableScan())) {
+      if (cursor == null) {
+        LogUtil.w("Cp2InvalidNumberMatcher.match", "null cursor");
+        return cp2ContactInfosByNumber;
+      }
+      rowCount = cursor.getCount();
+      while (cursor.moveToNext()) {
+        List<String> matchingNumbers =
+            findMatchingInvalidNumbers(Cp2Projections.getNumberFromPhoneTableScanCursor(cursor));
+        if (matchingNumbers.isEmpty()) {
+          continue;
+        }
+        Cp2ContactInfo cp2ContactInfo =
+            Cp2Projections.buildCp2ContactInfoFromCursor(appContext, cursor, Directory.DEFAULT);
+        for (String invalidNumber : matchingNumbers) {
+          Set<Cp2ContactInfo> cp2ContactInfos = cp2ContactInfosByNumber.get(invalidNumber);
+          if (cp2ContactInfos == null) {
+            cp2ContactInfos = new ArraySet<>();
+            cp2ContactInfosByNumber.put(invalidNumber, cp2ContactInfos);
+          }
+          cp2ContactInfos.add(cp2ContactInfo);
+        }
+      }
+    }
+    LogUtil.v(
+        "Cp2InvalidNumberMatcher.match",
+        "matched %d invalid numbers against %d rows",
+        cp2ContactInfosByNumber.size(),
+        rowCount);
+    return cp2ContactInfosByNumber;
+  }
+
+  /** Returns the IDs of the contacts in the default directory matching any invalid number. */
+  @WorkerThread
+  Set<Long> matchContactIds() {
+    Assert.isWorkerThread();
+    Set<Long> contactIds = new ArraySet<>();
+    if (invalidNumbersBySuffix.isEmpty()) {
+      return contactIds;
+    }
+
+    try (Cursor cursor = queryPhoneTable(CONTACT_ID_SCAN_PROJECTION)) {
+      if (cursor == null) {
+        LogUtil.w("Cp2InvalidNumberMatcher.matchContactIds", "null cursor");
+        return contactIds;
+      }
+      while (cursor.moveToNext()) {
+        long contactId = cursor.getLong(CONTACT_ID_SCAN_CONTACT_ID_INDEX);
+        if (contactIds.contains(contactId)) {
+          continue;
+        }
+        if (!findMatchingInvalidNumbers(cursor.getString(CONTACT_ID_SCAN_NUMBER_INDEX))
+            .isEmpty()) {
+          contactIds.add(contactId);
+        }
+      }
+    }
+    return contactIds;
+  }
+
+  private Cursor queryPhoneTable(String[] projection) {
+    return appContext
+        .getContentResolver()
+        .query(Phone.CONTENT_URI, projection, Phone.NUMBER + " IS NOT NULL", null, null);
+  }
+
+  /** Returns the invalid numbers matching {@code number}, a number of the PHONE table. */
+  private List<String> findMatchingInvalidNumbers(String number) {
+    String suffix = suffixOf(number);
+    if (suffix == null) {
+      return Collections.emptyList();
+    }
+    List<String> candidates = invalidNumbersBySuffix.get(suffix);
+    if (candidates == null) {
+      return Collections.emptyList();
+    }
+    List<String> matchingNumbers = new ArrayList<>(candidates.size());
+    for (String invalidNumber : candidates) {
+      if (PhoneNumberUtils.compare(appContext, invalidNumber, number)) {
+        matchingNumbers.add(invalidNumber);
+      }
+    }
+    return matchingNumbers;
+  }
+
+  /**
+   * Returns the last {@link #MIN_MATCH} dialable characters of {@code number}, or null if it has
+   * none.
+   */
+  private static String suffixOf(String number) {
+    if (TextUtils.isEmpty(number)) {
+      return null;
+    }
+    String normalized = PhoneNumberUtils.normalizeNumber(number);
+    if (normalized.isEmpty()) {
+      return null;
+    }
+    return normalized.length() > MIN_MATCH
+        ? normalized.substring(normalized.length() - MIN_MATCH)
+        : normalized;
+  }
+}
@@ -46,6 +46,22 @@ final class Cp2Projections {
         Phone.CARRIER_PRESENCE
       };
 
+  // Projection for matching the rows of the PHONE table against invalid numbers
+  private static final String[] PHONE_SCAN_PROJECTION =
+      new String[] {
+        Phone.DISPLAY_NAME_PRIMARY, // 0
+        Phone.PHOTO_THUMBNAIL_URI, // 1
+        Phone.PHOTO_URI, // 2
+        Phone.PHOTO_ID, // 3
+        Phone.TYPE, // 4
+        Phone.LABEL, // 5
+        Phone.NORMALIZED_NUMBER, // 6
+        Phone.CONTACT_ID, // 7
+        Phone.LOOKUP_KEY, // 8
+        Phone.CARRIER_PRESENCE, // 9
+        Phone.NUMBER // 10
+      };
+
   // Projection for performing lookups using the PHONE_LOOKUP table
   private static final String[] PHONE_LOOKUP_PROJECTION =
       new String[] {
@@ -72,19 +88,26 @@ final class Cp2Projections {
   private static final int CP2_INFO_CONTACT_ID_INDEX = 7;
   private static final int CP2_INFO_LOOKUP_KEY_INDEX = 8;
 
+  private static final int PHONE_SCAN_NUMBER_INDEX = 10;
+
   private Cp2Projections() {}
 
   static String[] getProjectionForPhoneTable() {
     return PHONE_PROJECTION;
   }
 
+  static String[] getProjectionForPhoneTableScan() {
+    return PHONE_SCAN_PROJECTION;
+  }
+
   static String[] getProjectionForPhoneLookupTable() {
     return PHONE_LOOKUP_PROJECTION;
   }
 
   /**
    * Builds a {@link Cp2ContactInfo} based on the current row of {@code cursor}, of which the
-   * projection is either {@link #PHONE_PROJECTION} or {@link #PHONE_LOOKUP_PROJECTION}.
+   * projection is {@link #PHONE_PROJECTION}, {@link #PHONE_SCAN_PROJECTION} or {@link
+   * #PHONE_LOOKUP_PROJECTION}.
    */
   static Cp2ContactInfo buildCp2ContactInfoFromCursor(
       Context appContext, Cursor cursor, long directoryId) {
@@ -127,7 +150,7 @@ final class Cp2Projections {
               .toString());
     }
 
-    // Only PHONE_PROJECTION has a column containing carrier presence info.
+    // Only the PHONE table has a column containing carrier presence info.
     int carrierPresenceColumn = cursor.getColumnIndex(Phone.CARRIER_PRESENCE);
     if (carrierPresenceColumn != -1) {
       int carrierPresenceInfo = cursor.getInt(carrierPresenceColumn);
@@ -143,4 +166,9 @@ final class Cp2Projections {
   static String getNormalizedNumberFromCursor(Cursor cursor) {
     return cursor.getString(CP2_INFO_NORMALIZED_NUMBER_INDEX);
   }
+
+  /** Returns the raw number in the current row of {@code cursor} from a scan of the PHONE table. */
+  static String getNumberFromPhoneTableScanCursor(Cursor cursor) {
+    return cursor.getString(PHONE_SCAN_NUMBER_INDEX);
+  }
 }
@@ -160,7 +160,20 @@ public class PhoneLookupHistoryContentProvider extends ContentProvider {
         throw new IllegalArgumentException("Unknown uri: " + uri);
     }
     // Note: The id returned for a successful insert isn't actually part of the table.
-    long id = database.insert(PhoneLookupHistory.TABLE, null, values);
+    long id;
+    database.beginTransaction();
+    try {
+      id = database.insert(PhoneLookupHistory.TABLE, null, values);
+      if (id >= 0) {
+        databaseHelper.updateContactIds(
+            database,
+            values.getAsString(PhoneLookupHistory.NORMALIZED_NUMBER),
+            values.getAsByteArray(PhoneLookupHistory.PHONE_LOOKUP_INFO));
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
     if (id < 0) {
       LogUtil.w(
           "PhoneLookupHistoryContentProvider.insert",
@@ -231,7 +244,21 @@ public class PhoneLookupHistoryContentProvider extends ContentProvider {
     @UriType int uriType = uriType(uri);
     switch (uriType) {
       case UriType.PHONE_LOOKUP_HISTORY_TABLE_CODE:
-        int rows = database.update(PhoneLookupHistory.TABLE, values, selection, selectionArgs);
+        int rows;
+        database.beginTransaction();
+        try {
+          rows = database.update(PhoneLookupHistory.TABLE, values, selection, selectionArgs);
+          // The updated numbers aren't known here, so rebuild the whole contact id index. Nothing
+          // updates these columns by selection in practice.
+          if (rows > 0
+              && (values.containsKey(PhoneLookupHistory.NORMALIZED_NUMBER)
+                  || values.containsKey(PhoneLookupHistory.PHONE_LOOKUP_INFO))) {
+            databaseHelper.rebuildContactIds(database);
+          }
+          database.setTransactionSuccessful();
+        } finally {
+          database.endTransaction();
+        }
         if (rows == 0) {
           LogUtil.w("PhoneLookupHistoryContentProvider.update", "no rows updated");
           return rows;
@@ -251,7 +278,22 @@ public class PhoneLookupHistoryContentProvider extends ContentProvider {
         String normalizedNumber =
             Uri.decode(uri.getQueryParameter(PhoneLookupHistory.NUMBER_QUERY_PARAM));
         values.put(PhoneLookupHistory.NORMALIZED_NUMBER, normalizedNumber);
-        long result = database.replace(PhoneLookupHistory.TABLE, null, values);
+        long result;
+        database.beginTransaction();
+        try {
+          result = database.replace(PhoneLookupHistory.TABLE, null, values);
+          if (result != -1) {
+            // A replaced row is not deleted through the trigger, so its contact ids are
+            // replaced here as well.
+            databaseHelper.updateContactIds(
+                database,
+                normalizedNumber,
+                values.getAsByteArray(PhoneLookupHistory.PHONE_LOOKUP_INFO));
+          }
+          database.setTransactionSuccessful();
+        } finally {
+          database.endTransaction();
+        }
         Assert.checkArgument(result != -1, "replacing PhoneLookupHistory row failed");
         if (!isApplyingBatch()) {
           notifyChange(uri);
@@ -17,19 +17,43 @@
 package com.android.dialer.phonelookup.database;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.support.v4.util.ArrayMap;
+import android.support.v4.util.ArraySet;
+import android.text.TextUtils;
+import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.common.concurrent.Annotations.BackgroundExecutor;
 import com.android.dialer.inject.ApplicationContext;
+import com.android.dialer.phonelookup.PhoneLookupInfo;
+import com.android.dialer.phonelookup.PhoneLookupInfo.Cp2Info.Cp2ContactInfo;
 import com.android.dialer.phonelookup.database.contract.PhoneLookupHistoryContract.PhoneLookupHistory;
+import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
-/** {@link SQLiteOpenHelper} for the PhoneLookupHistory database. */
+/**
+ * {@link SQLiteOpenHelper} for the PhoneLookupHistory database.
+ *
+ * <p>Besides the PhoneLookupHistory table, the database contains a reverse index from the ids of
+ * the contacts in the default directory to the numbers whose {@link PhoneLookupInfo} refers to
+ * them, so that a changed contact can be resolved to its numbers without parsing every row. The
+ * index is kept up to date by {@link PhoneLookupHistoryContentProvider} through {@link
+ * #updateContactIds(SQLiteDatabase, String, byte[])}.
+ */
 @Singleton
 public class PhoneLookupHistoryDatabaseHelper extends SQLiteOpenHelper {
 
@@ -42,7 +66,7 @@ public class PhoneLookupHistoryDatabaseHelper extends SQLiteOpenHelper {
   PhoneLookupHistoryDatabaseHelper(
       @ApplicationContext Context appContext,
       @BackgroundExecutor ListeningExecutorService backgroundExecutor) {
-    super(appContext, FILENAME, null, 1);
+    super(appContext, FILENAME, null, 2);
 
     this.appContext = appContext;
     this.backgroundExecutor = backgroundExecutor;
@@ -65,12 +89,58 @@ public class PhoneLookupHistoryDatabaseHelper extends SQLiteOpenHelper {
           + PhoneLookupHistory.LAST_MODIFIED
           + ");";
 
+  /** Reverse index from contact ids to the normalized numbers of PhoneLookupHistory. */
+  private static final String CONTACT_IDS_TABLE = "PhoneLookupHistoryContactIds";
+
+  private static final String CONTACT_ID = "contact_id";
+
+  /** SQLite limits the number of host parameters in a statement to 999. */
+  private static final int MAX_SELECTION_ARGS = 999;
+
+  private static final String CREATE_CONTACT_IDS_TABLE_SQL =
+      "create table if not exists "
+          + CONTACT_IDS_TABLE
+          + " ("
+          + (CONTACT_ID + " integer not null, ")
+          + (PhoneLookupHistory.NORMALIZED_NUMBER + " text not null, ")
+          + ("primary key (" + CONTACT_ID + ", " + PhoneLookupHistory.NORMALIZED_NUMBER + ")")
+          + ");";
+
+  private static final String CREATE_INDEX_ON_CONTACT_IDS_NUMBER_SQL =
+      "create index contact_ids_number_index on "
+          + CONTACT_IDS_TABLE
+          + " ("
+          + PhoneLookupHistory.NORMALIZED_NUMBER
+          + ");";
+
+  /** Removes the contact ids of rows deleted from PhoneLookupHistory. */
+  private static final String CREATE_DELETE_CONTACT_IDS_TRIGGER_SQL =
+      "create trigger delete_contact_ids after delete on "
+          + PhoneLookupHistory.TABLE
+          + " begin delete from "
+          + CONTACT_IDS_TABLE
+          + " where "
+          + PhoneLookupHistory.NORMALIZED_NUMBER
+          + " = old."
+          + PhoneLookupHistory.NORMALIZED_NUMBER
+          + "; end;";
+
+  private static final String INSERT_CONTACT_ID_SQL =
+      "insert or ignore into "
+          + CONTACT_IDS_TABLE
+          + " ("
+          + CONTACT_ID
+          + ", "
+          + PhoneLookupHistory.NORMALIZED_NUMBER
+          + ") values (?, ?)";
+
   @Override
   public void onCreate(SQLiteDatabase db) {
     LogUtil.enterBlock("PhoneLookupHistoryDatabaseHelper.onCreate");
     long startTime = SystemClock.uptimeMillis();
     db.execSQL(CREATE_TABLE_SQL);
     db.execSQL(CREATE_INDEX_ON_LAST_MODIFIED_SQL);
+    createContactIdsTable(db);
     // TODO(zachh): Consider logging impression.
     LogUtil.i(
         "PhoneLookupHistoryDatabaseHelper.onCreate",
@@ -79,7 +149,155 @@ public class PhoneLookupHistoryDatabaseHelper extends SQLiteOpenHelper {
   }
 
   @Override
-  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    if (oldVersion < 2) {
+      createContactIdsTable(db);
+      rebuildContactIds(db);
+    }
+  }
+
+  private static void createContactIdsTable(SQLiteDatabase db) {
+    db.execSQL(CREATE_CONTACT_IDS_TABLE_SQL);
+    db.execSQL(CREATE_INDEX_ON_CONTACT_IDS_NUMBER_SQL);
+    db.execSQL(CREATE_DELETE_CONTACT_IDS_TRIGGER_SQL);
+  }
+
+  /**
+   * Replaces the contact ids indexed for {@code normalizedNumber} with those in {@code
+   * phoneLookupInfo}, which is the serialized {@link PhoneLookupInfo} just written for the number.
+   */
+  @WorkerThread
+  void updateContactIds(
+      SQLiteDatabase db, String normalizedNumber, @Nullable byte[] phoneLookupInfo) {
+    db.beginTransaction();
+    try {
+      db.delete(
+          CONTACT_IDS_TABLE,
+          PhoneLookupHistory.NORMALIZED_NUMBER + " = ?",
+          new String[] {normalizedNumber});
+      if (phoneLookupInfo != null) {
+        try (SQLiteStatement insertStatement = db.compileStatement(INSERT_CONTACT_ID_SQL)) {
+          insertContactIds(insertStatement, normalizedNumber, phoneLookupInfo);
+        }
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /** Rebuilds the whole contact id index from the PhoneLookupHistory table. */
+  @WorkerThread
+  void rebuildContactIds(SQLiteDatabase db) {
+    long startTime = SystemClock.uptimeMillis();
+    db.beginTransaction();
+    try (Cursor cursor =
+            db.query(
+                PhoneLookupHistory.TABLE,
+                new String[] {
+                  PhoneLookupHistory.NORMALIZED_NUMBER, PhoneLookupHistory.PHONE_LOOKUP_INFO
+                },
+                null,
+                null,
+                null,
+                null,
+                null);
+        SQLiteStatement insertStatement = db.compileStatement(INSERT_CONTACT_ID_SQL)) {
+      db.delete(CONTACT_IDS_TABLE, null, null);
+      while (cursor.moveToNext()) {
+        insertContactIds(insertStatement, cursor.getString(0), cursor.getBlob(1));
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    LogUtil.i(
+        "PhoneLookupHistoryDatabaseHelper.rebuildContactIds",
+        "took: %dms",
+        SystemClock.uptimeMillis() - startTime);
+  }
+
+  private static void insertContactIds(
+      SQLiteStatement insertStatement, String normalizedNumber, byte[] phoneLookupInfo) {
+    PhoneLookupInfo info;
+    try {
+      info = PhoneLookupInfo.parseFrom(phoneLookupInfo);
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalStateException(e);
+    }
+    for (Cp2ContactInfo cp2ContactInfo : info.getDefaultCp2Info().getCp2ContactInfoList()) {
+      insertStatement.bindLong(1, cp2ContactInfo.getContactId());
+      insertStatement.bindString(2, normalizedNumber);
+      insertStatement.executeInsert();
+      insertStatement.clearBindings();
+    }
+  }
+
+  /**
+   * Returns the ids of all contacts in the default directory that a PhoneLookupHistory row refers
+   * to.
+   */
+  @WorkerThread
+  public Set<Long> getContactIds() {
+    Assert.isWorkerThread();
+    Set<Long> contactIds = new ArraySet<>();
+    try (Cursor cursor =
+        getReadableDatabase()
+            .query(
+                true /* distinct */,
+                CONTACT_IDS_TABLE,
+                new String[] {CONTACT_ID},
+                null,
+                null,
+                null,
+                null,
+                null,
+                null)) {
+      while (cursor.moveToNext()) {
+        contactIds.add(cursor.getLong(0));
+      }
+    }
+    return contactIds;
+  }
+
+  /**
+   * Returns the normalized numbers of the PhoneLookupHistory rows which refer to each of {@code
+   * contactIds}. Contacts which no row refers to are absent from the returned map.
+   */
+  @WorkerThread
+  public Map<Long, Set<String>> getNormalizedNumbersForContactIds(Set<Long> contactIds) {
+    Assert.isWorkerThread();
+    Map<Long, Set<String>> normalizedNumbersByContactId = new ArrayMap<>();
+    SQLiteDatabase db = getReadableDatabase();
+    for (List<Long> partition : Iterables.partition(contactIds, MAX_SELECTION_ARGS)) {
+      String[] selectionArgs = new String[partition.size()];
+      for (int i = 0; i < selectionArgs.length; i++) {
+        selectionArgs[i] = Long.toString(partition.get(i));
+      }
+      String[] questionMarks = new String[selectionArgs.length];
+      Arrays.fill(questionMarks, "?");
+      try (Cursor cursor =
+          db.query(
+              CONTACT_IDS_TABLE,
+              new String[] {CONTACT_ID, PhoneLookupHistory.NORMALIZED_NUMBER},
+              CONTACT_ID + " in (" + TextUtils.join(",", questionMarks) + ")",
+              selectionArgs,
+              null,
+              null,
+              null)) {
+        while (cursor.moveToNext()) {
+          long contactId = cursor.getLong(0);
+          Set<String> normalizedNumbers = normalizedNumbersByContactId.get(contactId);
+          if (normalizedNumbers == null) {
+            normalizedNumbers = new ArraySet<>();
+            normalizedNumbersByContactId.put(contactId, normalizedNumbers);
+          }
+          normalizedNumbers.add(cursor.getString(1));
+        }
+      }
+    }
+    return normalizedNumbersByContactId;
+  }
 
   /** Closes the database and deletes it. */
   public ListenableFuture<Void> delete() {
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.phonenumberutil;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.LruCache;
+import com.android.dialer.DialerPhoneNumber;
+import com.android.dialer.common.Assert;
+import com.android.dialer.i18n.LocaleUtils;
+import com.android.dialer.phonenumbergeoutil.PhoneNumberGeoUtilComponent;
+import com.android.dialer.phonenumberproto.DialerPhoneNumberUtil;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide cache of parsed, formatted and geocoded phone numbers.
+ *
+ * <p>The call log and the in-call UI see few distinct numbers many times, so a number is only
+ * parsed, formatted or geocoded the first time it is needed for a given country and locale.
+ *
+ * <p>Can be used from any thread, except for {@link Entry#getDialerPhoneNumber()}, which must be
+ * called on a worker thread.
+ */
+public final class PhoneNumberCache {
+
+  private static final int MAX_ENTRIES = 500;
+
+  private static PhoneNumberCache instance;
+
+  private final Context appContext;
+  private final LruCache<Key, Entry> entries = new LruCache<>(MAX_ENTRIES);
+  private final AtomicInteger hitCount = new AtomicInteger();
+  private final AtomicInteger missCount = new AtomicInteger();
+
+  @Nullable private volatile DialerPhoneNumberUtil dialerPhoneNumberUtil;
+
+  private PhoneNumberCache(Context appContext) {
+    this.appContext = appContext;
+  }
+
+  public static synchronized PhoneNumberCache get(Context context) {
+    if (instance == null) {
+      instance = new PhoneNumberCache(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  /**
+   * Returns the entry for {@code number}, which is parsed, formatted or geocoded when first asked
+   * for.
+   *
+   * @param countryIso the country used if the number doesn't have a country code
+   */
+  public Entry get(@Nullable String number, @Nullable String countryIso) {
+    if (TextUtils.isEmpty(number)) {
+      // Not worth caching, and LruCache doesn't allow null keys.
+      return new Entry(number, countryIso);
+    }
+
+    Key key = new Key(number, countryIso, LocaleUtils.getLocale(appContext));
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      hitCount.incrementAndGet();
+      return entry;
+    }
+    missCount.incrementAndGet();
+    entry = new Entry(number, countryIso);
+    entries.put(key, entry);
+    return entry;
+  }
+
+  /** Returns how many calls to {@link #get(String, String)} found the number in the cache. */
+  public int getHitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns how many calls to {@link #get(String, String)} added the number to the cache. */
+  public int getMissCount() {
+    return missCount.get();
+  }
+
+  @WorkerThread
+  private DialerPhoneNumberUtil getDialerPhoneNumberUtil() {
+    if (dialerPhoneNumberUtil == null) {
+      dialerPhoneNumberUtil = new DialerPhoneNumberUtil();
+    }
+    return dialerPhoneNumberUtil;
+  }
+
+  /**
+   * A phone number in a country, with the results derived from it. Entries are cached per locale,
+   * as the geocoded description depends on it.
+   */
+  public final class Entry {
+    @Nullable private final String number;
+    @Nullable private final String countryIso;
+
+    private DialerPhoneNumber dialerPhoneNumber;
+    private String formattedNumber;
+    private String geoDescription;
+    private boolean hasGeoDescription;
+
+    private Entry(@Nullable String number, @Nullable String countryIso) {
+      this.number = number;
+      this.countryIso = countryIso;
+    }
+
+    /** @see DialerPhoneNumberUtil#parse(String, String) */
+    @WorkerThread
+    public synchronized DialerPhoneNumber getDialerPhoneNumber() {
+      Assert.isWorkerThread();
+      if (dialerPhoneNumber == null) {
+        dialerPhoneNumber = getDialerPhoneNumberUtil().parse(number, countryIso);
+      }
+      return dialerPhoneNumber;
+    }
+
+    /**
+     * Returns the number formatted with {@link PhoneNumberUtils#formatNumber(String, String)}, or
+     * the number itself if it can't be formatted.
+     */
+    @Nullable
+    public synchronized String getFormattedNumber() {
+      if (formattedNumber == null && number != null) {
+        formattedNumber = PhoneNumberUtils.formatNumber(number, countryIso);
+        if (formattedNumber == null) {
+          formattedNumber = number;
+        }
+      }
+      return formattedNumber;
+    }
+
+    /** @see com.android.dialer.phonenumbergeoutil.PhoneNumberGeoUtil#getGeoDescription */
+    @Nullable
+    public synchronized String getGeoDescription() {
+      if (!hasGeoDescription) {
+        geoDescription =
+            PhoneNumberGeoUtilComponent.get(appContext)
+                .getPhoneNumberGeoUtil()
+                .getGeoDescription(appContext, number, countryIso);
+        hasGeoDescription = true;
+      }
+      return geoDescription;
+    }
+  }
+
+  private static final class Key {
+    private final String number;
+    @Nullable private final String countryIso;
+    private final Locale locale;
+
+    Key(String number, @Nullable String countryIso, Locale locale) {
+      this.number = number;
+      this.countryIso = countryIso;
+      this.locale = locale;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return number.equals(other.number)
+          && Objects.equals(countryIso, other.countryIso)
+          && locale.equals(other.locale);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(number, countryIso, locale);
+    }
+  }
+}
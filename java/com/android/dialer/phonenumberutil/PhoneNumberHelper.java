@@ -36,7 +36,6 @@ import com.android.dialer.compat.telephony.TelephonyManagerCompat;
 import com.android.dialer.i18n.LocaleUtils;
 import com.android.dialer.oem.MotorolaUtils;
 import com.android.dialer.oem.PhoneNumberUtilsAccessor;
-import com.android.dialer.phonenumbergeoutil.PhoneNumberGeoUtilComponent;
 import com.android.dialer.telecom.TelecomUtil;
 import com.google.common.base.Optional;
 import java.util.Arrays;
@@ -228,9 +227,7 @@ public class PhoneNumberHelper {
    */
   public static String getGeoDescription(
       Context context, String number, @Nullable String countryIso) {
-    return PhoneNumberGeoUtilComponent.get(context)
-        .getPhoneNumberGeoUtil()
-        .getGeoDescription(context, number, countryIso);
+    return PhoneNumberCache.get(context).get(number, countryIso).getGeoDescription();
   }
 
   /**
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.smartdial.map;
+
+import android.content.Context;
+import com.google.common.base.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A precomputed view of {@link CompositeSmartDialMap} that maps characters to dialpad keys without
+ * allocating.
+ *
+ * <p>{@link CompositeSmartDialMap} answers through {@link Optional}s and boxed characters, which
+ * creates garbage for every character of every contact name matched on every keystroke. This table
+ * resolves each character of the Latin and Cyrillic blocks once per language and afterwards only
+ * reads a {@code char[]}. Characters outside of these blocks fall back to {@link
+ * CompositeSmartDialMap}.
+ */
+@SuppressWarnings("Guava")
+public final class SmartDialKeyTable {
+
+  /** Returned by {@link #getKey(Context, char)} for characters that are not on the dialpad. */
+  public static final char NO_KEY = 0;
+
+  /** Covers Basic Latin up to and including the Cyrillic block. */
+  private static final int TABLE_SIZE = 0x0500;
+
+  private static final ConcurrentHashMap<String, SmartDialKeyTable> TABLES =
+      new ConcurrentHashMap<>();
+
+  private final char[] keys = new char[TABLE_SIZE];
+
+  private SmartDialKeyTable(Context context) {
+    for (int ch = 0; ch < TABLE_SIZE; ch++) {
+      keys[ch] = computeKey(context, (char) ch);
+    }
+  }
+
+  /** Returns the table for the alphabets {@link CompositeSmartDialMap} uses in {@code context}. */
+  public static SmartDialKeyTable get(Context context) {
+    Optional<SmartDialMap> extraMap = CompositeSmartDialMap.getExtraMap(context);
+    String key = extraMap.isPresent() ? extraMap.get().getClass().getName() : "";
+    SmartDialKeyTable table = TABLES.get(key);
+    if (table == null) {
+      table = new SmartDialKeyTable(context);
+      TABLES.putIfAbsent(key, table);
+    }
+    return table;
+  }
+
+  /**
+   * Returns the numeric character of the dialpad key for {@code ch} after normalization, or {@link
+   * #NO_KEY} if the character separates tokens.
+   *
+   * <p>This is the character {@link com.android.dialer.smartdial.util.SmartDialNameMatcher}
+   * compares against the query: digits map to themselves and letters map to their key.
+   */
+  public char getKey(Context context, char ch) {
+    return ch < TABLE_SIZE ? keys[ch] : computeKey(context, ch);
+  }
+
+  /**
+   * Same as {@link CompositeSmartDialMap#isValidDialpadNumericChar(Context, char)}; no {@link
+   * SmartDialMap} defines digits other than '0' to '9'.
+   */
+  public static boolean isDialpadDigit(char ch) {
+    return '0' <= ch && ch <= '9';
+  }
+
+  private static char computeKey(Context context, char ch) {
+    char normalized = CompositeSmartDialMap.normalizeCharacter(context, ch);
+    if (!CompositeSmartDialMap.isValidDialpadCharacter(context, normalized)) {
+      return NO_KEY;
+    }
+    if (CompositeSmartDialMap.isValidDialpadAlphabeticChar(context, normalized)) {
+      return CompositeSmartDialMap.getDialpadNumericCharacter(context, normalized);
+    }
+    return normalized;
+  }
+}
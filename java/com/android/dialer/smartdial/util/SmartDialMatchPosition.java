@@ -32,11 +32,29 @@ public class SmartDialMatchPosition {
   public int start;
   public int end;
 
+  /** Returned by the packed matching methods of {@link SmartDialNameMatcher} if nothing matched. */
+  public static final long NO_MATCH = -1L;
+
   public SmartDialMatchPosition(int start, int end) {
     this.start = start;
     this.end = end;
   }
 
+  /** Encodes a range as a single long so that it can be stored without allocating. */
+  public static long pack(int start, int end) {
+    return ((long) start << 32) | (end & 0xffffffffL);
+  }
+
+  /** Returns the start of a range encoded with {@link #pack(int, int)}. */
+  public static int packedStart(long packed) {
+    return (int) (packed >>> 32);
+  }
+
+  /** Returns the end of a range encoded with {@link #pack(int, int)}. */
+  public static int packedEnd(long packed) {
+    return (int) packed;
+  }
+
   /**
    * Used by {@link SmartDialNameMatcher} to advance the positions of a match position found in a
    * sub query.
@@ -20,8 +20,10 @@ import android.content.Context;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import com.android.dialer.smartdial.map.CompositeSmartDialMap;
+import com.android.dialer.smartdial.map.SmartDialKeyTable;
 import com.android.dialer.smartdial.util.SmartDialPrefix.PhoneNumberTokens;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * {@link #SmartDialNameMatcher} contains utility functions to remove accents from accented
@@ -41,6 +43,12 @@ public class SmartDialNameMatcher {
   private final ArrayList<SmartDialMatchPosition> matchPositions = new ArrayList<>();
   private String query;
 
+  // Scratch buffers of the packed matching methods, reused for every candidate.
+  @Nullable private SmartDialKeyTable keyTable;
+  private char[] nameKeys = new char[32];
+  private long[] packedMatchPositions = new long[8];
+  private int packedMatchPositionCount;
+
   // Controls whether to treat an empty query as a match (with anything).
   private boolean shouldMatchEmptyQuery = false;
 
@@ -76,31 +84,6 @@ public class SmartDialNameMatcher {
     return s.toString();
   }
 
-  /**
-   * Constructs empty highlight mask. Bit 0 at a position means there is no match, Bit 1 means there
-   * is a match and should be highlighted in the TextView.
-   *
-   * @param builder StringBuilder object
-   * @param length Length of the desired mask.
-   */
-  private void constructEmptyMask(StringBuilder builder, int length) {
-    for (int i = 0; i < length; ++i) {
-      builder.append("0");
-    }
-  }
-
-  /**
-   * Replaces the 0-bit at a position with 1-bit, indicating that there is a match.
-   *
-   * @param builder StringBuilder object.
-   * @param matchPos Match Positions to mask as 1.
-   */
-  private void replaceBitInMask(StringBuilder builder, SmartDialMatchPosition matchPos) {
-    for (int i = matchPos.start; i < matchPos.end; ++i) {
-      builder.replace(i, i + 1, "1");
-    }
-  }
-
   /**
    * Matches a phone number against a query. Let the test application overwrite the NANP setting.
    *
@@ -114,9 +97,6 @@ public class SmartDialNameMatcher {
     if (TextUtils.isEmpty(phoneNumber)) {
       return shouldMatchEmptyQuery ? new SmartDialMatchPosition(0, 0) : null;
     }
-    StringBuilder builder = new StringBuilder();
-    constructEmptyMask(builder, phoneNumber.length());
-
     // Try matching the number as is
     SmartDialMatchPosition matchPos =
         matchesNumberWithOffset(context, phoneNumber, query, /* offset = */ 0);
@@ -133,9 +113,6 @@ public class SmartDialNameMatcher {
             matchesNumberWithOffset(context, phoneNumber, query, phoneNumberTokens.nanpCodeOffset);
       }
     }
-    if (matchPos != null) {
-      replaceBitInMask(builder, matchPos);
-    }
     return matchPos;
   }
 
@@ -199,6 +176,67 @@ public class SmartDialNameMatcher {
     return new SmartDialMatchPosition(0 + offset, numberAt);
   }
 
+  /**
+   * Same as {@link #matchesNumber(Context, String, String)}, but without allocating: the matching
+   * positions are returned encoded with {@link SmartDialMatchPosition#pack(int, int)}.
+   *
+   * @param phoneNumber - Raw phone number
+   * @param query - Normalized query (only contains numbers from 0-9)
+   * @return {@link SmartDialMatchPosition#NO_MATCH} if the number and the query don't match, the
+   *     packed matching positions otherwise
+   */
+  public long matchesNumberPacked(String phoneNumber, String query) {
+    if (TextUtils.isEmpty(phoneNumber)) {
+      return shouldMatchEmptyQuery
+          ? SmartDialMatchPosition.pack(0, 0)
+          : SmartDialMatchPosition.NO_MATCH;
+    }
+
+    // Try matching the number as is
+    long matchPos = matchesNumberWithOffsetPacked(phoneNumber, query, /* offset = */ 0);
+    if (matchPos == SmartDialMatchPosition.NO_MATCH) {
+      long offsets = SmartDialPrefix.parsePhoneNumberOffsets(phoneNumber);
+      int countryCodeOffset = SmartDialMatchPosition.packedStart(offsets);
+      int nanpCodeOffset = SmartDialMatchPosition.packedEnd(offsets);
+
+      if (countryCodeOffset != 0) {
+        matchPos = matchesNumberWithOffsetPacked(phoneNumber, query, countryCodeOffset);
+      }
+      if (matchPos == SmartDialMatchPosition.NO_MATCH && nanpCodeOffset != 0) {
+        matchPos = matchesNumberWithOffsetPacked(phoneNumber, query, nanpCodeOffset);
+      }
+    }
+    return matchPos;
+  }
+
+  /** Same as {@link #matchesNumberWithOffset}, returning packed positions. */
+  private long matchesNumberWithOffsetPacked(String phoneNumber, String query, int offset) {
+    if (TextUtils.isEmpty(phoneNumber) || TextUtils.isEmpty(query)) {
+      return shouldMatchEmptyQuery
+          ? SmartDialMatchPosition.pack(offset, offset)
+          : SmartDialMatchPosition.NO_MATCH;
+    }
+    int queryAt = 0;
+    int numberAt = offset;
+    for (int i = offset; i < phoneNumber.length(); i++) {
+      if (queryAt == query.length()) {
+        break;
+      }
+      char ch = phoneNumber.charAt(i);
+      if (SmartDialKeyTable.isDialpadDigit(ch)) {
+        if (ch != query.charAt(queryAt)) {
+          return SmartDialMatchPosition.NO_MATCH;
+        }
+        queryAt++;
+      } else if (queryAt == 0 && offset != 0) {
+        // See matchesNumberWithOffset for why leading separators are skipped.
+        offset++;
+      }
+      numberAt++;
+    }
+    return SmartDialMatchPosition.pack(offset, numberAt);
+  }
+
   /**
    * This function iterates through each token in the display name, trying to match the query to the
    * numeric equivalent of the token.
@@ -231,8 +269,6 @@ public class SmartDialNameMatcher {
       String displayName,
       String query,
       ArrayList<SmartDialMatchPosition> matchList) {
-    StringBuilder builder = new StringBuilder();
-    constructEmptyMask(builder, displayName.length());
     final int nameLength = displayName.length();
     final int queryLength = query.length();
 
@@ -314,9 +350,6 @@ public class SmartDialNameMatcher {
             // one so if we find a full token match, we can return right away
             matchList.add(
                 new SmartDialMatchPosition(tokenStart, queryLength + tokenStart + seperatorCount));
-            for (SmartDialMatchPosition match : matchList) {
-              replaceBitInMask(builder, match);
-            }
             return true;
           } else if (ALLOW_INITIAL_MATCH && queryStart < INITIAL_LENGTH_LIMIT) {
             // we matched the first character.
@@ -373,9 +406,6 @@ public class SmartDialNameMatcher {
     // then partial will always be empty.
     if (!partial.isEmpty()) {
       matchList.addAll(partial);
-      for (SmartDialMatchPosition match : matchList) {
-        replaceBitInMask(builder, match);
-      }
       return true;
     }
     return false;
@@ -410,6 +440,138 @@ public class SmartDialNameMatcher {
     return matchesCombination(context, displayName, query, matchPositions);
   }
 
+  /**
+   * Same as {@link #matches(Context, String)}, but works on scratch buffers owned by this matcher
+   * and does not allocate once they have grown to fit the longest name. The match positions are
+   * available through {@link #getPackedMatchPosition(int)} until the next call.
+   */
+  public boolean matchesPacked(Context context, String displayName) {
+    if (keyTable == null) {
+      keyTable = SmartDialKeyTable.get(context);
+    }
+    final int nameLength = displayName.length();
+    if (nameKeys.length < nameLength) {
+      nameKeys = new char[Math.max(nameLength, nameKeys.length * 2)];
+    }
+    for (int i = 0; i < nameLength; i++) {
+      nameKeys[i] = keyTable.getKey(context, displayName.charAt(i));
+    }
+    packedMatchPositionCount =
+        matchesCombinationPacked(nameLength, /* nameFrom = */ 0, /* queryFrom = */ 0, 0);
+    return packedMatchPositionCount > 0;
+  }
+
+  /** Returns the number of match positions found by the last {@link #matchesPacked} call. */
+  public int getPackedMatchPositionCount() {
+    return packedMatchPositionCount;
+  }
+
+  /**
+   * Returns a match position found by the last {@link #matchesPacked} call, encoded with {@link
+   * SmartDialMatchPosition#pack(int, int)}.
+   */
+  public long getPackedMatchPosition(int index) {
+    if (index >= packedMatchPositionCount) {
+      throw new IndexOutOfBoundsException();
+    }
+    return packedMatchPositions[index];
+  }
+
+  /**
+   * Same algorithm as {@link #matchesCombination}, over the dialpad keys of the name in {@link
+   * #nameKeys}. Instead of matching substrings, the name is matched from {@code nameFrom} and the
+   * query from {@code queryFrom}, so that positions are absolute and need no advancing.
+   *
+   * @return the number of positions written to {@link #packedMatchPositions} starting at {@code
+   *     outStart}, or 0 if there is no match.
+   */
+  private int matchesCombinationPacked(int nameLength, int nameFrom, int queryFrom, int outStart) {
+    final int queryLength = query.length() - queryFrom;
+
+    if (nameLength - nameFrom < queryLength) {
+      return 0;
+    }
+
+    if (queryLength == 0) {
+      return 0;
+    }
+
+    int nameStart = nameFrom;
+    int queryStart = 0;
+    int tokenStart = nameFrom;
+    int seperatorCount = 0;
+
+    // Number of positions of the partial (initial) match stored at outStart, if any.
+    int partialCount = 0;
+    while (nameStart < nameLength && queryStart < queryLength) {
+      char ch = nameKeys[nameStart];
+      if (ch != SmartDialKeyTable.NO_KEY) {
+        if (ch != query.charAt(queryFrom + queryStart)) {
+          if (queryStart == 0 || nameKeys[nameStart - 1] != SmartDialKeyTable.NO_KEY) {
+            // skip to the next token
+            while (nameStart < nameLength && nameKeys[nameStart] != SmartDialKeyTable.NO_KEY) {
+              nameStart++;
+            }
+            nameStart++;
+          }
+
+          // Restart the query and set the correct token position
+          queryStart = 0;
+          seperatorCount = 0;
+          tokenStart = nameStart;
+        } else {
+          if (queryStart == queryLength - 1) {
+            // A full token match takes precedence over any partial match.
+            ensurePackedCapacity(outStart + 1);
+            packedMatchPositions[outStart] =
+                SmartDialMatchPosition.pack(
+                    tokenStart, queryLength + tokenStart + seperatorCount);
+            return 1;
+          } else if (ALLOW_INITIAL_MATCH && queryStart < INITIAL_LENGTH_LIMIT) {
+            int j;
+            for (j = nameStart; j < nameLength; j++) {
+              if (nameKeys[j] == SmartDialKeyTable.NO_KEY) {
+                break;
+              }
+            }
+            if (j < nameLength - 1) {
+              // Match the rest of the query behind the current partial match so that a failed
+              // attempt cannot overwrite it.
+              final int tempStart = outStart + partialCount;
+              final int count =
+                  matchesCombinationPacked(
+                      nameLength, j + 1, queryFrom + queryStart + 1, tempStart + 1);
+              if (count > 0) {
+                packedMatchPositions[tempStart] =
+                    SmartDialMatchPosition.pack(nameStart, nameStart + 1);
+                System.arraycopy(
+                    packedMatchPositions, tempStart, packedMatchPositions, outStart, count + 1);
+                partialCount = count + 1;
+              }
+            }
+          }
+          nameStart++;
+          queryStart++;
+        }
+      } else {
+        nameStart++;
+        if (queryStart == 0) {
+          tokenStart = nameStart;
+        } else {
+          seperatorCount++;
+        }
+      }
+    }
+    return partialCount;
+  }
+
+  private void ensurePackedCapacity(int capacity) {
+    if (packedMatchPositions.length < capacity) {
+      packedMatchPositions =
+          Arrays.copyOf(packedMatchPositions, Math.max(capacity, packedMatchPositions.length * 2));
+    }
+  }
+
   public ArrayList<SmartDialMatchPosition> getMatchPositions() {
     // Return a clone of mMatchPositions so that the caller can use it without
     // worrying about it changing
@@ -422,6 +584,7 @@ public class SmartDialNameMatcher {
 
   public void setQuery(String query) {
     this.query = query;
+    packedMatchPositionCount = 0;
   }
 
   public void setShouldMatchEmptyQuery(boolean matches) {
@@ -23,6 +23,7 @@ import android.support.annotation.VisibleForTesting;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import com.android.dialer.smartdial.map.CompositeSmartDialMap;
+import com.android.dialer.smartdial.map.SmartDialKeyTable;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
@@ -48,6 +49,12 @@ public class SmartDialPrefix {
 
   private static final int FIRST_TOKENS_FOR_INITIALS = 2;
 
+  /** Kinds of country codes distinguished by {@link #parsePhoneNumberOffsets(String)}. */
+  private static final int COUNTRY_CODE_EMPTY = 0;
+
+  private static final int COUNTRY_CODE_ONE = 1;
+  private static final int COUNTRY_CODE_OTHER = 2;
+
   /** The country code of the user's sim card obtained by calling getSimCountryIso */
   private static final String PREF_USER_SIM_COUNTRY_CODE =
       "DialtactsActivity_user_sim_country_code";
@@ -61,6 +68,8 @@ public class SmartDialPrefix {
   private static Set<String> nanpCountries = null;
   /** Set of supported country codes in front of the phone number. */
   private static Set<String> countryCodes = null;
+  /** {@link #countryCodes} indexed by their numeric value. */
+  private static boolean[] countryCodeTable = null;
 
   private static boolean nanpInitialized = false;
 
@@ -290,6 +299,120 @@ public class SmartDialPrefix {
     return new PhoneNumberTokens(countryCode, countryCodeOffset, nanpNumberOffset);
   }
 
+  /**
+   * Same as {@link #parsePhoneNumber(Context, String)}, but without allocating, for matching
+   * numbers on every keystroke.
+   *
+   * @param number Raw phone number.
+   * @return the country code offset and the NANP code offset, encoded with {@link
+   *     SmartDialMatchPosition#pack(int, int)}.
+   */
+  public static long parsePhoneNumberOffsets(String number) {
+    int countryCodeOffset = 0;
+    int nanpNumberOffset = 0;
+    if (TextUtils.isEmpty(number)) {
+      return SmartDialMatchPosition.pack(countryCodeOffset, nanpNumberOffset);
+    }
+
+    int normalizedLength = 0;
+    for (int i = 0; i < number.length(); i++) {
+      if (SmartDialKeyTable.isDialpadDigit(number.charAt(i))) {
+        normalizedLength++;
+      }
+    }
+
+    // Mirrors the value parsePhoneNumber assigns to its countryCode: "", "1" or anything else.
+    int countryCodeKind = COUNTRY_CODE_EMPTY;
+    if (number.charAt(0) == '+') {
+      for (int i = 1; i <= 1 + 3; i++) {
+        if (number.length() <= i) {
+          break;
+        }
+        countryCodeKind = i == 1 ? COUNTRY_CODE_EMPTY : COUNTRY_CODE_OTHER;
+        if (isValidCountryCode(number, 1, i)) {
+          if (i == 2 && number.charAt(1) == '1') {
+            countryCodeKind = COUNTRY_CODE_ONE;
+          }
+          countryCodeOffset = i;
+          break;
+        }
+      }
+    } else if (normalizedLength == 11 && nthDigit(number, 0) == '1' && userInNanpRegion) {
+      countryCodeKind = COUNTRY_CODE_ONE;
+      countryCodeOffset = number.indexOf(nthDigit(number, 1));
+      if (countryCodeOffset == -1) {
+        countryCodeOffset = 0;
+      }
+    }
+
+    if (userInNanpRegion) {
+      int areaCodeStart = -1;
+      if (countryCodeKind == COUNTRY_CODE_EMPTY && normalizedLength == 10) {
+        areaCodeStart = 0;
+      } else if (countryCodeKind == COUNTRY_CODE_ONE && normalizedLength == 11) {
+        areaCodeStart = 1;
+      }
+      if (areaCodeStart != -1) {
+        final int areaCodeIndex =
+            indexOf(
+                number,
+                nthDigit(number, areaCodeStart),
+                nthDigit(number, areaCodeStart + 1),
+                nthDigit(number, areaCodeStart + 2));
+        if (areaCodeIndex != -1) {
+          nanpNumberOffset = areaCodeIndex + 3;
+        }
+      }
+    }
+    return SmartDialMatchPosition.pack(countryCodeOffset, nanpNumberOffset);
+  }
+
+  /** Returns the n-th digit of {@code number}, ignoring every other character. */
+  private static char nthDigit(String number, int n) {
+    for (int i = 0; i < number.length(); i++) {
+      char ch = number.charAt(i);
+      if (SmartDialKeyTable.isDialpadDigit(ch) && n-- == 0) {
+        return ch;
+      }
+    }
+    throw new IndexOutOfBoundsException();
+  }
+
+  /** Same as {@code number.indexOf(new String(new char[] {first, second, third}))}. */
+  private static int indexOf(String number, char first, char second, char third) {
+    for (int i = 0; i + 2 < number.length(); i++) {
+      if (number.charAt(i) == first
+          && number.charAt(i + 1) == second
+          && number.charAt(i + 2) == third) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Same as {@code isValidCountryCode(number.substring(start, end))}. */
+  private static boolean isValidCountryCode(String number, int start, int end) {
+    if (countryCodeTable == null) {
+      final boolean[] table = new boolean[1000];
+      for (String countryCode : initCountryCodes()) {
+        table[Integer.parseInt(countryCode)] = true;
+      }
+      countryCodeTable = table;
+    }
+    if (start == end || number.charAt(start) == '0') {
+      return false;
+    }
+    int value = 0;
+    for (int i = start; i < end; i++) {
+      char ch = number.charAt(i);
+      if (ch < '0' || ch > '9') {
+        return false;
+      }
+      value = value * 10 + (ch - '0');
+    }
+    return countryCodeTable[value];
+  }
+
   /** Checkes whether a country code is valid. */
   private static boolean isValidCountryCode(String countryCode) {
     if (countryCodes == null) {
@@ -685,6 +685,12 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
     callBacks.remove(callId);
   }
 
+  /** Returns whether the query started by {@link #findInfo} for {@code callId} is still running. */
+  @MainThread
+  boolean isQueryInProgress(String callId) {
+    return callBacks.containsKey(callId);
+  }
+
   /** Callback interface for the contact query. */
   public interface ContactInfoCacheCallback {
 
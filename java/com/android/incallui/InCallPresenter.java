@@ -59,6 +59,8 @@ import com.android.dialer.postcall.PostCall;
 import com.android.dialer.telecom.TelecomCallUtil;
 import com.android.dialer.telecom.TelecomUtil;
 import com.android.dialer.util.TouchPointManager;
+import com.android.incallui.ContactInfoCache.ContactCacheEntry;
+import com.android.incallui.ContactInfoCache.ContactInfoCacheCallback;
 import com.android.incallui.InCallOrientationEventListener.ScreenOrientation;
 import com.android.incallui.answerproximitysensor.PseudoScreenState;
 import com.android.incallui.audiomode.AudioModeProvider;
@@ -78,6 +80,8 @@ import com.android.incallui.telecomeventui.InternationalCallOnWifiDialogFragment
 import com.android.incallui.videosurface.bindings.VideoSurfaceBindings;
 import com.android.incallui.videosurface.protocol.VideoSurfaceTexture;
 import com.android.incallui.videotech.utils.VideoUtils;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.InvalidProtocolBufferException;
 import java.util.Collections;
 import java.util.List;
@@ -376,6 +380,8 @@ public class InCallPresenter implements CallList.Listener, AudioModeProvider.Aud
     // This only gets called by the service so this is okay.
     serviceConnected = true;
 
+    this.callList.setContactLookup(this::lookUpContact);
+
     // The final thing we do in this set up is add ourselves as a listener to CallList.  This
     // will kick off an update and the whole process can start.
     this.callList.addListener(this);
@@ -752,6 +758,43 @@ public class InCallPresenter implements CallList.Listener, AudioModeProvider.Aud
     filteredQueryHandler.isBlockedNumber(onCheckBlockedListener, number, countryIso);
   }
 
+  /**
+   * Starts looking up the contact of a new call, which {@link CallList} does along with checking
+   * its spam and blocked status. The lookups of the UI for the call share this one.
+   *
+   * @return a future which completes when the contact lookup is done, rather than when the initial
+   *     entry which {@link ContactInfoCache} returns right away is available
+   */
+  private ListenableFuture<Void> lookUpContact(DialerCall call) {
+    SettableFuture<Void> lookupDone = SettableFuture.create();
+    if (contactInfoCache == null) {
+      lookupDone.set(null);
+      return lookupDone;
+    }
+    // Only used on the main thread; AtomicBoolean so that it can be changed from this scope.
+    AtomicBoolean isFindingInfo = new AtomicBoolean(true);
+    contactInfoCache.findInfo(
+        call,
+        call.getState() == DialerCallState.INCOMING
+            || call.getState() == DialerCallState.CALL_WAITING,
+        new ContactInfoCacheCallback() {
+          @Override
+          public void onContactInfoComplete(String callId, ContactCacheEntry entry) {
+            if (!isFindingInfo.get()) {
+              lookupDone.set(null);
+            }
+          }
+
+          @Override
+          public void onImageLoadComplete(String callId, ContactCacheEntry entry) {}
+        });
+    isFindingInfo.set(false);
+    if (!contactInfoCache.isQueryInProgress(call.getId())) {
+      lookupDone.set(null);
+    }
+    return lookupDone;
+  }
+
   public void onCallRemoved(android.telecom.Call call) {
     if (call.getDetails().hasProperty(CallCompat.Details.PROPERTY_IS_EXTERNAL_CALL)) {
       externalCallList.onCallRemoved(call);
@@ -1651,6 +1694,7 @@ public class InCallPresenter implements CallList.Listener, AudioModeProvider.Aud
       if (callList != null) {
         callList.removeListener(this);
         callList.removeListener(spamCallListListener);
+        callList.setContactLookup(null);
       }
       callList = null;
 
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui.call;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import com.android.dialer.blocking.FilteredNumberAsyncQueryHandler;
+import com.android.dialer.common.Assert;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.common.concurrent.DialerExecutorComponent;
+import com.android.dialer.common.concurrent.ThreadUtil;
+import com.android.dialer.configprovider.ConfigProviderComponent;
+import com.android.dialer.logging.DialerImpression;
+import com.android.dialer.logging.Logger;
+import com.android.dialer.spam.SpamComponent;
+import com.android.dialer.spam.status.SpamStatus;
+import com.android.dialer.telecom.TelecomCallUtil;
+import com.android.incallui.call.CallList.ContactLookup;
+import com.android.incallui.call.state.DialerCallState;
+import com.android.incallui.latencyreport.LatencyReport;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Checks the spam status and the blocked status of a new call and looks up its contact,
+ * concurrently.
+ *
+ * <p>Results are applied to the call and published to the {@link CallList} as soon as they arrive,
+ * as the spam status of an incoming call must be shown without delay. Nothing waits for the
+ * lookups to complete. How long each one took is logged, as are the lookups still pending once
+ * the slow threshold has passed.
+ */
+final class CallEnricher {
+
+  /** Default slow threshold, counted from when the call was added. Only used for logging. */
+  private static final long DEFAULT_SLOW_THRESHOLD_MILLIS = 1000;
+
+  private final Context context;
+  private final CallList callList;
+  private final DialerCall call;
+  private final LatencyReport latencyReport;
+  private final Executor uiExecutor;
+  private final Runnable slowThresholdRunnable = this::onSlowThresholdPassed;
+
+  /** Starts at 1 so that lookups completing while others are being started can't finish early. */
+  private int pendingLookupCount = 1;
+
+  private CallEnricher(Context context, CallList callList, DialerCall call) {
+    this.context = context;
+    this.callList = callList;
+    this.call = call;
+    this.latencyReport = call.getLatencyReport();
+    this.uiExecutor = DialerExecutorComponent.get(context).uiExecutor();
+  }
+
+  /** Starts the lookups for {@code call}, which was just added to {@code callList}. */
+  @MainThread
+  static void enrich(
+      Context context,
+      CallList callList,
+      DialerCall call,
+      @Nullable ContactLookup contactLookup) {
+    Assert.isMainThread();
+    new CallEnricher(context, callList, call).start(contactLookup);
+  }
+
+  private void start(@Nullable ContactLookup contactLookup) {
+    long slowThresholdMillis =
+        ConfigProviderComponent.get(context)
+            .getConfigProvider()
+            .getLong("call_enrichment_slow_threshold_millis", DEFAULT_SLOW_THRESHOLD_MILLIS);
+    ThreadUtil.getUiThreadHandler()
+        .postDelayed(
+            slowThresholdRunnable,
+            Math.max(
+                0,
+                latencyReport.getCallAddedTimeMillis()
+                    + slowThresholdMillis
+                    - SystemClock.elapsedRealtime()));
+
+    Trace.beginSection("checkSpam");
+    if (SpamComponent.get(context).spamSettings().isSpamEnabled()) {
+      checkSpamStatus();
+    }
+    Trace.endSection();
+
+    Trace.beginSection("checkBlock");
+    checkBlockedStatus();
+    Trace.endSection();
+
+    if (contactLookup != null) {
+      lookUpContact(contactLookup);
+    }
+
+    onLookupDone(false);
+  }
+
+  private void checkSpamStatus() {
+    pendingLookupCount++;
+    String number = TelecomCallUtil.getNumber(call.getTelecomCall());
+    ListenableFuture<SpamStatus> futureSpamStatus =
+        SpamComponent.get(context).spam().checkSpamStatus(number, call.getCountryIso());
+    Futures.addCallback(
+        futureSpamStatus,
+        new FutureCallback<SpamStatus>() {
+          @Override
+          public void onSuccess(@Nullable SpamStatus result) {
+            logLookupTime("spam check");
+            boolean isIncomingCall =
+                call.getState() == DialerCallState.INCOMING
+                    || call.getState() == DialerCallState.CALL_WAITING;
+            boolean isSpam = result.isSpam();
+            call.setSpamStatus(result);
+
+            if (isIncomingCall) {
+              Logger.get(context)
+                  .logCallImpression(
+                      isSpam
+                          ? DialerImpression.Type.INCOMING_SPAM_CALL
+                          : DialerImpression.Type.INCOMING_NON_SPAM_CALL,
+                      call.getUniqueCallId(),
+                      call.getTimeAddedMs());
+            }
+            onLookupDone(true);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            LogUtil.e("CallEnricher.checkSpamStatus", "unable to query spam status", t);
+            logLookupTime("spam check");
+            onLookupDone(false);
+          }
+        },
+        uiExecutor);
+  }
+
+  private void checkBlockedStatus() {
+    pendingLookupCount++;
+    // Answers from the blocked number snapshot once it is loaded, and otherwise queries this number
+    // only while the snapshot loads in the background, so an incoming call doesn't wait for it.
+    new FilteredNumberAsyncQueryHandler(context)
+        .isBlockedNumber(
+            id -> {
+              logLookupTime("blocked check");
+              if (id != null && id != FilteredNumberAsyncQueryHandler.INVALID_ID) {
+                call.setBlockedStatus(true);
+              }
+              // No need to update UI since it's only used for logging.
+              onLookupDone(false);
+            },
+            call.getNumber(),
+            call.getCountryIso());
+  }
+
+  private void lookUpContact(ContactLookup contactLookup) {
+    pendingLookupCount++;
+    Futures.addCallback(
+        contactLookup.lookUp(call),
+        new FutureCallback<Void>() {
+          @Override
+          public void onSuccess(@Nullable Void unused) {
+            logLookupTime("contact lookup");
+            // The contact lookup notifies its own listeners.
+            onLookupDone(false);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            LogUtil.e("CallEnricher.lookUpContact", "unable to look up contact", t);
+            logLookupTime("contact lookup");
+            onLookupDone(false);
+          }
+        },
+        uiExecutor);
+  }
+
+  @MainThread
+  private void onLookupDone(boolean didUpdateCall) {
+    if (didUpdateCall) {
+      callList.onCallEnriched(call);
+    }
+    pendingLookupCount--;
+    if (pendingLookupCount == 0) {
+      ThreadUtil.getUiThreadHandler().removeCallbacks(slowThresholdRunnable);
+    }
+  }
+
+  private void logLookupTime(String lookup) {
+    LogUtil.i(
+        "CallEnricher.logLookupTime",
+        "%s done %dms after %s was added",
+        lookup,
+        SystemClock.elapsedRealtime() - latencyReport.getCallAddedTimeMillis(),
+        call);
+  }
+
+  /** Only runs if some lookups are slow. It only logs them, as their results are applied anyway. */
+  @MainThread
+  private void onSlowThresholdPassed() {
+    LogUtil.i(
+        "CallEnricher.onSlowThresholdPassed",
+        "%d lookups still pending for %s",
+        pendingLookupCount,
+        call);
+  }
+}
@@ -27,10 +27,8 @@ import android.telecom.Call;
 import android.telecom.DisconnectCause;
 import android.telecom.PhoneAccount;
 import android.util.ArrayMap;
-import com.android.dialer.blocking.FilteredNumberAsyncQueryHandler;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
-import com.android.dialer.common.concurrent.DialerExecutorComponent;
 import com.android.dialer.enrichedcall.EnrichedCallComponent;
 import com.android.dialer.enrichedcall.EnrichedCallManager;
 import com.android.dialer.logging.DialerImpression;
@@ -39,14 +37,11 @@ import com.android.dialer.metrics.Metrics;
 import com.android.dialer.metrics.MetricsComponent;
 import com.android.dialer.promotion.impl.RttPromotion;
 import com.android.dialer.shortcuts.ShortcutUsageReporter;
-import com.android.dialer.spam.SpamComponent;
-import com.android.dialer.spam.status.SpamStatus;
-import com.android.dialer.telecom.TelecomCallUtil;
 import com.android.incallui.call.state.DialerCallState;
 import com.android.incallui.latencyreport.LatencyReport;
 import com.android.incallui.videotech.utils.SessionModificationState;
-import com.google.common.util.concurrent.FutureCallback;
-import com.google.common.util.concurrent.Futures;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.util.Collection;
 import java.util.Collections;
@@ -74,6 +69,9 @@ public class CallList implements DialerCallDelegate {
   private final Map<String, DialerCall> callById = new ArrayMap<>();
   private final Map<android.telecom.Call, DialerCall> callByTelecomCall = new ArrayMap<>();
 
+  /** Index of {@link #callById} by call state, rebuilt whenever a call is updated in the map. */
+  private volatile CallsByState callsByState = CallsByState.EMPTY;
+
   /**
    * ConcurrentHashMap constructor params: 8 is initial table size, 0.9f is load factor before
    * resizing, 1 means we only expect a single thread to access the map so make only a single shard
@@ -85,6 +83,7 @@ public class CallList implements DialerCallDelegate {
       Collections.newSetFromMap(new ConcurrentHashMap<DialerCall, Boolean>(8, 0.9f, 1));
 
   private UiListener uiListeners;
+  @Nullable private ContactLookup contactLookup;
   /** Handles the timeout for destroying disconnected calls. */
   private final Handler handler =
       new Handler() {
@@ -144,67 +143,9 @@ public class CallList implements DialerCallDelegate {
     manager.registerCapabilitiesListener(call);
     manager.registerStateChangedListener(call);
 
-    Trace.beginSection("checkSpam");
     call.addListener(new DialerCallListenerImpl(call));
     LogUtil.d("CallList.onCallAdded", "callState=" + call.getState());
-    if (SpamComponent.get(context).spamSettings().isSpamEnabled()) {
-      String number = TelecomCallUtil.getNumber(telecomCall);
-      ListenableFuture<SpamStatus> futureSpamStatus =
-          SpamComponent.get(context).spam().checkSpamStatus(number, call.getCountryIso());
-
-      Futures.addCallback(
-          futureSpamStatus,
-          new FutureCallback<SpamStatus>() {
-            @Override
-            public void onSuccess(@Nullable SpamStatus result) {
-              boolean isIncomingCall =
-                  call.getState() == DialerCallState.INCOMING
-                      || call.getState() == DialerCallState.CALL_WAITING;
-              boolean isSpam = result.isSpam();
-              call.setSpamStatus(result);
-
-              if (isIncomingCall) {
-                Logger.get(context)
-                    .logCallImpression(
-                        isSpam
-                            ? DialerImpression.Type.INCOMING_SPAM_CALL
-                            : DialerImpression.Type.INCOMING_NON_SPAM_CALL,
-                        call.getUniqueCallId(),
-                        call.getTimeAddedMs());
-              }
-              onUpdateCall(call);
-              notifyGenericListeners();
-            }
-
-            @Override
-            public void onFailure(Throwable t) {
-              LogUtil.e("CallList.onFailure", "unable to query spam status", t);
-            }
-          },
-          DialerExecutorComponent.get(context).uiExecutor());
-
-      Trace.beginSection("updateUserMarkedSpamStatus");
-      Trace.endSection();
-    }
-    Trace.endSection();
-
-    Trace.beginSection("checkBlock");
-    FilteredNumberAsyncQueryHandler filteredNumberAsyncQueryHandler =
-        new FilteredNumberAsyncQueryHandler(context);
-
-    filteredNumberAsyncQueryHandler.isBlockedNumber(
-        new FilteredNumberAsyncQueryHandler.OnCheckBlockedListener() {
-          @Override
-          public void onCheckComplete(Integer id) {
-            if (id != null && id != FilteredNumberAsyncQueryHandler.INVALID_ID) {
-              call.setBlockedStatus(true);
-              // No need to update UI since it's only used for logging.
-            }
-          }
-        },
-        call.getNumber(),
-        call.getCountryIso());
-    Trace.endSection();
+    CallEnricher.enrich(context, this, call, contactLookup);
 
     if (call.getState() == DialerCallState.INCOMING
         || call.getState() == DialerCallState.CALL_WAITING) {
@@ -335,6 +276,7 @@ public class CallList implements DialerCallDelegate {
       call.unregisterCallback();
       callById.remove(call.getId());
       callByTelecomCall.remove(telecomCall);
+      callsByState = CallsByState.of(callById.values());
     }
   }
 
@@ -364,6 +306,11 @@ public class CallList implements DialerCallDelegate {
     uiListeners = uiListener;
   }
 
+  /** Sets the contact lookup started for new calls along with the spam and blocked checks. */
+  public void setContactLookup(@Nullable ContactLookup contactLookup) {
+    this.contactLookup = contactLookup;
+  }
+
   public void removeListener(@Nullable Listener listener) {
     if (listener != null) {
       listeners.remove(listener);
@@ -519,20 +466,17 @@ public class CallList implements DialerCallDelegate {
    * this logic to sort by call time.
    */
   public DialerCall getCallWithState(int state, int positionToFind) {
-    DialerCall retval = null;
-    int position = 0;
-    for (DialerCall call : callById.values()) {
-      if (call.getState() == state) {
-        if (position >= positionToFind) {
-          retval = call;
-          break;
-        } else {
-          position++;
-        }
-      }
-    }
+    return callsByState.getCall(state, positionToFind);
+  }
 
-    return retval;
+  /**
+   * Returns the calls in the call map indexed by their state as of their last update.
+   *
+   * <p>The returned index is immutable, so that it can be kept for a consistent view of the calls
+   * while handling a change of the call list, and read from any thread.
+   */
+  public CallsByState getCallsByState() {
+    return callsByState;
   }
 
   /**
@@ -608,6 +552,12 @@ public class CallList implements DialerCallDelegate {
     Trace.endSection();
   }
 
+  /** Called by {@link CallEnricher} when the spam or blocked status of the call changed. */
+  void onCallEnriched(DialerCall call) {
+    onUpdateCall(call);
+    notifyGenericListeners();
+  }
+
   /**
    * Sends a generic notification to all listeners that something has changed. It is up to the
    * listeners to call back to determine what changed.
@@ -662,6 +612,10 @@ public class CallList implements DialerCallDelegate {
       updated = true;
     }
 
+    if (updated) {
+      callsByState = CallsByState.of(callById.values());
+    }
+
     Trace.endSection();
     return updated;
   }
@@ -785,6 +739,13 @@ public class CallList implements DialerCallDelegate {
     void onInternationalCallOnWifi(@NonNull DialerCall call);
   }
 
+  /** Looks up the contact of a new call. */
+  public interface ContactLookup {
+
+    /** Returns a future which completes when the contact of {@code call} has been looked up. */
+    ListenableFuture<Void> lookUp(DialerCall call);
+  }
+
   /** UiListener interface for measuring incall latency.(used by testing only) */
   public interface UiListener {
 
@@ -879,4 +840,42 @@ public class CallList implements DialerCallDelegate {
       }
     }
   }
+
+  /** An immutable index of calls by their state, in the iteration order of the call map. */
+  public static final class CallsByState {
+
+    static final CallsByState EMPTY = new CallsByState(ImmutableListMultimap.of());
+
+    private final ImmutableListMultimap<Integer, DialerCall> calls;
+
+    private CallsByState(ImmutableListMultimap<Integer, DialerCall> calls) {
+      this.calls = calls;
+    }
+
+    static CallsByState of(Collection<DialerCall> calls) {
+      ImmutableListMultimap.Builder<Integer, DialerCall> builder = ImmutableListMultimap.builder();
+      for (DialerCall call : calls) {
+        builder.put(call.getState(), call);
+      }
+      return new CallsByState(builder.build());
+    }
+
+    /** Returns the calls with the specified state. */
+    public ImmutableList<DialerCall> getCalls(int state) {
+      return calls.get(state);
+    }
+
+    /** Returns the [position]th call with the specified state, or null if there is none. */
+    @Nullable
+    public DialerCall getCall(int state, int position) {
+      ImmutableList<DialerCall> callsWithState = calls.get(state);
+      return position < callsWithState.size() ? callsWithState.get(position) : null;
+    }
+
+    /** Returns the first call with the specified state, or null if there is none. */
+    @Nullable
+    public DialerCall getFirstCall(int state) {
+      return getCall(state, 0);
+    }
+  }
 }
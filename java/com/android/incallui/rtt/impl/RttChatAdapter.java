@@ -169,9 +169,21 @@ public class RttChatAdapter extends RecyclerView.Adapter<ViewHolder> {
   }
 
   private void updateCurrentRemoteMessage(String newMessage) {
-    RttChatMessage.updateRemoteRttChatMessage(rttMessages, newMessage);
+    int oldSize = rttMessages.size();
+    int firstChangedIndex = RttChatMessage.updateRemoteRttChatMessage(rttMessages, newMessage);
     lastIndexOfLocalMessage = RttChatMessage.getLastIndexLocalMessage(rttMessages);
-    notifyDataSetChanged();
+    int newSize = rttMessages.size();
+
+    // Messages after the first changed one may have moved, so they are all rebound.
+    int changedCount = Math.min(oldSize, newSize) - firstChangedIndex;
+    if (changedCount > 0) {
+      notifyItemRangeChanged(toItemPosition(firstChangedIndex), changedCount);
+    }
+    if (newSize > oldSize) {
+      notifyItemRangeInserted(toItemPosition(oldSize), newSize - oldSize);
+    } else if (newSize < oldSize) {
+      notifyItemRangeRemoved(toItemPosition(newSize), oldSize - newSize);
+    }
   }
 
   void addLocalMessage(String message) {
@@ -90,22 +90,78 @@ public final class RttChatMessage {
     return modify.toString();
   }
 
+  /**
+   * Returns {@code rttTranscript} updated with {@code text} received from the remote party.
+   *
+   * <p>Only the messages which {@code text} can change are converted to {@link RttChatMessage} and
+   * written back, the ones before them are kept as they are.
+   */
   public static RttTranscript getRttTranscriptWithNewRemoteMessage(
       RttTranscript rttTranscript, @NonNull String text) {
-    List<RttChatMessage> messageList = fromTranscript(rttTranscript);
-    updateRemoteRttChatMessage(messageList, text);
-    return RttTranscript.newBuilder()
-        .setId(rttTranscript.getId())
-        .setNumber(rttTranscript.getNumber())
-        .setTimestamp(rttTranscript.getTimestamp())
-        .addAllMessages(toTranscriptMessageList(messageList))
-        .build();
+    List<RttTranscriptMessage> transcriptMessages = rttTranscript.getMessagesList();
+    int suffixStart = getFirstIndexAffectedByRemoteMessage(transcriptMessages, text);
+    List<RttChatMessage> suffix = new ArrayList<>();
+    for (int i = suffixStart; i < transcriptMessages.size(); i++) {
+      suffix.add(fromTranscriptMessage(transcriptMessages.get(i)));
+    }
+    int firstChangedIndex = updateRemoteRttChatMessage(suffix, text);
+
+    RttTranscript.Builder builder = rttTranscript.toBuilder();
+    while (builder.getMessagesCount() > suffixStart + firstChangedIndex) {
+      builder.removeMessages(builder.getMessagesCount() - 1);
+    }
+    for (int i = firstChangedIndex; i < suffix.size(); i++) {
+      builder.addMessages(toTranscriptMessage(suffix.get(i)));
+    }
+    return builder.build();
   }
 
-  /** Update list of {@code RttChatMessage} based on given remote text. */
-  public static void updateRemoteRttChatMessage(
+  /**
+   * Returns the index of the first message in {@code transcriptMessages} which {@code text} can
+   * change, which is the last remote message unless {@code text} has more backspaces than it has
+   * characters.
+   */
+  private static int getFirstIndexAffectedByRemoteMessage(
+      List<RttTranscriptMessage> transcriptMessages, String text) {
+    int backspaceCount = 0;
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) == '\b') {
+        backspaceCount++;
+      }
+    }
+    int index = transcriptMessages.size() - 1;
+    while (index >= 0 && !transcriptMessages.get(index).getIsRemote()) {
+      index--;
+    }
+    if (index < 0) {
+      // Only new messages can be added.
+      return transcriptMessages.size();
+    }
+    int deletableCount = transcriptMessages.get(index).getContent().length();
+    while (backspaceCount >= deletableCount) {
+      int previous = index - 1;
+      while (previous >= 0 && !transcriptMessages.get(previous).getIsRemote()) {
+        previous--;
+      }
+      if (previous < 0) {
+        break;
+      }
+      index = previous;
+      deletableCount += transcriptMessages.get(index).getContent().length();
+    }
+    return index;
+  }
+
+  /**
+   * Update list of {@code RttChatMessage} based on given remote text.
+   *
+   * @return the index of the first message which was changed, added or removed; the messages before
+   *     it are untouched. This is the size of the list if nothing changed.
+   */
+  public static int updateRemoteRttChatMessage(
       List<RttChatMessage> messageList, @NonNull String text) {
     Assert.isNotNull(messageList);
+    int firstChangedIndex = messageList.size();
     Iterator<String> splitText = SPLITTER.split(text).iterator();
 
     while (splitText.hasNext()) {
@@ -121,8 +177,10 @@ public final class RttChatMessage {
         }
         if (message.content.length() != 0) {
           messageList.add(message);
+          firstChangedIndex = Math.min(firstChangedIndex, messageList.size() - 1);
         }
       } else {
+        firstChangedIndex = Math.min(firstChangedIndex, index);
         message = messageList.get(index);
         message.append(singleMessageContent);
         if (splitText.hasNext()) {
@@ -135,7 +193,11 @@ public final class RttChatMessage {
       StringBuilder content = message.content;
       // Delete previous messages.
       while (content.length() > 0 && content.charAt(0) == '\b') {
-        messageList.remove(message);
+        int messageIndex = messageList.indexOf(message);
+        if (messageIndex >= 0) {
+          messageList.remove(messageIndex);
+          firstChangedIndex = Math.min(firstChangedIndex, messageIndex);
+        }
         content.delete(0, 1);
         int previous = getLastIndexRemoteMessage(messageList);
         // There are more backspaces than existing characters.
@@ -152,9 +214,11 @@ public final class RttChatMessage {
               message.finish();
             }
             messageList.add(message);
+            firstChangedIndex = Math.min(firstChangedIndex, messageList.size() - 1);
           }
           break;
         }
+        firstChangedIndex = Math.min(firstChangedIndex, previous);
         message = messageList.get(previous);
         message.unfinish();
         message.append(content.toString());
@@ -164,7 +228,9 @@ public final class RttChatMessage {
     if (text.endsWith(Constants.BUBBLE_BREAKER)) {
       int lastIndexRemoteMessage = getLastIndexRemoteMessage(messageList);
       messageList.get(lastIndexRemoteMessage).finish();
+      firstChangedIndex = Math.min(firstChangedIndex, lastIndexRemoteMessage);
     }
+    return Math.min(firstChangedIndex, messageList.size());
   }
 
   private static int getLastIndexUnfinishedRemoteMessage(List<RttChatMessage> messageList) {
@@ -195,13 +261,7 @@ public final class RttChatMessage {
       List<RttChatMessage> messageList) {
     List<RttTranscriptMessage> transcriptMessageList = new ArrayList<>();
     for (RttChatMessage message : messageList) {
-      transcriptMessageList.add(
-          RttTranscriptMessage.newBuilder()
-              .setContent(message.getContent())
-              .setTimestamp(message.timstamp)
-              .setIsRemote(message.isRemote)
-              .setIsFinished(message.isFinished)
-              .build());
+      transcriptMessageList.add(toTranscriptMessage(message));
     }
     return transcriptMessageList;
   }
@@ -212,18 +272,31 @@ public final class RttChatMessage {
       return messageList;
     }
     for (RttTranscriptMessage message : rttTranscript.getMessagesList()) {
-      RttChatMessage chatMessage = new RttChatMessage();
-      chatMessage.append(message.getContent());
-      chatMessage.timstamp = message.getTimestamp();
-      chatMessage.isRemote = message.getIsRemote();
-      if (message.getIsFinished()) {
-        chatMessage.finish();
-      }
-      messageList.add(chatMessage);
+      messageList.add(fromTranscriptMessage(message));
     }
     return messageList;
   }
 
+  private static RttTranscriptMessage toTranscriptMessage(RttChatMessage message) {
+    return RttTranscriptMessage.newBuilder()
+        .setContent(message.getContent())
+        .setTimestamp(message.timstamp)
+        .setIsRemote(message.isRemote)
+        .setIsFinished(message.isFinished)
+        .build();
+  }
+
+  private static RttChatMessage fromTranscriptMessage(RttTranscriptMessage message) {
+    RttChatMessage chatMessage = new RttChatMessage();
+    chatMessage.append(message.getContent());
+    chatMessage.timstamp = message.getTimestamp();
+    chatMessage.isRemote = message.getIsRemote();
+    if (message.getIsFinished()) {
+      chatMessage.finish();
+    }
+    return chatMessage;
+  }
+
   public RttChatMessage() {
     timstamp = System.currentTimeMillis();
   }